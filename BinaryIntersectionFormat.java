@@ -0,0 +1,235 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import traffic.core.Intersection;
+import traffic.diy.IntersectionDescription.FaceDescription;
+import traffic.diy.IntersectionDescription.PhaseDescription;
+import traffic.diy.IntersectionDescription.StreamDescription;
+import traffic.signal.SignalFace;
+import traffic.util.State;
+import traffic.util.TrafficDirection;
+
+/**
+ * Save and load intersection descriptions in a compact binary form, instead
+ * of serialising the built intersection. Loading rebuilds the intersection
+ * (and its observers) from the description, so no classes are instantiated
+ * from the file and nothing needs recovering afterwards.
+ *
+ * The file holds:
+ * <pre>
+ * int     MAGIC
+ * short   VERSION
+ * UTF     name, UTF description
+ * boolean pre-timed
+ * byte    number of states, then the UTF name of each State in ordinal order
+ * byte    number of directions, then the UTF name of each TrafficDirection in ordinal order
+ * int     number of streams, then (UTF name, UTF description) for each
+ * int     number of plans, then for each plan
+ *         int number of phases, then (UTF name, UTF description, int min green interval,
+ *         one byte State ordinal per stream) for each phase
+ * int     number of faces, then (byte location, byte facing, byte face type, int stream) for each
+ * </pre>
+ * The enum names are stored so that a file stays readable if the constants
+ * are ever reordered.
+ *
+ * @author cijolly
+ */
+public class BinaryIntersectionFormat {
+
+	public static final int MAGIC = 0x55434942; // "UCIB"
+	public static final short VERSION = 1;
+
+	/**
+	 * Write a description.
+	 *
+	 * @param description	The description to write.
+	 * @param out			Where to write it. Not closed.
+	 * @throws IOException	if the description can't be written.
+	 */
+	public static void write(IntersectionDescription description, OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.writeUTF(description.getName());
+		data.writeUTF(description.getDescription());
+		data.writeBoolean(description.isPreTimed());
+
+		data.writeByte(State.values().length);
+		for (State state : State.values())
+			data.writeUTF(state.name());
+		data.writeByte(TrafficDirection.values().length);
+		for (TrafficDirection direction : TrafficDirection.values())
+			data.writeUTF(direction.name());
+
+		List<StreamDescription> streams = description.getStreams();
+		data.writeInt(streams.size());
+		for (StreamDescription stream : streams) {
+			data.writeUTF(stream.getName());
+			data.writeUTF(stream.getDescription());
+		}
+
+		List<List<PhaseDescription>> plans = description.getPlans();
+		data.writeInt(plans.size());
+		for (List<PhaseDescription> phases : plans) {
+			data.writeInt(phases.size());
+			for (PhaseDescription phase : phases) {
+				data.writeUTF(phase.getName());
+				data.writeUTF(phase.getDescription());
+				data.writeInt(phase.getMinGreenInterval());
+				for (int i = 0; i < streams.size(); i++)
+					data.writeByte(phase.getStreamState(i).ordinal());
+			}
+		}
+
+		List<FaceDescription> faces = description.getFaces();
+		data.writeInt(faces.size());
+		for (FaceDescription face : faces) {
+			data.writeByte(face.getLocation().ordinal());
+			data.writeByte(face.getFacing().ordinal());
+			data.writeByte(face.getFaceType());
+			data.writeInt(face.getStream());
+		}
+		data.flush();
+	}
+
+	/**
+	 * Read a description, checking every count, ordinal and stream reference
+	 * before it is used.
+	 *
+	 * @param in	Where to read it from. Not closed.
+	 * @return	The description.
+	 * @throws IOException	if the data can't be read or isn't a valid description.
+	 */
+	public static IntersectionDescription read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC)
+			throw new IOException("Not a binary intersection file");
+		short version = data.readShort();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary intersection version " + version);
+
+		IntersectionDescription description = new IntersectionDescription(data.readUTF(), data.readUTF());
+		description.setPreTimed(data.readBoolean());
+
+		State[] states = new State[data.readUnsignedByte()];
+		for (int i = 0; i < states.length; i++)
+			states[i] = valueOf(State.class, data.readUTF());
+		TrafficDirection[] directions = new TrafficDirection[data.readUnsignedByte()];
+		for (int i = 0; i < directions.length; i++)
+			directions[i] = valueOf(TrafficDirection.class, data.readUTF());
+
+		int streamCount = readCount(data);
+		for (int i = 0; i < streamCount; i++)
+			description.addStream(new StreamDescription(data.readUTF(), data.readUTF()));
+
+		int planCount = readCount(data);
+		for (int p = 0; p < planCount; p++) {
+			int phaseCount = readCount(data);
+			ArrayList<PhaseDescription> phases = new ArrayList<PhaseDescription>();
+			for (int i = 0; i < phaseCount; i++) {
+				String name = data.readUTF();
+				String phaseDescription = data.readUTF();
+				int minGreenInterval = data.readInt();
+				if (minGreenInterval < 0)
+					throw new IOException("Invalid min green interval " + minGreenInterval);
+				PackedPhaseStates streamStates = new PackedPhaseStates(streamCount);
+				for (int s = 0; s < streamCount; s++)
+					streamStates.set(s, states[readIndex(data.readUnsignedByte(), states.length, "state")]);
+				phases.add(new PhaseDescription(name, phaseDescription, streamStates, minGreenInterval));
+			}
+			description.addPlan(phases);
+		}
+
+		int faceCount = readCount(data);
+		for (int i = 0; i < faceCount; i++) {
+			TrafficDirection location = directions[readIndex(data.readUnsignedByte(), directions.length, "direction")];
+			TrafficDirection facing = directions[readIndex(data.readUnsignedByte(), directions.length, "direction")];
+			int faceType = data.readUnsignedByte();
+			if (faceType != SignalFace.STANDARD && faceType != SignalFace.LEFT_ARROW && faceType != SignalFace.RIGHT_ARROW)
+				throw new IOException("Invalid face type " + faceType);
+			int stream = readIndex(data.readInt(), streamCount, "stream");
+			description.addFace(new FaceDescription(location, facing, faceType, stream));
+		}
+		return description;
+	}
+
+	/**
+	 * Compare the time taken to load an intersection description file in binary
+	 * form with the time taken to load it by deserialising the built intersection.
+	 */
+	public static void main(String[] args) throws Exception {
+		final int repeats = 1000;
+		for (String name : args) {
+			BufferedReader br = new BufferedReader(new FileReader(name));
+			IntersectionDescription description;
+			try {
+				description = new MyIntersectionLoader(br).loadDescription();
+			} finally {
+				br.close();
+			}
+
+			ByteArrayOutputStream binary = new ByteArrayOutputStream();
+			write(description, binary);
+			byte[] binaryBytes = binary.toByteArray();
+
+			ByteArrayOutputStream serialised = new ByteArrayOutputStream();
+			ObjectOutputStream outStream = new ObjectOutputStream(serialised);
+			outStream.writeObject(description.build());
+			outStream.close();
+			byte[] serialisedBytes = serialised.toByteArray();
+
+			//Run each twice, and report the second run, so both are measured after warm up
+			double binaryMillis = 0;
+			double serialisedMillis = 0;
+			for (int run = 0; run < 2; run++) {
+				long startTime = System.nanoTime();
+				for (int i = 0; i < repeats; i++)
+					read(new ByteArrayInputStream(binaryBytes)).build();
+				binaryMillis = (System.nanoTime() - startTime) / 1e6 / repeats;
+
+				startTime = System.nanoTime();
+				for (int i = 0; i < repeats; i++) {
+					ObjectInputStream inStream = new ObjectInputStream(new ByteArrayInputStream(serialisedBytes));
+					((Intersection) inStream.readObject()).recoverObservers();
+				}
+				serialisedMillis = (System.nanoTime() - startTime) / 1e6 / repeats;
+			}
+			System.out.printf("%s: binary %d bytes, %.3f ms per load; serialised %d bytes, %.3f ms per load%n", name,
+					binaryBytes.length, binaryMillis, serialisedBytes.length, serialisedMillis);
+		}
+	}
+
+	private static int readCount(DataInputStream data) throws IOException {
+		int count = data.readInt();
+		if (count < 0)
+			throw new IOException("Invalid count " + count);
+		return count;
+	}
+
+	private static int readIndex(int index, int size, String what) throws IOException {
+		if (index < 0 || index >= size)
+			throw new IOException("Invalid " + what + " " + index);
+		return index;
+	}
+
+	private static <E extends Enum<E>> E valueOf(Class<E> type, String name) throws IOException {
+		try {
+			return Enum.valueOf(type, name);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown " + type.getSimpleName() + " " + name);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package traffic.diy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import traffic.core.Phase;
+import traffic.core.TrafficStream;
+import traffic.phaseplan.PhasePlan;
+import traffic.util.State;
+
+/**
+ * A phase plan compiled once into stream and phase indices, with the stream
+ * states of each phase packed into a PackedPhaseStates. Saves building a map
+ * of every stream's state each time a phase is looked at.
+ *
+ * Streams are numbered in the order they are first met in each phase's
+ * getTrafficStreams(), or in description order if the plan was built from a
+ * description. Either way the numbering is the same every run, so journals
+ * and replays can store stream indices.
+ *
+ * @author cijolly
+ */
+public class CompiledPhasePlan {
+
+	private final ArrayList<TrafficStream> streams = new ArrayList<TrafficStream>();
+	private final HashMap<TrafficStream, Integer> streamIndex = new HashMap<TrafficStream, Integer>();
+	private final ArrayList<Phase> phases = new ArrayList<Phase>();
+	private final HashMap<Phase, Integer> phaseIndex = new HashMap<Phase, Integer>();
+	private final PackedPhaseStates[] states;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param plan	The plan to compile.
+	 */
+	public CompiledPhasePlan(PhasePlan plan) {
+		this(plan, null);
+	}
+
+	/**
+	 * Number the streams as in the description the plan was built from, so
+	 * indices match those used by VirtualTimeSimulation and its journals.
+	 *
+	 * @param plan			The plan to compile.
+	 * @param description	The description the plan was built from, or null.
+	 */
+	public CompiledPhasePlan(PhasePlan plan, IntersectionDescription description) {
+		List<Phase> planPhases = plan.phases();
+		ArrayList<Map<TrafficStream, State>> phaseStates = new ArrayList<Map<TrafficStream, State>>(planPhases.size());
+		for (Phase phase : planPhases) {
+			phaseIndex.put(phase, phases.size());
+			phases.add(phase);
+			phaseStates.add(phase.streamStates());
+			// Not streamStates().keySet(), whose order is a HashMap's
+			for (TrafficStream ts : phase.getTrafficStreams()) {
+				if (!streamIndex.containsKey(ts)) {
+					streamIndex.put(ts, streams.size());
+					streams.add(ts);
+				}
+			}
+		}
+		if (description != null)
+			sortByDescription(description);
+
+		// A stream missing from a phase is left as the first State constant
+		states = new PackedPhaseStates[phases.size()];
+		for (int p = 0; p < states.length; p++) {
+			states[p] = new PackedPhaseStates(streams.size());
+			for (Map.Entry<TrafficStream, State> entry : phaseStates.get(p).entrySet())
+				states[p].set(streamIndex.get(entry.getKey()), entry.getValue());
+		}
+	}
+
+	/**
+	 * Renumber the streams in the order the description lists their names.
+	 * Any the description doesn't name stay at the end.
+	 */
+	private void sortByDescription(IntersectionDescription description) {
+		final HashMap<String, Integer> described = new HashMap<String, Integer>();
+		List<IntersectionDescription.StreamDescription> describedStreams = description.getStreams();
+		for (int i = 0; i < describedStreams.size(); i++)
+			described.put(describedStreams.get(i).getName(), i);
+		Collections.sort(streams, new Comparator<TrafficStream>() {
+
+			@Override
+			public int compare(TrafficStream a, TrafficStream b) {
+				Integer ia = described.get(a.getname());
+				Integer ib = described.get(b.getname());
+				return Integer.compare(ia == null ? Integer.MAX_VALUE : ia, ib == null ? Integer.MAX_VALUE : ib);
+			}
+		});
+		for (int i = 0; i < streams.size(); i++)
+			streamIndex.put(streams.get(i), i);
+	}
+
+	public int streamCount() {
+		return streams.size();
+	}
+
+	public TrafficStream getStream(int stream) {
+		return streams.get(stream);
+	}
+
+	/**
+	 * @return	Index of the stream, or -1 if it isn't in any phase of the plan.
+	 */
+	public int indexOf(TrafficStream ts) {
+		Integer index = streamIndex.get(ts);
+		return index == null ? -1 : index;
+	}
+
+	public int phaseCount() {
+		return phases.size();
+	}
+
+	public Phase getPhase(int phase) {
+		return phases.get(phase);
+	}
+
+	/**
+	 * @return	Index of the phase, or -1 if it isn't in the plan.
+	 */
+	public int indexOf(Phase phase) {
+		Integer index = phaseIndex.get(phase);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * @param phase	Index of a phase.
+	 * @return	The states of every stream during the phase.
+	 */
+	public PackedPhaseStates getStates(int phase) {
+		return states[phase];
+	}
+
+	/**
+	 * Equivalent to phase.streamStates().get(ts) for streams in the phase.
+	 */
+	public State getState(Phase phase, TrafficStream ts) {
+		return states[phaseIndex.get(phase)].get(streamIndex.get(ts));
+	}
+}
@@ -0,0 +1,393 @@
+package traffic.diy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Vehicle detections read from a log file or a local socket, such as the
+ * output of a loop detector. Each line is the time of a detection in
+ * milliseconds and the index of the stream it was on, separated by tabs or
+ * spaces. Blank lines and lines starting with // are skipped.
+ *
+ * Lines are read a buffer at a time and parsed straight from the bytes into
+ * a batch of events, which are then passed to the detector of each stream.
+ * A stream's detector only keeps its count of vehicles and the time of the
+ * last one, so dispatching an event is a couple of array writes.
+ *
+ * A stream has traffic waiting if a vehicle was detected on it within the
+ * gap time, so a feed can stand in for the random demand of a fully actuated
+ * VirtualTimeSimulation. Recorded logs are dispatched as the simulation's
+ * clock reaches them. A live feed from a socket is read on a thread of its
+ * own with start(), and dispatches each batch as soon as it arrives; its
+ * times are whatever clock the sender uses.
+ *
+ * @author cijolly
+ */
+public class DetectorFeed implements VirtualTimeSimulation.Demand {
+
+	/**
+	 * Default size of the read buffer, in bytes.
+	 */
+	public static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+
+	/**
+	 * Default time after a detection that a stream still has traffic
+	 * waiting, in milliseconds.
+	 */
+	public static final long DEFAULT_GAP_MILLIS = VirtualTimeSimulation.EXTENSION_MILLIS;
+
+	private static final long NEVER = Long.MIN_VALUE;
+
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buffer;
+	private final int streams;
+	private long gapMillis = DEFAULT_GAP_MILLIS;
+	private int lineNumber = 0;
+	private boolean ended = false;
+
+	// The batch being dispatched
+	private final long[] times;
+	private final int[] eventStreams;
+	private int batchSize = 0;
+	private int next = 0;
+	// A bad line found after some of the batch had been parsed
+	private IOException badLine;
+
+	// The detector of each stream
+	private final AtomicLongArray detections;
+	private final AtomicLongArray lastDetected;
+
+	private volatile boolean live = false;
+	private volatile IOException error;
+	private Thread reader;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param channel		Where the detections are read from.
+	 * @param streams		Number of streams at the intersection.
+	 * @param bufferBytes	Size of the read buffer. No line can be longer.
+	 */
+	public DetectorFeed(ReadableByteChannel channel, int streams, int bufferBytes) {
+		if (streams < 1)
+			throw new IllegalArgumentException("Need at least one stream");
+		this.channel = channel;
+		this.streams = streams;
+		buffer = ByteBuffer.allocate(bufferBytes);
+		buffer.flip();
+		// No more events in a batch than there can be lines in the buffer
+		times = new long[bufferBytes / 4 + 1];
+		eventStreams = new int[times.length];
+		detections = new AtomicLongArray(streams);
+		lastDetected = new AtomicLongArray(streams);
+		for (int s = 0; s < streams; s++)
+			lastDetected.set(s, NEVER);
+	}
+
+	/**
+	 * @param file		A log of detections.
+	 * @param streams	Number of streams at the intersection.
+	 * @throws IOException	if the file can't be opened.
+	 */
+	public static DetectorFeed open(File file, int streams) throws IOException {
+		return new DetectorFeed(new FileInputStream(file).getChannel(), streams, DEFAULT_BUFFER_BYTES);
+	}
+
+	/**
+	 * Connect to detections sent to a port on this machine. Call start() to
+	 * follow them as they arrive.
+	 *
+	 * @param port		The port on this machine.
+	 * @param streams	Number of streams at the intersection.
+	 * @throws IOException	if the connection can't be made.
+	 */
+	public static DetectorFeed connect(int port, int streams) throws IOException {
+		SocketChannel socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		socket.socket().setTcpNoDelay(true);
+		return new DetectorFeed(socket, streams, DEFAULT_BUFFER_BYTES);
+	}
+
+	/**
+	 * @param gapMillis	How long after a detection a stream still has traffic
+	 *                  waiting, in milliseconds.
+	 */
+	public void setGapMillis(long gapMillis) {
+		if (gapMillis < 1)
+			throw new IllegalArgumentException("Gap must be at least 1ms");
+		this.gapMillis = gapMillis;
+	}
+
+	/**
+	 * Pass on every detection up to a time, reading more as needed. For
+	 * recorded logs, whose times must not go backwards.
+	 *
+	 * @param time	Time in milliseconds.
+	 * @throws IOException	if the log can't be read or a line isn't valid.
+	 */
+	public void dispatchUntil(long time) throws IOException {
+		if (live)
+			throw new IllegalStateException("A live feed dispatches as it reads");
+		while (true) {
+			if (next == batchSize && !readBatch())
+				return;
+			if (times[next] > time)
+				return;
+			dispatch(next++);
+		}
+	}
+
+	/**
+	 * Pass on every detection left in the log.
+	 *
+	 * @return	The number of detections passed on.
+	 * @throws IOException	if the log can't be read or a line isn't valid.
+	 */
+	public long dispatchAll() throws IOException {
+		if (live)
+			throw new IllegalStateException("A live feed dispatches as it reads");
+		return dispatchRemaining();
+	}
+
+	/**
+	 * Read and dispatch on a thread of its own until the feed ends or is
+	 * closed.
+	 */
+	public synchronized void start() {
+		if (live)
+			return;
+		live = true;
+		reader = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					dispatchRemaining();
+				} catch (IOException e) {
+					// Closing the feed stops the read
+					if (live)
+						error = e;
+				}
+			}
+		}, "Detector feed");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Stop reading, and wait for a started feed's thread to finish.
+	 */
+	public void close() throws IOException {
+		Thread stopping;
+		synchronized (this) {
+			live = false;
+			stopping = reader;
+			reader = null;
+		}
+		channel.close();
+		if (stopping != null && stopping != Thread.currentThread()) {
+			try {
+				stopping.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * For a recorded log, the detections up to the time asked about are
+	 * passed on first. If the log can't be read, the detections so far are
+	 * used and the error is kept for getError().
+	 */
+	@Override
+	public boolean isWaiting(int stream, long time) {
+		if (!live && error == null) {
+			try {
+				dispatchUntil(time);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		long last = lastDetected.get(stream);
+		return last != NEVER && time - last < gapMillis;
+	}
+
+	/**
+	 * @return	The number of vehicles detected on a stream so far.
+	 */
+	public long getDetections(int stream) {
+		return detections.get(stream);
+	}
+
+	/**
+	 * @return	The time of the last vehicle detected on a stream, or -1 if
+	 *          there hasn't been one.
+	 */
+	public long getLastDetected(int stream) {
+		long last = lastDetected.get(stream);
+		return last == NEVER ? -1 : last;
+	}
+
+	public int getStreams() {
+		return streams;
+	}
+
+	/**
+	 * @return	Why the feed stopped early, or null.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	private long dispatchRemaining() throws IOException {
+		long dispatched = 0;
+		while (next < batchSize || readBatch()) {
+			for (; next < batchSize; next++, dispatched++)
+				dispatch(next);
+		}
+		return dispatched;
+	}
+
+	private void dispatch(int event) {
+		int stream = eventStreams[event];
+		detections.incrementAndGet(stream);
+		if (times[event] > lastDetected.get(stream))
+			lastDetected.set(stream, times[event]);
+	}
+
+	/**
+	 * Parse the next batch of detections. Only waits for more input if none
+	 * has been buffered, so a live feed passes on what has arrived at once.
+	 *
+	 * @return	false if the feed has ended.
+	 */
+	private boolean readBatch() throws IOException {
+		batchSize = 0;
+		next = 0;
+		if (badLine != null) {
+			// Only once the detections before it have been dispatched
+			IOException e = badLine;
+			badLine = null;
+			throw e;
+		}
+		while (batchSize == 0 || buffer.hasRemaining()) {
+			int end = lineEnd();
+			if (end >= 0) {
+				if (!parseOrKeep(end))
+					break;
+				buffer.position(end + 1);
+			} else if (ended) {
+				// A last line with no line break
+				if (buffer.hasRemaining() && parseOrKeep(buffer.limit()))
+					buffer.position(buffer.limit());
+				break;
+			} else if (batchSize > 0) {
+				break;
+			} else {
+				buffer.compact();
+				if (!buffer.hasRemaining())
+					throw new IOException("Detector line " + (lineNumber + 1) + " is longer than "
+							+ buffer.capacity() + " bytes");
+				int read = channel.read(buffer);
+				buffer.flip();
+				if (read < 0)
+					ended = true;
+			}
+		}
+		return batchSize > 0;
+	}
+
+	/**
+	 * Parse a line into the batch. A bad line after the first of a batch is
+	 * kept to be thrown by the next readBatch(), so the detections before it
+	 * are still dispatched.
+	 *
+	 * @return	false if the line was bad and has been kept.
+	 * @throws IOException	if the first line of the batch is bad.
+	 */
+	private boolean parseOrKeep(int end) throws IOException {
+		try {
+			parseLine(end);
+			return true;
+		} catch (IOException e) {
+			// The line stays in the buffer, and is counted again if read again
+			lineNumber--;
+			if (batchSize == 0)
+				throw e;
+			badLine = e;
+			return false;
+		}
+	}
+
+	/**
+	 * @return	The position of the next line break in the buffer, or -1.
+	 */
+	private int lineEnd() {
+		for (int i = buffer.position(); i < buffer.limit(); i++) {
+			if (buffer.get(i) == '\n')
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Add the detection on a line to the batch, reading straight from the
+	 * buffer.
+	 *
+	 * @param end	Position the line ends at.
+	 * @throws IOException	if the line isn't a detection, blank or a comment.
+	 */
+	private void parseLine(int end) throws IOException {
+		lineNumber++;
+		int i = buffer.position();
+		if (end > i && buffer.get(end - 1) == '\r')
+			end--;
+		i = skipBlanks(i, end);
+		if (i == end || (i + 1 < end && buffer.get(i) == '/' && buffer.get(i + 1) == '/'))
+			return;
+
+		long time = 0;
+		int start = i;
+		for (; i < end && isDigit(buffer.get(i)); i++) {
+			int digit = buffer.get(i) - '0';
+			if (time > (Long.MAX_VALUE - digit) / 10)
+				throw new IOException("Detector line " + lineNumber + " has a time too large");
+			time = time * 10 + digit;
+		}
+		if (i == start || i == end || !isBlank(buffer.get(i)))
+			throw new IOException("Detector line " + lineNumber + " should be a time and a stream");
+		i = skipBlanks(i, end);
+
+		int stream = 0;
+		start = i;
+		for (; i < end && isDigit(buffer.get(i)) && stream < streams; i++)
+			stream = stream * 10 + buffer.get(i) - '0';
+		if (i == start || skipBlanks(i, end) != end)
+			throw new IOException("Detector line " + lineNumber + " should be a time and a stream");
+		if (stream >= streams)
+			throw new IOException("Detector line " + lineNumber + " is for stream " + stream + " of " + streams);
+
+		times[batchSize] = time;
+		eventStreams[batchSize++] = stream;
+	}
+
+	private int skipBlanks(int i, int end) {
+		while (i < end && isBlank(buffer.get(i)))
+			i++;
+		return i;
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+}
@@ -0,0 +1,32 @@
+package traffic.diy;
+
+import traffic.core.TrafficStream;
+import traffic.misc.Detector;
+import traffic.misc.RandomDetector;
+
+/**
+ * Makes the detector for each stream of a fully actuated intersection, so
+ * where the traffic comes from can be chosen when the intersection is built.
+ *
+ * @author cijolly
+ */
+public interface DetectorSource {
+
+	/**
+	 * Detectors that see traffic at random.
+	 */
+	DetectorSource RANDOM = new DetectorSource() {
+
+		@Override
+		public Detector detectorFor(int stream, TrafficStream ts) {
+			return new RandomDetector();
+		}
+	};
+
+	/**
+	 * @param stream	Index of the stream in the description.
+	 * @param ts		The stream.
+	 * @return	The detector to add to the stream.
+	 */
+	Detector detectorFor(int stream, TrafficStream ts);
+}
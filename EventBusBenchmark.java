@@ -0,0 +1,113 @@
+package traffic.diy;
+
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import traffic.core.TrafficStream;
+import traffic.util.State;
+
+/**
+ * JMH benchmarks of telling a number of subscribers about one stream state
+ * change, through Observable.notifyObservers and through an
+ * IntersectionEventBus channel. Both start from the stream notifying its
+ * observers, as a running intersection's changes do, so the bus side
+ * includes the hop from the stream to its channel. The threaded variants
+ * show how each holds up when several simulation threads publish at once.
+ *
+ * @author cijolly
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBusBenchmark {
+
+	/**
+	 * A stream that can be told to notify its observers from outside.
+	 */
+	private static class Source extends TrafficStream {
+		private static final long serialVersionUID = 1L;
+
+		Source(String name) {
+			super(name, "Benchmark stream");
+		}
+
+		void fire(Object arg) {
+			setChanged();
+			notifyObservers(arg);
+		}
+	}
+
+	@Param({ "1", "10", "100" })
+	public int subscribers;
+
+	private Source observed;
+	private Source published;
+
+	/**
+	 * Somewhere for subscribers to write, so their work isn't optimised away.
+	 */
+	private volatile Object last;
+
+	@Setup
+	public void subscribe() {
+		observed = new Source("N->S");
+		published = new Source("S->N");
+		IntersectionEventBus bus = new IntersectionEventBus();
+		// The channel becomes the stream's only observer
+		bus.channel(published);
+		for (int i = 0; i < subscribers; i++) {
+			observed.addObserver(new Observer() {
+
+				@Override
+				public void update(Observable o, Object arg) {
+					last = arg;
+				}
+			});
+			bus.subscribe(published, new IntersectionEventBus.StreamListener() {
+
+				@Override
+				public void streamChanged(TrafficStream changed, State state) {
+					last = state;
+				}
+			});
+		}
+	}
+
+	@Benchmark
+	public void observable() {
+		observed.fire(State.GREEN);
+	}
+
+	@Benchmark
+	public void eventBus() {
+		published.fire(State.GREEN);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void observableContended() {
+		observed.fire(State.GREEN);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void eventBusContended() {
+		published.fire(State.GREEN);
+	}
+}
@@ -0,0 +1,157 @@
+package traffic.diy;
+
+import java.util.List;
+
+import traffic.core.Intersection;
+import traffic.core.Phase;
+import traffic.core.TrafficStream;
+import traffic.diy.IntersectionDescription.FaceDescription;
+import traffic.diy.IntersectionDescription.PhaseDescription;
+import traffic.diy.IntersectionDescription.StreamDescription;
+import traffic.phaseplan.FullyActuatedPhasePlan;
+import traffic.phaseplan.PhasePlan;
+import traffic.phaseplan.PretimedPhasePlan;
+import traffic.signal.SignalFace;
+
+/**
+ * Builds an intersection one part at a time as its description is read.
+ * Each stream, phase and signal face exists as soon as its part has been
+ * read, so it can be shown before the rest of the description arrives.
+ *
+ * Signal faces are subscribed to their streams through the bus, and if the
+ * plans are fully actuated each stream gets a detector from the
+ * DetectorSource once the whole description has been read. Faces that will
+ * be painted from the description, as SignalFaceArrayView does, needn't be
+ * built at all; see setSignalFaces().
+ *
+ * @author cijolly
+ */
+public class IntersectionBuilder implements IntersectionDescription.Listener {
+
+	private final IntersectionEventBus bus;
+	private Intersection intersection;
+	private TrafficStream[] trafficStreams = new TrafficStream[0];
+	private PhasePlan phasePlan;
+	private Phase lastPhase;
+	private SignalFace lastFace;
+	private boolean preTimed = true;
+	private boolean complete = false;
+	private boolean signalFaces = true;
+	private DetectorSource detectors = DetectorSource.RANDOM;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param bus	The bus to subscribe the signal faces through.
+	 */
+	public IntersectionBuilder(IntersectionEventBus bus) {
+		this.bus = bus;
+	}
+
+	/**
+	 * @param detectors	Makes the detectors of a fully actuated intersection.
+	 *                  Random unless set.
+	 */
+	public void setDetectors(DetectorSource detectors) {
+		this.detectors = detectors;
+	}
+
+	/**
+	 * @param signalFaces	false to leave the intersection without signal
+	 *                      faces, when something else shows them. Built
+	 *                      unless set.
+	 */
+	public void setSignalFaces(boolean signalFaces) {
+		this.signalFaces = signalFaces;
+	}
+
+	@Override
+	public void intersectionRead(IntersectionDescription description) {
+		intersection = new Intersection(description.getName(), description.getDescription());
+	}
+
+	@Override
+	public void streamsRead(List<StreamDescription> streams) {
+		trafficStreams = new TrafficStream[streams.size()];
+		for (int i = 0; i < trafficStreams.length; i++)
+			trafficStreams[i] = new TrafficStream(streams.get(i).getName(), streams.get(i).getDescription());
+	}
+
+	@Override
+	public void planStarted(int plan, boolean preTimed) {
+		this.preTimed = preTimed;
+		if (preTimed)
+			phasePlan = new PretimedPhasePlan();
+		else
+			phasePlan = new FullyActuatedPhasePlan();
+	}
+
+	@Override
+	public void phaseRead(int plan, int phase, PhaseDescription description) {
+		lastPhase = new Phase(description.getName(), description.getDescription());
+		for (int i = 0; i < trafficStreams.length; i++)
+			lastPhase.addStream(trafficStreams[i], description.getStreamState(i));
+		lastPhase.setMinGreenInterval(description.getMinGreenInterval());
+		phasePlan.add(lastPhase);
+	}
+
+	@Override
+	public void planRead(int plan) {
+		intersection.addPlan(phasePlan);
+	}
+
+	@Override
+	public void faceRead(int face, FaceDescription description) {
+		if (!signalFaces)
+			return;
+		lastFace = new SignalFace(description.getLocation(), description.getFacing(), description.getFaceType());
+		bus.subscribeObserver(trafficStreams[description.getStream()], lastFace);
+		intersection.addSignalFace(lastFace);
+	}
+
+	@Override
+	public void descriptionRead(IntersectionDescription description) {
+		//If this interection is fully actuated, add detectors to the traffic streams.
+		if (!preTimed) {
+			for (int i = 0; i < trafficStreams.length; i++)
+				trafficStreams[i].addDetector(detectors.detectorFor(i, trafficStreams[i]));
+		}
+		complete = true;
+	}
+
+	/**
+	 * @return	The intersection, which may not have all its parts yet.
+	 */
+	public Intersection getIntersection() {
+		return intersection;
+	}
+
+	/**
+	 * @return	true once the whole description has been read.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return	The streams, in description order. Not to be changed.
+	 */
+	public TrafficStream[] getStreams() {
+		return trafficStreams;
+	}
+
+	/**
+	 * @return	The phase built for the last phaseRead().
+	 */
+	public Phase getLastPhase() {
+		return lastPhase;
+	}
+
+	/**
+	 * @return	The signal face built for the last faceRead(), or null if
+	 *          faces aren't being built.
+	 */
+	public SignalFace getLastFace() {
+		return lastFace;
+	}
+}
@@ -0,0 +1,261 @@
+package traffic.diy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import traffic.core.Intersection;
+
+/**
+ * Cache of parsed intersection descriptions, keyed by a hash of the content of
+ * the description file. Changing a file changes its key, so stale entries are
+ * never used, they just age out.
+ *
+ * Recently used descriptions are kept in memory. Every description is also
+ * saved to a directory in binary form, which is limited in size by removing
+ * the least recently used files. The cache is safe to use from several threads.
+ *
+ * @author cijolly
+ */
+public class IntersectionCache {
+
+	private static final String SUFFIX = ".ucib";
+
+	private final File directory;
+	private final long maxDiskBytes;
+	private final LinkedHashMap<String, IntersectionDescription> memory;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param directory			Where to keep the binary files. Created if it doesn't exist.
+	 * @param maxDiskBytes		Largest total size of the binary files.
+	 * @param maxMemoryEntries	Most descriptions to keep in memory.
+	 */
+	public IntersectionCache(File directory, long maxDiskBytes, final int maxMemoryEntries) {
+		this.directory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		// Access ordered, so the eldest entry is the least recently used
+		this.memory = new LinkedHashMap<String, IntersectionDescription>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, IntersectionDescription> eldest) {
+				return size() > maxMemoryEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get the description in a file, from memory or disk if it has been seen
+	 * before, otherwise by parsing it. Descriptions may be shared between
+	 * callers, so shouldn't be modified.
+	 *
+	 * @param source	An intersection description file.
+	 * @return	The description.
+	 * @throws IOException	if the file can't be read.
+	 * @throws IntersectionLoadException	if the file isn't a valid description.
+	 */
+	public IntersectionDescription load(File source) throws IOException, IntersectionLoadException {
+		return load(source, null);
+	}
+
+	/**
+	 * Get the description in a file, telling a listener about each part as
+	 * it is read. A description that has been seen before is given to the
+	 * listener all at once.
+	 *
+	 * @param source	An intersection description file.
+	 * @param listener	Who to tell about each part, or null for no-one.
+	 * @return	The description.
+	 * @throws IOException	if the file can't be read.
+	 * @throws IntersectionLoadException	if the file isn't a valid description.
+	 */
+	public IntersectionDescription load(File source, IntersectionDescription.Listener listener)
+			throws IOException, IntersectionLoadException {
+		byte[] content = Files.readAllBytes(source.toPath());
+		String key = hash(content);
+
+		IntersectionDescription description;
+		synchronized (memory) {
+			description = memory.get(key);
+		}
+		if (description != null) {
+			// Keep its file from being evicted before ones used less recently
+			new File(directory, key + SUFFIX).setLastModified(System.currentTimeMillis());
+			if (listener != null)
+				description.publish(listener);
+			return description;
+		}
+
+		description = readFromDisk(key);
+		if (description == null) {
+			// Read the same way MyIntersectionMonitor does, with the default character set
+			BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content)));
+			MyIntersectionLoader loader = new MyIntersectionLoader(br);
+			loader.setListener(listener);
+			description = loader.loadDescription();
+			writeToDisk(key, description);
+		} else if (listener != null) {
+			description.publish(listener);
+		}
+
+		synchronized (memory) {
+			memory.put(key, description);
+		}
+		return description;
+	}
+
+	/**
+	 * Get the description in a file, and build it.
+	 *
+	 * @param source	An intersection description file.
+	 * @return	A new intersection.
+	 * @throws IOException	if the file can't be read.
+	 * @throws IntersectionLoadException	if the file isn't a valid description.
+	 */
+	public Intersection loadIntersection(File source) throws IOException, IntersectionLoadException {
+		return load(source).build();
+	}
+
+	/**
+	 * Forget everything held in memory. Files on disk are kept.
+	 */
+	public void clearMemory() {
+		synchronized (memory) {
+			memory.clear();
+		}
+	}
+
+	/**
+	 * @return	A SHA-256 hash of the content, in hex.
+	 */
+	private static String hash(byte[] content) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+		byte[] hash = digest.digest(content);
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for (byte b : hash)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	/**
+	 * @return	The cached description, or null if there isn't a readable one.
+	 */
+	private IntersectionDescription readFromDisk(String key) {
+		File cached = new File(directory, key + SUFFIX);
+		if (!cached.isFile())
+			return null;
+		try {
+			BufferedInputStream in = new BufferedInputStream(new FileInputStream(cached));
+			try {
+				IntersectionDescription description = BinaryIntersectionFormat.read(in);
+				// Mark as recently used, for eviction
+				cached.setLastModified(System.currentTimeMillis());
+				return description;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Unreadable or from an old version, so parse the source again
+			cached.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Save a description, then remove the least recently used files until the
+	 * directory is back within its size limit. Failing to save isn't an error,
+	 * the description just won't be cached on disk.
+	 */
+	private void writeToDisk(String key, IntersectionDescription description) {
+		File temp = null;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				return;
+			// Write to a temporary file first, so other readers never see part of a file
+			temp = File.createTempFile(key, ".tmp", directory);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+			try {
+				BinaryIntersectionFormat.write(description, out);
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), new File(directory, key + SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		} finally {
+			// Only left if it couldn't be written or moved
+			if (temp != null)
+				temp.delete();
+		}
+		evict();
+	}
+
+	/**
+	 * Remove the least recently used cached files until the rest fit.
+	 * Temporary files being written by other threads aren't counted.
+	 */
+	private synchronized void evict() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		if (files == null)
+			return;
+		long total = 0;
+		long[] lengths = new long[files.length];
+		// Times are read once, as another thread may touch a file while sorting
+		final long[] used = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			lengths[i] = files[i].length();
+			used[i] = files[i].lastModified();
+			order[i] = i;
+			total += lengths[i];
+		}
+		if (total <= maxDiskBytes)
+			return;
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(used[a], used[b]);
+			}
+		});
+		for (int i : order) {
+			if (total <= maxDiskBytes)
+				break;
+			if (files[i].delete())
+				total -= lengths[i];
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package traffic.diy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import traffic.core.Intersection;
+
+/**
+ * A file holding many intersection descriptions, with an index of where each
+ * one starts so they can be parsed independently and in parallel.
+ *
+ * The file starts with a header:
+ * <pre>
+ * int  MAGIC
+ * int  VERSION
+ * int  number of records
+ * number of records * (long offset, int length)
+ * </pre>
+ * followed by the records, each the ASCII text of a single intersection
+ * description in the usual tag/tab format.
+ *
+ * @author cijolly
+ */
+public class IntersectionContainer {
+
+	public static final int MAGIC = 0x55434943; // "UCIC"
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 12;
+	private static final int INDEX_ENTRY_SIZE = 12;
+
+	/**
+	 * Records handled by one fork-join task before it stops splitting.
+	 */
+	private static final int RECORDS_PER_TASK = 16;
+
+	private final MappedByteBuffer mapped;
+	private final long[] offsets;
+	private final int[] lengths;
+
+	/**
+	 * Open a container file and read its index.
+	 *
+	 * @param file	The container to open.
+	 * @throws IOException	if the file can't be read or isn't a valid container.
+	 */
+	public IntersectionContainer(File file) throws IOException {
+		FileInputStream inFile = new FileInputStream(file);
+		try {
+			FileChannel channel = inFile.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Container too large to map: " + file);
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			inFile.close();
+		}
+
+		if (mapped.limit() < HEADER_SIZE || mapped.getInt(0) != MAGIC)
+			throw new IOException("Not an intersection container: " + file);
+		if (mapped.getInt(4) != VERSION)
+			throw new IOException("Unsupported container version " + mapped.getInt(4) + ": " + file);
+		int count = mapped.getInt(8);
+		if (count < 0 || HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE > mapped.limit())
+			throw new IOException("Corrupt container index: " + file);
+
+		offsets = new long[count];
+		lengths = new int[count];
+		for (int i = 0; i < count; i++) {
+			int entry = HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+			offsets[i] = mapped.getLong(entry);
+			lengths[i] = mapped.getInt(entry + 8);
+			if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] + lengths[i] > mapped.limit())
+				throw new IOException("Corrupt container index: " + file);
+		}
+	}
+
+	/**
+	 * @return	The number of intersection records in the container.
+	 */
+	public int size() {
+		return offsets.length;
+	}
+
+	/**
+	 * Parse a single record. Each call uses its own view of the file and its own
+	 * loader, so records can be loaded from several threads at once.
+	 *
+	 * @param record	Index of the record to load.
+	 * @return	The intersection described by the record.
+	 * @throws IntersectionLoadException	if the description is invalid. The line number is counted from the start of the record.
+	 */
+	public Intersection load(int record) throws IntersectionLoadException {
+		ByteBuffer view = mapped.duplicate();
+		view.position((int) offsets[record]);
+		view.limit((int) offsets[record] + lengths[record]);
+		MyIntersectionLoader il = new MyIntersectionLoader(new IntersectionScanner(view.slice()));
+		return il.loadIntersection();
+	}
+
+	/**
+	 * Parse every record in parallel.
+	 *
+	 * @param pool	The pool to parse the records on.
+	 * @return	The intersections, in the same order as the records.
+	 * @throws IntersectionLoadException	if any description is invalid. The reason says which record it was.
+	 */
+	public List<Intersection> loadAll(ForkJoinPool pool) throws IntersectionLoadException {
+		Intersection[] intersections = new Intersection[offsets.length];
+		IntersectionLoadException[] errors = new IntersectionLoadException[offsets.length];
+		pool.invoke(new LoadRecords(intersections, errors, 0, offsets.length));
+		for (int i = 0; i < errors.length; i++) {
+			if (errors[i] != null)
+				throw new IntersectionLoadException(errors[i].getSection(), errors[i].getLineNumber(),
+						"Record " + i + ": " + errors[i].getReason());
+		}
+		return Arrays.asList(intersections);
+	}
+
+	/**
+	 * Write a container holding the given intersection descriptions.
+	 *
+	 * @param container		The file to write.
+	 * @param descriptions	The ASCII text of each intersection description.
+	 * @throws IOException	if the file can't be written.
+	 */
+	public static void write(File container, List<String> descriptions) throws IOException {
+		ArrayList<byte[]> records = new ArrayList<byte[]>(descriptions.size());
+		for (String description : descriptions)
+			records.add(description.getBytes(StandardCharsets.US_ASCII));
+		writeRecords(container, records);
+	}
+
+	/**
+	 * Split a file of concatenated intersection descriptions into records, one
+	 * starting at each Intersection tag, and write them to a container.
+	 *
+	 * @param concatenated	File holding the intersection descriptions one after another.
+	 * @param container		The file to write.
+	 * @throws IOException	if either file can't be accessed.
+	 */
+	public static void pack(File concatenated, File container) throws IOException {
+		byte[] text = Files.readAllBytes(concatenated.toPath());
+		byte[] tag = traffic.load.Tag.INTERSECTION.getBytes(StandardCharsets.US_ASCII);
+		ArrayList<byte[]> records = new ArrayList<byte[]>();
+		int recordStart = 0;
+		int lineStart = 0;
+		boolean tagSeen = false;
+		while (lineStart < text.length) {
+			int lineEnd = lineStart;
+			while (lineEnd < text.length && text[lineEnd] != '\n' && text[lineEnd] != '\r')
+				lineEnd++;
+			//Anything before the first tag (such as comments) stays with the first record
+			if (isLine(text, lineStart, lineEnd, tag)) {
+				if (tagSeen) {
+					records.add(Arrays.copyOfRange(text, recordStart, lineStart));
+					recordStart = lineStart;
+				}
+				tagSeen = true;
+			}
+			lineStart = lineEnd + 1;
+		}
+		if (recordStart < text.length)
+			records.add(Arrays.copyOfRange(text, recordStart, text.length));
+		writeRecords(container, records);
+	}
+
+	/**
+	 * Load a container with every available core, and report how long it took.
+	 */
+	public static void main(String[] args) {
+		for (String name : args) {
+			try {
+				long startTime = System.nanoTime();
+				IntersectionContainer container = new IntersectionContainer(new File(name));
+				List<Intersection> intersections = container.loadAll(ForkJoinPool.commonPool());
+				double millis = (System.nanoTime() - startTime) / 1e6;
+				System.out.printf("%s: %d intersections in %.1f ms on %d threads%n", name, intersections.size(),
+						millis, ForkJoinPool.commonPool().getParallelism());
+			} catch (IntersectionLoadException e) {
+				System.out.println(name + ": " + e.getMessage());
+			} catch (IOException e) {
+				System.out.println(name + ": unable to read container");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void writeRecords(File container, List<byte[]> records) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(container)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(records.size());
+			long offset = HEADER_SIZE + (long) records.size() * INDEX_ENTRY_SIZE;
+			for (byte[] record : records) {
+				out.writeLong(offset);
+				out.writeInt(record.length);
+				offset += record.length;
+			}
+			for (byte[] record : records)
+				out.write(record);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static boolean isLine(byte[] text, int start, int end, byte[] line) {
+		if (end - start != line.length)
+			return false;
+		for (int i = 0; i < line.length; i++) {
+			if (text[start + i] != line[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Load a range of records, splitting it in half until it is small enough to
+	 * parse directly. Errors are kept against the record rather than thrown, so
+	 * one bad record doesn't stop the others being checked.
+	 */
+	private class LoadRecords extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Intersection[] intersections;
+		private final IntersectionLoadException[] errors;
+		private final int from;
+		private final int to;
+
+		LoadRecords(Intersection[] intersections, IntersectionLoadException[] errors, int from, int to) {
+			this.intersections = intersections;
+			this.errors = errors;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= RECORDS_PER_TASK) {
+				for (int i = from; i < to; i++) {
+					try {
+						intersections[i] = load(i);
+					} catch (IntersectionLoadException e) {
+						errors[i] = e;
+					}
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new LoadRecords(intersections, errors, from, middle),
+						new LoadRecords(intersections, errors, middle, to));
+			}
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package traffic.diy;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.GridLayout;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+
+import javax.swing.BorderFactory;
+import javax.swing.BoxLayout;
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.Timer;
+
+import traffic.core.Intersection;
+import traffic.core.TrafficStream;
+
+/**
+ * Shows many running intersections at once, as a grid of small tiles. Each
+ * tile has the intersection's name, its running phase and a dot for each
+ * stream. Double clicking a tile opens the intersection's phases and signal
+ * faces in a window of its own.
+ *
+ * Nothing is pushed to the dashboard. One timer reads the status of the
+ * tiles in view, and of the open intersection windows, a few times a
+ * second, and repaints only those that have changed. However many
+ * intersections are running, the work done on the EDT is bounded by what is
+ * on screen.
+ *
+ * Use this on the EDT.
+ *
+ * @author cijolly
+ */
+public class IntersectionDashboard extends JPanel {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default time between refreshes, in milliseconds.
+	 */
+	public static final int DEFAULT_REFRESH_MILLIS = 250;
+
+	/**
+	 * Default tiles in each row.
+	 */
+	public static final int DEFAULT_COLUMNS = 5;
+
+	private static final int TILE_WIDTH = 150;
+	private static final int TILE_HEIGHT = 72;
+	private static final int DOT_SIZE = 6;
+	private static final int GAP = 4;
+	private static final int PHASE_ROWS = 8;
+
+	/**
+	 * One intersection's tile.
+	 */
+	private class Tile extends JComponent {
+
+		private static final long serialVersionUID = 1L;
+
+		private final IntersectionStatus status;
+		private final PackedPhaseStates shown;
+		private int phase = -1;
+		private long version = -1;
+
+		Tile(final IntersectionStatus status) {
+			this.status = status;
+			shown = new PackedPhaseStates(status.streamCount());
+			setPreferredSize(new Dimension(TILE_WIDTH, TILE_HEIGHT));
+			setToolTipText(status.getName());
+			addMouseListener(new MouseAdapter() {
+
+				@Override
+				public void mouseClicked(MouseEvent e) {
+					if (e.getClickCount() == 2)
+						showDetail(status);
+				}
+			});
+		}
+
+		/**
+		 * Catch up with the status, and repaint if it has changed.
+		 */
+		void refresh() {
+			long latest = status.getVersion();
+			if (latest == version)
+				return;
+			version = latest;
+			phase = status.read(shown);
+			repaint();
+		}
+
+		@Override
+		protected void paintComponent(Graphics g) {
+			g.setColor(phase < 0 ? Color.LIGHT_GRAY : Color.WHITE);
+			g.fillRect(0, 0, getWidth(), getHeight());
+			g.setColor(Color.GRAY);
+			g.drawRect(0, 0, getWidth() - 1, getHeight() - 1);
+
+			g.setColor(Color.BLACK);
+			Font font = getFont();
+			g.setFont(font.deriveFont(Font.BOLD));
+			FontMetrics metrics = g.getFontMetrics();
+			int y = GAP + metrics.getAscent();
+			g.drawString(status.getName(), GAP, y);
+			g.setFont(font);
+			metrics = g.getFontMetrics();
+			y += metrics.getHeight();
+			g.drawString(phase < 0 ? "Not started" : status.getPhaseName(phase), GAP, y);
+
+			// As many stream dots as fit
+			int x = GAP;
+			y += metrics.getDescent() + GAP;
+			for (int s = 0; s < shown.size() && y + DOT_SIZE <= getHeight() - GAP; s++) {
+				g.setColor(PhaseTableView.colourForState(shown.get(s)));
+				g.fillRect(x, y, DOT_SIZE, DOT_SIZE);
+				x += DOT_SIZE + 2;
+				if (x + DOT_SIZE > getWidth() - GAP) {
+					x = GAP;
+					y += DOT_SIZE + 2;
+				}
+			}
+		}
+	}
+
+	/**
+	 * One intersection shown in full in a window of its own.
+	 */
+	private class Detail {
+		private final IntersectionStatus status;
+		private final JFrame frame;
+		private final IntersectionStatusView view;
+
+		Detail(IntersectionStatus status) {
+			this.status = status;
+			IntersectionDescription description = status.getDescription();
+			CompiledPhasePlan plan;
+			if (status.getPlan() != null) {
+				plan = status.getPlan();
+			} else {
+				// Only simulated, so build it to have streams and phases to show.
+				// The faces are painted from the description.
+				Intersection built = description.build(new IntersectionEventBus(), DetectorSource.RANDOM, false);
+				plan = new CompiledPhasePlan(built.getPlan(), description);
+			}
+
+			JPanel content = new JPanel();
+			content.setLayout(new BoxLayout(content, BoxLayout.Y_AXIS));
+			SignalFaceArrayView faceView = null;
+			if (description != null) {
+				faceView = new SignalFaceArrayView();
+				for (IntersectionDescription.FaceDescription face : description.getFaces())
+					faceView.addFace(face.getLocation(), face.getFacing(), face.getFaceType(),
+							plan.getStream(face.getStream()));
+				content.add(faceView);
+			}
+			PhaseTableView phaseTable = new PhaseTableView(PHASE_ROWS);
+			phaseTable.setStreams(streams(plan));
+			for (int p = 0; p < plan.phaseCount(); p++)
+				phaseTable.addPhase(plan.getPhase(p), plan.getStates(p));
+			content.add(phaseTable);
+			view = new IntersectionStatusView(status, plan, phaseTable, faceView);
+
+			frame = new JFrame(status.getName());
+			frame.add(new JScrollPane(content));
+			frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+			frame.addWindowListener(new WindowAdapter() {
+
+				@Override
+				public void windowClosed(WindowEvent we) {
+					details.remove(Detail.this);
+				}
+			});
+			frame.pack();
+		}
+
+		void refresh() {
+			view.refresh();
+		}
+	}
+
+	private final JPanel grid;
+	private final ArrayList<Tile> tiles = new ArrayList<Tile>();
+	private final ArrayList<Detail> details = new ArrayList<Detail>();
+	private final Timer timer;
+
+	/**
+	 * Constructor for class.
+	 */
+	public IntersectionDashboard() {
+		this(DEFAULT_COLUMNS, DEFAULT_REFRESH_MILLIS);
+	}
+
+	/**
+	 * @param columns		Tiles in each row.
+	 * @param refreshMillis	Time between refreshes, in milliseconds.
+	 */
+	public IntersectionDashboard(int columns, int refreshMillis) {
+		super(new BorderLayout());
+		grid = new JPanel(new GridLayout(0, columns, GAP, GAP));
+		grid.setBorder(BorderFactory.createEmptyBorder(GAP, GAP, GAP, GAP));
+		JScrollPane scroll = new JScrollPane(grid);
+		scroll.getVerticalScrollBar().setUnitIncrement(TILE_HEIGHT / 2);
+		add(scroll, BorderLayout.CENTER);
+
+		timer = new Timer(refreshMillis, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+	}
+
+	/**
+	 * Add a tile for an intersection.
+	 */
+	public void add(IntersectionStatus status) {
+		Tile tile = new Tile(status);
+		tiles.add(tile);
+		grid.add(tile);
+		grid.revalidate();
+	}
+
+	/**
+	 * Take away an intersection's tile, and close its window if it is open.
+	 */
+	public void remove(IntersectionStatus status) {
+		for (int t = 0; t < tiles.size(); t++) {
+			if (tiles.get(t).status == status) {
+				grid.remove(tiles.remove(t));
+				break;
+			}
+		}
+		for (Detail detail : new ArrayList<Detail>(details)) {
+			if (detail.status == status)
+				detail.frame.dispose();
+		}
+		grid.revalidate();
+		grid.repaint();
+	}
+
+	public int getIntersections() {
+		return tiles.size();
+	}
+
+	/**
+	 * Open an intersection's phases and signal faces in a window of its own.
+	 */
+	public void showDetail(IntersectionStatus status) {
+		for (Detail detail : details) {
+			if (detail.status == status) {
+				detail.frame.toFront();
+				return;
+			}
+		}
+		Detail detail = new Detail(status);
+		details.add(detail);
+		detail.refresh();
+		detail.frame.setVisible(true);
+	}
+
+	/**
+	 * Start refreshing. Done automatically while the dashboard is showing.
+	 */
+	public void start() {
+		timer.start();
+	}
+
+	public void stop() {
+		timer.stop();
+	}
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		start();
+	}
+
+	@Override
+	public void removeNotify() {
+		stop();
+		super.removeNotify();
+	}
+
+	/**
+	 * Catch up the tiles in view and the open windows.
+	 */
+	private void refresh() {
+		Rectangle visible = grid.getVisibleRect();
+		for (Tile tile : tiles) {
+			if (tile.getBounds().intersects(visible))
+				tile.refresh();
+		}
+		for (Detail detail : new ArrayList<Detail>(details))
+			detail.refresh();
+	}
+
+	private static TrafficStream[] streams(CompiledPhasePlan plan) {
+		TrafficStream[] streams = new TrafficStream[plan.streamCount()];
+		for (int s = 0; s < streams.length; s++)
+			streams[s] = plan.getStream(s);
+		return streams;
+	}
+}
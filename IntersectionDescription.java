@@ -0,0 +1,352 @@
+package traffic.diy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import traffic.core.Intersection;
+import traffic.diy.MyIntersectionLoader.IntersectionTextParser;
+import traffic.load.Tag;
+import traffic.util.State;
+import traffic.util.TrafficDirection;
+
+/**
+ * The data read from an intersection description, before it has been built
+ * into an intersection. Streams are referred to by their index in the order
+ * they were described, so a description can be saved and rebuilt without
+ * the observers that connect the built objects.
+ *
+ * @author cijolly
+ */
+public class IntersectionDescription {
+
+	/**
+	 * Told about each part of a description as soon as it has been read, so
+	 * an intersection can be built and shown before the whole file is read.
+	 * Parts are given in file order.
+	 */
+	public interface Listener {
+		/**
+		 * @param description	The description so far, with its name and
+		 *                      description.
+		 */
+		void intersectionRead(IntersectionDescription description);
+
+		/**
+		 * @param streams	Every stream, in description order.
+		 */
+		void streamsRead(List<StreamDescription> streams);
+
+		/**
+		 * @param plan		Index of the plan about to be read.
+		 * @param preTimed	true if the plan is pre-timed, false if fully actuated.
+		 */
+		void planStarted(int plan, boolean preTimed);
+
+		/**
+		 * @param plan	Index of the plan the phase is in.
+		 * @param phase	Index of the phase in its plan.
+		 */
+		void phaseRead(int plan, int phase, PhaseDescription description);
+
+		void planRead(int plan);
+
+		/**
+		 * @param face	Index of the face.
+		 */
+		void faceRead(int face, FaceDescription description);
+
+		/**
+		 * The whole description has been read.
+		 */
+		void descriptionRead(IntersectionDescription description);
+	}
+
+	/**
+	 * A traffic stream, as described by a line between the TrafficStreams tags.
+	 */
+	public static class StreamDescription {
+		private final String name;
+		private final String description;
+
+		public StreamDescription(String name, String description) {
+			this.name = name;
+			this.description = description;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+
+	/**
+	 * A phase, as described by a line between the Phases tags.
+	 */
+	public static class PhaseDescription {
+		private final String name;
+		private final String description;
+		private final PackedPhaseStates streamStates;
+		private final int minGreenInterval;
+
+		/**
+		 * @param name				Name of the phase.
+		 * @param description		Description of the phase.
+		 * @param streamStates		State of each stream during the phase, in stream order.
+		 * @param minGreenInterval	Time the phase lasts for, in seconds.
+		 */
+		public PhaseDescription(String name, String description, PackedPhaseStates streamStates, int minGreenInterval) {
+			this.name = name;
+			this.description = description;
+			this.streamStates = streamStates;
+			this.minGreenInterval = minGreenInterval;
+		}
+
+		public PhaseDescription(String name, String description, State[] streamStates, int minGreenInterval) {
+			this(name, description, PackedPhaseStates.pack(streamStates), minGreenInterval);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * @param stream	Index of a stream.
+		 * @return	The state of the stream during this phase.
+		 */
+		public State getStreamState(int stream) {
+			return streamStates.get(stream);
+		}
+
+		/**
+		 * @return	The state of every stream during this phase. Not to be changed.
+		 */
+		public PackedPhaseStates getStreamStates() {
+			return streamStates;
+		}
+
+		public int getMinGreenInterval() {
+			return minGreenInterval;
+		}
+	}
+
+	/**
+	 * A signal face, as described by a line between the SignalFaces tags.
+	 */
+	public static class FaceDescription {
+		private final TrafficDirection location;
+		private final TrafficDirection facing;
+		private final int faceType;
+		private final int stream;
+
+		/**
+		 * @param location	Where the face is.
+		 * @param facing	Which way the face points.
+		 * @param faceType	Shape of the face, one of the SignalFace constants.
+		 * @param stream	Index of the stream the face shows.
+		 */
+		public FaceDescription(TrafficDirection location, TrafficDirection facing, int faceType, int stream) {
+			this.location = location;
+			this.facing = facing;
+			this.faceType = faceType;
+			this.stream = stream;
+		}
+
+		public TrafficDirection getLocation() {
+			return location;
+		}
+
+		public TrafficDirection getFacing() {
+			return facing;
+		}
+
+		public int getFaceType() {
+			return faceType;
+		}
+
+		public int getStream() {
+			return stream;
+		}
+	}
+
+	private final String name;
+	private final String description;
+	private boolean preTimed = true;
+	private final ArrayList<StreamDescription> streams = new ArrayList<StreamDescription>();
+	private final ArrayList<List<PhaseDescription>> plans = new ArrayList<List<PhaseDescription>>();
+	private final ArrayList<FaceDescription> faces = new ArrayList<FaceDescription>();
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param name			Name of the intersection.
+	 * @param description	Description of the intersection.
+	 */
+	public IntersectionDescription(String name, String description) {
+		this.name = name;
+		this.description = description;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * @return	true if the phase plans are pre-timed, false if they are fully actuated.
+	 */
+	public boolean isPreTimed() {
+		return preTimed;
+	}
+
+	public void setPreTimed(boolean preTimed) {
+		this.preTimed = preTimed;
+	}
+
+	/**
+	 * Add a stream after those already described.
+	 *
+	 * @return	The index of the new stream.
+	 */
+	public int addStream(StreamDescription stream) {
+		streams.add(stream);
+		return streams.size() - 1;
+	}
+
+	public List<StreamDescription> getStreams() {
+		return Collections.unmodifiableList(streams);
+	}
+
+	/**
+	 * @param phases	The phases of the plan, in the order they run.
+	 */
+	public void addPlan(List<PhaseDescription> phases) {
+		plans.add(phases);
+	}
+
+	public List<List<PhaseDescription>> getPlans() {
+		return Collections.unmodifiableList(plans);
+	}
+
+	public void addFace(FaceDescription face) {
+		faces.add(face);
+	}
+
+	public List<FaceDescription> getFaces() {
+		return Collections.unmodifiableList(faces);
+	}
+
+	/**
+	 * Write the description in the intersection file format, so that
+	 * MyIntersectionLoader reads back the same description. Names and
+	 * descriptions mustn't contain tabs or line breaks.
+	 *
+	 * @param out	Where to write the text.
+	 * @throws IOException	if the text can't be written.
+	 */
+	public void writeText(Appendable out) throws IOException {
+		out.append(Tag.INTERSECTION).append('\n');
+		out.append(name).append('\t').append(description).append('\n');
+		out.append(Tag.END_INTERSECTION).append('\n');
+
+		out.append(Tag.TRAFFIC_STREAMS).append('\n');
+		for (StreamDescription stream : streams)
+			out.append(stream.getName()).append('\t').append(stream.getDescription()).append('\n');
+		out.append(Tag.END_TRAFFIC_STREAMS).append('\n');
+
+		out.append(preTimed ? Tag.PHASEPLAN : "<PhasePlanActuated>").append('\n');
+		for (List<PhaseDescription> phases : plans) {
+			out.append(Tag.PHASES).append('\n');
+			for (PhaseDescription phase : phases) {
+				out.append(phase.getName()).append('\t').append(phase.getDescription()).append('\t');
+				for (int i = 0; i < streams.size(); i++)
+					out.append(IntersectionTextParser.StateToChar(phase.getStreamState(i)));
+				out.append('\t').append(Integer.toString(phase.getMinGreenInterval())).append('\n');
+			}
+			out.append(Tag.END_PHASES).append('\n');
+		}
+		out.append(Tag.END_PHASEPLAN).append('\n');
+
+		out.append(Tag.SIGNAL_FACES).append('\n');
+		for (FaceDescription face : faces) {
+			out.append(IntersectionTextParser.DirectionToString(face.getLocation())).append('\t');
+			out.append(IntersectionTextParser.DirectionToString(face.getFacing())).append('\t');
+			out.append(IntersectionTextParser.FaceTypeToString(face.getFaceType())).append('\t');
+			out.append(streams.get(face.getStream()).getName()).append('\n');
+		}
+		out.append(Tag.END_SIGNAL_FACES).append('\n');
+	}
+
+	/**
+	 * Tell a listener about every part of the description, in the order it
+	 * would have been told while the description was read.
+	 */
+	public void publish(Listener listener) {
+		listener.intersectionRead(this);
+		listener.streamsRead(getStreams());
+		for (int p = 0; p < plans.size(); p++) {
+			listener.planStarted(p, preTimed);
+			List<PhaseDescription> phases = plans.get(p);
+			for (int i = 0; i < phases.size(); i++)
+				listener.phaseRead(p, i, phases.get(i));
+			listener.planRead(p);
+		}
+		for (int f = 0; f < faces.size(); f++)
+			listener.faceRead(f, faces.get(f));
+		listener.descriptionRead(this);
+	}
+
+	/**
+	 * Build the intersection. Signal faces are subscribed to their streams
+	 * through a new event bus, and if the plans are fully actuated each
+	 * stream gets a detector.
+	 *
+	 * @return	A new intersection, ready to display and start.
+	 */
+	public Intersection build() {
+		return build(new IntersectionEventBus());
+	}
+
+	/**
+	 * @param bus	The bus to subscribe the signal faces through.
+	 * @return	A new intersection, ready to display and start.
+	 */
+	public Intersection build(IntersectionEventBus bus) {
+		return build(bus, DetectorSource.RANDOM);
+	}
+
+	/**
+	 * @param bus		The bus to subscribe the signal faces through.
+	 * @param detectors	Makes the detectors, if the plans are fully actuated.
+	 * @return	A new intersection, ready to display and start.
+	 */
+	public Intersection build(IntersectionEventBus bus, DetectorSource detectors) {
+		return build(bus, detectors, true);
+	}
+
+	/**
+	 * @param bus			The bus to subscribe the signal faces through.
+	 * @param detectors		Makes the detectors, if the plans are fully actuated.
+	 * @param signalFaces	false to leave out the signal faces, when they are
+	 *                      painted from this description instead.
+	 * @return	A new intersection, ready to display and start.
+	 */
+	public Intersection build(IntersectionEventBus bus, DetectorSource detectors, boolean signalFaces) {
+		IntersectionBuilder builder = new IntersectionBuilder(bus);
+		builder.setDetectors(detectors);
+		builder.setSignalFaces(signalFaces);
+		publish(builder);
+		return builder.getIntersection();
+	}
+}
@@ -0,0 +1,297 @@
+package traffic.diy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import traffic.core.Phase;
+import traffic.core.TrafficStream;
+import traffic.util.State;
+
+/**
+ * Typed publish/subscribe for stream state and phase changes. Each stream or
+ * phase gets one channel, which is its only Observer; the channel passes
+ * each change on to its subscribers.
+ *
+ * Subscribers are kept in arrays that are replaced, never changed, when
+ * someone subscribes or unsubscribes. Publishing reads the current array and
+ * calls each subscriber in turn, with no locks and no copying. Every publish
+ * is counted, and timed in IntersectionMetrics' fan-out histogram.
+ *
+ * The bus holds on to every stream and phase it has a channel for, so give
+ * each intersection a bus of its own, or release() its plan once it is no
+ * longer shown.
+ *
+ * @author cijolly
+ */
+public class IntersectionEventBus {
+
+	/**
+	 * Told when a stream changes state.
+	 */
+	public interface StreamListener {
+		void streamChanged(TrafficStream stream, State state);
+	}
+
+	/**
+	 * Told when a phase starts.
+	 */
+	public interface PhaseListener {
+		/**
+		 * @param phase		The phase that started.
+		 * @param message	The phase's description of the change.
+		 */
+		void phaseStarted(Phase phase, String message);
+	}
+
+	private static final IntersectionMetrics METRICS = IntersectionMetrics.get();
+	private static final StreamListener[] NO_STREAM_LISTENERS = new StreamListener[0];
+	private static final PhaseListener[] NO_PHASE_LISTENERS = new PhaseListener[0];
+
+	/**
+	 * The subscribers to one stream.
+	 */
+	public static class StreamChannel implements Observer {
+		private final TrafficStream stream;
+		private final AtomicReference<StreamListener[]> listeners = new AtomicReference<StreamListener[]>(
+				NO_STREAM_LISTENERS);
+
+		StreamChannel(TrafficStream stream) {
+			this.stream = stream;
+		}
+
+		public void publish(State state) {
+			long start = System.nanoTime();
+			for (StreamListener listener : listeners.get())
+				listener.streamChanged(stream, state);
+			METRICS.getFanOut().recordSince(start);
+			METRICS.streamStateChange();
+		}
+
+		/**
+		 * Called by the stream when its state changes.
+		 */
+		@Override
+		public void update(Observable o, Object arg) {
+			if (arg instanceof State)
+				publish((State) arg);
+		}
+
+		public int subscribers() {
+			return listeners.get().length;
+		}
+	}
+
+	/**
+	 * The subscribers to one phase.
+	 */
+	public static class PhaseChannel implements Observer {
+		private final Phase phase;
+		private final AtomicReference<PhaseListener[]> listeners = new AtomicReference<PhaseListener[]>(
+				NO_PHASE_LISTENERS);
+
+		PhaseChannel(Phase phase) {
+			this.phase = phase;
+		}
+
+		public void publish(String message) {
+			long start = System.nanoTime();
+			for (PhaseListener listener : listeners.get())
+				listener.phaseStarted(phase, message);
+			METRICS.getFanOut().recordSince(start);
+			METRICS.phaseTransition();
+		}
+
+		/**
+		 * Called by the phase when it starts.
+		 */
+		@Override
+		public void update(Observable o, Object arg) {
+			publish(String.valueOf(arg));
+		}
+
+		public int subscribers() {
+			return listeners.get().length;
+		}
+	}
+
+	/**
+	 * A group of subscriptions that can be taken back together, such as
+	 * everything one view of an intersection listens to.
+	 */
+	public static class Subscriptions {
+		private final IntersectionEventBus bus;
+		private final ArrayList<TrafficStream> streams = new ArrayList<TrafficStream>();
+		private final ArrayList<StreamListener> streamListeners = new ArrayList<StreamListener>();
+		private final ArrayList<Phase> phases = new ArrayList<Phase>();
+		private final ArrayList<PhaseListener> phaseListeners = new ArrayList<PhaseListener>();
+
+		Subscriptions(IntersectionEventBus bus) {
+			this.bus = bus;
+		}
+
+		public synchronized void subscribe(TrafficStream stream, StreamListener listener) {
+			bus.subscribe(stream, listener);
+			streams.add(stream);
+			streamListeners.add(listener);
+		}
+
+		public synchronized void subscribe(Phase phase, PhaseListener listener) {
+			bus.subscribe(phase, listener);
+			phases.add(phase);
+			phaseListeners.add(listener);
+		}
+
+		/**
+		 * Unsubscribe everything subscribed through this group so far.
+		 */
+		public synchronized void unsubscribeAll() {
+			for (int i = 0; i < streams.size(); i++)
+				bus.unsubscribe(streams.get(i), streamListeners.get(i));
+			for (int i = 0; i < phases.size(); i++)
+				bus.unsubscribe(phases.get(i), phaseListeners.get(i));
+			streams.clear();
+			streamListeners.clear();
+			phases.clear();
+			phaseListeners.clear();
+		}
+	}
+
+	private final ConcurrentHashMap<TrafficStream, StreamChannel> streams = new ConcurrentHashMap<TrafficStream, StreamChannel>();
+	private final ConcurrentHashMap<Phase, PhaseChannel> phases = new ConcurrentHashMap<Phase, PhaseChannel>();
+
+	/**
+	 * @return	The stream's channel, which is added as an observer of the stream
+	 *          the first time it is asked for.
+	 */
+	public StreamChannel channel(TrafficStream stream) {
+		StreamChannel channel = streams.get(stream);
+		if (channel == null) {
+			StreamChannel newChannel = new StreamChannel(stream);
+			channel = streams.putIfAbsent(stream, newChannel);
+			if (channel == null) {
+				channel = newChannel;
+				stream.addObserver(channel);
+			}
+		}
+		return channel;
+	}
+
+	/**
+	 * @return	The phase's channel, which is added as an observer of the phase
+	 *          the first time it is asked for.
+	 */
+	public PhaseChannel channel(Phase phase) {
+		PhaseChannel channel = phases.get(phase);
+		if (channel == null) {
+			PhaseChannel newChannel = new PhaseChannel(phase);
+			channel = phases.putIfAbsent(phase, newChannel);
+			if (channel == null) {
+				channel = newChannel;
+				phase.addObserver(channel);
+			}
+		}
+		return channel;
+	}
+
+	/**
+	 * @return	An empty group of subscriptions to this bus.
+	 */
+	public Subscriptions subscriptions() {
+		return new Subscriptions(this);
+	}
+
+	public void subscribe(TrafficStream stream, StreamListener listener) {
+		add(channel(stream).listeners, listener);
+	}
+
+	/**
+	 * Does nothing if the stream has no channel, e.g. once it is released.
+	 */
+	public void unsubscribe(TrafficStream stream, StreamListener listener) {
+		// Not channel(), which would observe a released stream again
+		StreamChannel channel = streams.get(stream);
+		if (channel != null)
+			remove(channel.listeners, listener);
+	}
+
+	/**
+	 * Subscribe an Observer, such as a SignalFace, which is told about the
+	 * stream's changes as if it observed the stream itself.
+	 *
+	 * @return	The listener passing the changes on, to unsubscribe it with.
+	 */
+	public StreamListener subscribeObserver(TrafficStream stream, final Observer observer) {
+		StreamListener listener = new StreamListener() {
+
+			@Override
+			public void streamChanged(TrafficStream changed, State state) {
+				observer.update(changed, state);
+			}
+		};
+		subscribe(stream, listener);
+		return listener;
+	}
+
+	public void subscribe(Phase phase, PhaseListener listener) {
+		add(channel(phase).listeners, listener);
+	}
+
+	/**
+	 * Does nothing if the phase has no channel, e.g. once it is released.
+	 */
+	public void unsubscribe(Phase phase, PhaseListener listener) {
+		PhaseChannel channel = phases.get(phase);
+		if (channel != null)
+			remove(channel.listeners, listener);
+	}
+
+	/**
+	 * Stop observing the streams and phases of a plan, and forget their
+	 * subscribers, so none of them are kept alive by the bus.
+	 */
+	public void release(CompiledPhasePlan plan) {
+		for (int s = 0; s < plan.streamCount(); s++) {
+			StreamChannel channel = streams.remove(plan.getStream(s));
+			if (channel != null)
+				channel.stream.deleteObserver(channel);
+		}
+		for (int p = 0; p < plan.phaseCount(); p++) {
+			PhaseChannel channel = phases.remove(plan.getPhase(p));
+			if (channel != null)
+				channel.phase.deleteObserver(channel);
+		}
+	}
+
+	/**
+	 * Replace the array with a copy that has the listener on the end.
+	 */
+	private static <T> void add(AtomicReference<T[]> listeners, T listener) {
+		while (true) {
+			T[] current = listeners.get();
+			T[] updated = Arrays.copyOf(current, current.length + 1);
+			updated[current.length] = listener;
+			if (listeners.compareAndSet(current, updated))
+				return;
+		}
+	}
+
+	/**
+	 * Replace the array with a copy that doesn't have the listener.
+	 */
+	private static <T> void remove(AtomicReference<T[]> listeners, T listener) {
+		while (true) {
+			T[] current = listeners.get();
+			int index = Arrays.asList(current).indexOf(listener);
+			if (index < 0)
+				return;
+			T[] updated = Arrays.copyOf(current, current.length - 1);
+			System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+			if (listeners.compareAndSet(current, updated))
+				return;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package traffic.diy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import traffic.core.Intersection;
+import traffic.diy.IntersectionDescription.FaceDescription;
+import traffic.diy.IntersectionDescription.PhaseDescription;
+import traffic.diy.IntersectionDescription.StreamDescription;
+import traffic.diy.MyIntersectionLoader.IntersectionTextParser;
+import traffic.signal.SignalFace;
+import traffic.util.State;
+import traffic.util.TrafficDirection;
+
+/**
+ * Generate valid intersections of any size for scale testing. The same seed
+ * and settings always give the same intersections.
+ *
+ * Streams are split into groups that run together. Each plan cycles through
+ * the groups, and each group gets a green phase, then a yellow phase, then an
+ * all stopped phase, like the demo intersections in ModelIntersection. About
+ * one stream in ten is a protected turn, which is off unless its group is
+ * running and is shown by arrow faces.
+ *
+ * @author cijolly
+ */
+public class IntersectionGenerator {
+
+	private static final TrafficDirection[] DIRECTIONS = TrafficDirection.values();
+	private static final TrafficDirection[] APPROACHES = { TrafficDirection.NORTH, TrafficDirection.SOUTH,
+			TrafficDirection.EAST, TrafficDirection.WEST };
+
+	private final Random random;
+	private int streams = 5;
+	private int phases = 6;
+	private int plans = 1;
+	private int faces = 12;
+	private boolean preTimed = true;
+	private int generated = 0;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param seed	Seed for the random choices.
+	 */
+	public IntersectionGenerator(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * @param streams	Number of traffic streams in each intersection. At least 1.
+	 */
+	public void setStreams(int streams) {
+		if (streams < 1)
+			throw new IllegalArgumentException("An intersection needs at least one stream");
+		this.streams = streams;
+	}
+
+	/**
+	 * @param phases	Number of phases in each plan. At least 1, and rounded up
+	 *                  to a multiple of 3 so every green is followed by its
+	 *                  yellow and all stopped phases, even at the end of the
+	 *                  cycle.
+	 */
+	public void setPhases(int phases) {
+		if (phases < 1)
+			throw new IllegalArgumentException("A plan needs at least one phase");
+		this.phases = (phases + 2) / 3 * 3;
+	}
+
+	/**
+	 * @param plans	Number of phase plans in each intersection. At least 1.
+	 */
+	public void setPlans(int plans) {
+		if (plans < 1)
+			throw new IllegalArgumentException("An intersection needs at least one plan");
+		this.plans = plans;
+	}
+
+	/**
+	 * @param faces	Number of signal faces in each intersection.
+	 */
+	public void setFaces(int faces) {
+		if (faces < 0)
+			throw new IllegalArgumentException("Number of faces can't be negative");
+		this.faces = faces;
+	}
+
+	/**
+	 * @param preTimed	true for pre-timed plans, false for fully actuated plans.
+	 */
+	public void setPreTimed(boolean preTimed) {
+		this.preTimed = preTimed;
+	}
+
+	/**
+	 * @return	The description of a new intersection.
+	 */
+	public IntersectionDescription generate() {
+		int number = ++generated;
+		IntersectionDescription description = new IntersectionDescription("Generated " + number,
+				streams + " streams, " + phases + " phases, " + faces + " faces");
+		description.setPreTimed(preTimed);
+
+		boolean[] protectedTurn = new boolean[streams];
+		for (int s = 0; s < streams; s++) {
+			TrafficDirection from = APPROACHES[random.nextInt(APPROACHES.length)];
+			protectedTurn[s] = streams > 1 && random.nextInt(10) == 0;
+			String kind = protectedTurn[s] ? "protected turn" : "through";
+			description.addStream(new StreamDescription(
+					IntersectionTextParser.DirectionToString(from) + "->" + s, from.name().toLowerCase() + " inbound, " + kind));
+		}
+
+		for (int p = 0; p < plans; p++)
+			description.addPlan(generatePlan(protectedTurn));
+
+		for (int f = 0; f < faces; f++) {
+			int stream = random.nextInt(streams);
+			int faceType = SignalFace.STANDARD;
+			if (protectedTurn[stream])
+				faceType = random.nextBoolean() ? SignalFace.LEFT_ARROW : SignalFace.RIGHT_ARROW;
+			description.addFace(new FaceDescription(DIRECTIONS[random.nextInt(DIRECTIONS.length)],
+					APPROACHES[random.nextInt(APPROACHES.length)], faceType, stream));
+		}
+		return description;
+	}
+
+	/**
+	 * @return	A new intersection, built from a new description.
+	 */
+	public Intersection generateIntersection() {
+		return generate().build();
+	}
+
+	/**
+	 * Write descriptions of new intersections one after another, in the form
+	 * read by MappedIntersectionLoader and IntersectionContainer.pack.
+	 *
+	 * @param out		Where to write the descriptions.
+	 * @param count		Number of intersections.
+	 * @throws IOException	if the descriptions can't be written.
+	 */
+	public void writeNetwork(Writer out, int count) throws IOException {
+		for (int i = 0; i < count; i++)
+			generate().writeText(out);
+	}
+
+	/**
+	 * Write a container of new intersections.
+	 *
+	 * @param container	The file to write.
+	 * @param count		Number of intersections.
+	 * @throws IOException	if the container can't be written.
+	 */
+	public void writeContainer(File container, int count) throws IOException {
+		ArrayList<String> descriptions = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			StringBuilder sb = new StringBuilder();
+			generate().writeText(sb);
+			descriptions.add(sb.toString());
+		}
+		IntersectionContainer.write(container, descriptions);
+	}
+
+	/**
+	 * Split the streams into groups, and give each group a green, yellow and
+	 * all stopped phase in turn until there are enough phases.
+	 */
+	private List<PhaseDescription> generatePlan(boolean[] protectedTurn) {
+		int groups = Math.max(1, Math.min(streams, phases / 3));
+		int[] group = new int[streams];
+		for (int s = 0; s < streams; s++)
+			group[s] = s < groups ? s : random.nextInt(groups);
+
+		ArrayList<PhaseDescription> plan = new ArrayList<PhaseDescription>(phases);
+		for (int p = 0; p < phases; p++) {
+			int running = (p / 3) % groups;
+			State[] states = new State[streams];
+			String name;
+			int minGreenInterval;
+			switch (p % 3) {
+			case 0:
+				name = "Group " + running + " Go";
+				minGreenInterval = 5 + random.nextInt(26);
+				fill(states, group, protectedTurn, running, State.GREEN);
+				break;
+			case 1:
+				name = "Group " + running + " Warning";
+				minGreenInterval = 3;
+				fill(states, group, protectedTurn, running, State.YELLOW);
+				break;
+			default:
+				name = "All Stopped";
+				minGreenInterval = 1;
+				fill(states, group, protectedTurn, -1, null);
+				break;
+			}
+			plan.add(new PhaseDescription(name, "Phase " + p, states, minGreenInterval));
+		}
+		return plan;
+	}
+
+	/**
+	 * Give the running group the given state, and stop every other stream.
+	 * Protected turns are off rather than red when stopped.
+	 */
+	private static void fill(State[] states, int[] group, boolean[] protectedTurn, int running, State runningState) {
+		for (int s = 0; s < states.length; s++) {
+			if (group[s] == running)
+				states[s] = runningState;
+			else
+				states[s] = protectedTurn[s] ? State.OFF : State.RED;
+		}
+	}
+
+	/**
+	 * Write a network file of generated intersections.
+	 *
+	 * Arguments: file, number of intersections, streams, phases, faces, seed.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Arguments: file intersections [streams [phases [faces [seed]]]]");
+			return;
+		}
+		int count = Integer.parseInt(args[1]);
+		IntersectionGenerator generator = new IntersectionGenerator(args.length > 5 ? Long.parseLong(args[5]) : 1);
+		if (args.length > 2)
+			generator.setStreams(Integer.parseInt(args[2]));
+		if (args.length > 3)
+			generator.setPhases(Integer.parseInt(args[3]));
+		if (args.length > 4)
+			generator.setFaces(Integer.parseInt(args[4]));
+
+		Writer out = new BufferedWriter(new FileWriter(args[0]));
+		try {
+			generator.writeNetwork(out, count);
+		} finally {
+			out.close();
+		}
+	}
+}
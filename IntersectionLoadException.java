@@ -0,0 +1,77 @@
+package traffic.diy;
+
+import traffic.load.TrafficSyntaxException;
+
+/**
+ * Thrown when an intersection description can't be loaded. Records which
+ * section of the file was being read, the line the problem was found on, and
+ * the reason, so that callers without a GUI can report the error themselves.
+ *
+ * @author cijolly
+ */
+public class IntersectionLoadException extends TrafficSyntaxException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The sections of an intersection description file, in the order they are read.
+	 */
+	public enum Section {
+		INTERSECTION("intersection description, or invalid intersection data file"),
+		TRAFFIC_STREAMS("traffic streams"),
+		PHASE_PLANS("phase plans"),
+		SIGNAL_FACES("signal faces");
+
+		private final String label;
+
+		private Section(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * @return Human readable name of the section.
+		 */
+		public String label() {
+			return label;
+		}
+	}
+
+	private final Section section;
+	private final int lineNumber;
+	private final String reason;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param section		The section being read when the error was found.
+	 * @param lineNumber	The line of the file the error was found on. 0 if nothing had been read.
+	 * @param reason		Why the section couldn't be loaded.
+	 */
+	public IntersectionLoadException(Section section, int lineNumber, String reason) {
+		super("Error in format of " + section.label() + " at line " + lineNumber + ": " + reason);
+		this.section = section;
+		this.lineNumber = lineNumber;
+		this.reason = reason;
+	}
+
+	/**
+	 * @return The section being read when the error was found.
+	 */
+	public Section getSection() {
+		return section;
+	}
+
+	/**
+	 * @return The line of the file the error was found on.
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return Why the section couldn't be loaded.
+	 */
+	public String getReason() {
+		return reason;
+	}
+}
@@ -2,12 +2,41 @@ package traffic.diy;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Test;
 
+import traffic.core.Intersection;
+import traffic.core.Phase;
+import traffic.core.TrafficStream;
+import traffic.diy.IntersectionDescription.FaceDescription;
+import traffic.diy.IntersectionDescription.PhaseDescription;
+import traffic.diy.IntersectionDescription.StreamDescription;
+import traffic.diy.IntersectionLoadException.Section;
 import traffic.diy.MyIntersectionLoader.IntersectionTextParser;
+import traffic.load.Tag;
 import traffic.load.TrafficSyntaxException;
+import traffic.phaseplan.PretimedPhasePlan;
 import traffic.signal.SignalFace;
 import traffic.util.State;
+import traffic.util.TrafficDirection;
 
 public class IntersectionLoaderTester {
 
@@ -58,4 +87,989 @@ public class IntersectionLoaderTester {
 			e.printStackTrace();
 		}
 	}
-}
\ No newline at end of file
+	
+	@Test
+	public void testLoadErrorReportsSectionAndLine(){
+		String description = Tag.INTERSECTION + "\nName\tDescription\n" + Tag.END_INTERSECTION + "\n"
+				+ Tag.TRAFFIC_STREAMS + "\nN->S\tNorth inbound\n" + Tag.END_TRAFFIC_STREAMS + "\n"
+				+ Tag.PHASEPLAN + "\n" + Tag.PHASES + "\nGo\tAll go\tQ\t5\n";
+		MyIntersectionLoader loader = new MyIntersectionLoader(new BufferedReader(new StringReader(description)));
+		try {
+			loader.loadIntersection();
+			fail("Invalid signal colour should not load");
+		} catch (IntersectionLoadException e) {
+			assertEquals(e.getSection(), Section.PHASE_PLANS);
+			assertEquals(e.getLineNumber(), 9);
+		}
+	}
+	
+	@Test
+	public void testScannerSkipsCommentsAndBlankLines(){
+		IntersectionScanner scanner = new IntersectionScanner(new StringReader("// comment\r\n\r\nN->S\tNorth inbound\t\n"));
+		try {
+			assertTrue(scanner.nextLine());
+			assertEquals(scanner.getLineNumber(), 3);
+			assertEquals(scanner.fieldCount(), 2);
+			assertTrue(scanner.fieldEquals(0, "N->S"));
+			assertEquals(scanner.fieldString(1), "North inbound");
+			assertFalse(scanner.nextLine());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	@Test
+	public void testScannerPeeksAtBytes() throws IOException{
+		IntersectionScanner scanner = new IntersectionScanner(ByteBuffer.wrap("// comment\r\n\r\nA\tB\nC".getBytes("US-ASCII")));
+		assertTrue(scanner.hasNextLine());
+		//Peeking again stays on the same line
+		assertTrue(scanner.hasNextLine());
+		assertEquals(scanner.getLineNumber(), 3);
+		assertTrue(scanner.nextLine());
+		assertTrue(scanner.fieldEquals(1, "B"));
+		assertTrue(scanner.nextLine());
+		assertEquals(scanner.getLineNumber(), 4);
+		assertEquals(scanner.fieldString(0), "C");
+		assertFalse(scanner.hasNextLine());
+		assertFalse(scanner.nextLine());
+	}
+	
+	@Test
+	public void testMappedLoaderMatchesTextLoader() throws IOException, IntersectionLoadException{
+		IntersectionGenerator generator = new IntersectionGenerator(4);
+		generator.setStreams(6);
+		generator.setPhases(6);
+		ArrayList<String> texts = new ArrayList<String>();
+		StringBuilder network = new StringBuilder();
+		for (int i = 0; i < 3; i++) {
+			StringBuilder text = new StringBuilder();
+			generator.generate().writeText(text);
+			texts.add(text.toString());
+			network.append(text).append("// Intersection ").append(i).append("\r\n\r\n");
+		}
+		File file = File.createTempFile("network", ".txt");
+		try {
+			Files.write(file.toPath(), network.toString().getBytes("US-ASCII"));
+			List<Intersection> mapped = new MappedIntersectionLoader(file).loadIntersections();
+			assertEquals(mapped.size(), 3);
+			for (int i = 0; i < texts.size(); i++) {
+				MyIntersectionLoader loader = new MyIntersectionLoader(new BufferedReader(new StringReader(texts.get(i))));
+				assertEquals(summary(mapped.get(i)), summary(loader.loadIntersection()));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testContainerRoundTripReportsBadRecord() throws IOException{
+		IntersectionGenerator generator = new IntersectionGenerator(5);
+		generator.setStreams(4);
+		generator.setPhases(3);
+		ArrayList<String> texts = new ArrayList<String>();
+		StringBuilder concatenated = new StringBuilder();
+		for (int i = 0; i < 3; i++) {
+			StringBuilder text = new StringBuilder();
+			generator.generate().writeText(text);
+			texts.add(text.toString());
+			concatenated.append(text);
+		}
+		File network = File.createTempFile("network", ".txt");
+		File packed = File.createTempFile("packed", ".ucic");
+		File written = File.createTempFile("written", ".ucic");
+		try {
+			//Packing splits the records at each Intersection tag
+			Files.write(network.toPath(), concatenated.toString().getBytes("US-ASCII"));
+			IntersectionContainer.pack(network, packed);
+			IntersectionContainer container = new IntersectionContainer(packed);
+			assertEquals(container.size(), 3);
+			List<Intersection> loaded = container.loadAll(ForkJoinPool.commonPool());
+			for (int i = 0; i < texts.size(); i++) {
+				MyIntersectionLoader loader = new MyIntersectionLoader(new BufferedReader(new StringReader(texts.get(i))));
+				assertEquals(summary(loaded.get(i)), summary(loader.loadIntersection()));
+			}
+			
+			//A bad record is reported by number, and the others still load
+			texts.set(1, texts.get(1).replace(Tag.END_TRAFFIC_STREAMS, "Not a tag"));
+			IntersectionContainer.write(written, texts);
+			container = new IntersectionContainer(written);
+			assertEquals(container.load(2).getName(), loaded.get(2).getName());
+			try {
+				container.loadAll(ForkJoinPool.commonPool());
+				fail("Bad record should not load");
+			} catch (IntersectionLoadException e) {
+				assertTrue(e.getReason().startsWith("Record 1: "));
+			}
+		} catch (IntersectionLoadException e) {
+			fail(e.getMessage());
+		} finally {
+			network.delete();
+			packed.delete();
+			written.delete();
+		}
+	}
+	
+	@Test
+	public void testCacheHitsMemoryThenDisk() throws IOException, IntersectionLoadException{
+		File directory = Files.createTempDirectory("cache").toFile();
+		try {
+			File source = writeGenerated(directory, 7);
+			File cacheDirectory = new File(directory, "cache");
+			IntersectionCache cache = new IntersectionCache(cacheDirectory, 1 << 20, 4);
+			IntersectionDescription parsed = cache.load(source);
+			assertSame(cache.load(source), parsed);
+			
+			//Once forgotten in memory, it comes back from disk the same as parsed
+			cache.clearMemory();
+			StringBuilder whileReading = new StringBuilder();
+			IntersectionDescription fromDisk = cache.load(source, new PartRecorder(whileReading));
+			assertNotSame(fromDisk, parsed);
+			assertEquals(text(fromDisk), text(parsed));
+			assertTrue(whileReading.toString().endsWith("D"));
+			assertEquals(cacheDirectory.list().length, 1);
+		} finally {
+			deleteAll(directory);
+		}
+	}
+	
+	@Test
+	public void testCacheEvictsLeastRecentlyUsed() throws IOException, IntersectionLoadException{
+		File directory = Files.createTempDirectory("cache").toFile();
+		try {
+			File a = writeGenerated(directory, 1);
+			File b = writeGenerated(directory, 2);
+			File c = writeGenerated(directory, 3);
+			long total = 0;
+			for (File source : new File[] {a, b, c}) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				BinaryIntersectionFormat.write(new MyIntersectionLoader(new BufferedReader(new StringReader(
+						new String(Files.readAllBytes(source.toPath()), "US-ASCII")))).loadDescription(), out);
+				total += out.size();
+			}
+			//Room for all but the smallest of the three
+			File cacheDirectory = new File(directory, "cache");
+			IntersectionCache cache = new IntersectionCache(cacheDirectory, total - 1, 4);
+			cache.load(a);
+			File cachedA = cacheDirectory.listFiles()[0];
+			cache.load(b);
+			File cachedB = null;
+			for (File cached : cacheDirectory.listFiles()) {
+				if (!cached.equals(cachedA))
+					cachedB = cached;
+			}
+			cachedA.setLastModified(System.currentTimeMillis() - 100000);
+			cachedB.setLastModified(System.currentTimeMillis() - 50000);
+			
+			//Using a from memory makes b the least recently used
+			cache.load(a);
+			cache.load(c);
+			assertTrue(cachedA.exists());
+			assertFalse(cachedB.exists());
+			assertEquals(cacheDirectory.list().length, 2);
+		} finally {
+			deleteAll(directory);
+		}
+	}
+	
+	@Test
+	public void testCacheReparsesCorruptFile() throws IOException, IntersectionLoadException{
+		File directory = Files.createTempDirectory("cache").toFile();
+		try {
+			File source = writeGenerated(directory, 8);
+			File cacheDirectory = new File(directory, "cache");
+			IntersectionCache cache = new IntersectionCache(cacheDirectory, 1 << 20, 4);
+			IntersectionDescription parsed = cache.load(source);
+			File cached = cacheDirectory.listFiles()[0];
+			Files.write(cached.toPath(), new byte[] {1, 2, 3});
+			
+			cache.clearMemory();
+			assertEquals(text(cache.load(source)), text(parsed));
+			//Saved again in place of the corrupt file
+			cache.clearMemory();
+			assertEquals(text(cache.load(source)), text(parsed));
+			assertTrue(cached.length() > 3);
+		} finally {
+			deleteAll(directory);
+		}
+	}
+	
+	/**
+	 * @return	A file holding a generated description.
+	 */
+	private static File writeGenerated(File directory, long seed) throws IOException{
+		IntersectionGenerator generator = new IntersectionGenerator(seed);
+		generator.setStreams(5 + (int) seed);
+		generator.setPhases(6);
+		File source = new File(directory, "intersection" + seed + ".txt");
+		Files.write(source.toPath(), text(generator.generate()).getBytes("US-ASCII"));
+		return source;
+	}
+	
+	private static String text(IntersectionDescription description) throws IOException{
+		StringBuilder text = new StringBuilder();
+		description.writeText(text);
+		return text.toString();
+	}
+	
+	/**
+	 * Delete a file, or a directory and everything in it.
+	 */
+	private static void deleteAll(File file){
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				deleteAll(f);
+		}
+		file.delete();
+	}
+	
+	/**
+	 * @return	The name of an intersection and each phase's stream states.
+	 */
+	private static String summary(Intersection intersection){
+		StringBuilder summary = new StringBuilder(intersection.getName());
+		for (Phase phase : intersection.getPlan().phases()) {
+			summary.append('\n').append(phase.getName());
+			for (TrafficStream ts : phase.getTrafficStreams())
+				summary.append(' ').append(ts.getname()).append('=').append(phase.streamStates().get(ts));
+		}
+		return summary.toString();
+	}
+	
+	@Test(expected = TrafficSyntaxException.class)
+	public void testDelayReadNotNumeric() throws TrafficSyntaxException{
+		IntersectionTextParser.StringToTime("1a");
+	}
+	
+	@Test
+	public void testBinaryFormatRoundTrip() throws IOException{
+		IntersectionDescription description = new IntersectionDescription("Name", "Description");
+		description.setPreTimed(false);
+		description.addStream(new StreamDescription("N->S", "North inbound"));
+		ArrayList<PhaseDescription> phases = new ArrayList<PhaseDescription>();
+		phases.add(new PhaseDescription("Go", "North go", new State[] {State.GREEN}, 7));
+		description.addPlan(phases);
+		description.addFace(new FaceDescription(TrafficDirection.SOUTHWEST, TrafficDirection.NORTH, SignalFace.LEFT_ARROW, 0));
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryIntersectionFormat.write(description, out);
+		IntersectionDescription copy = BinaryIntersectionFormat.read(new ByteArrayInputStream(out.toByteArray()));
+		
+		assertEquals(copy.getName(), "Name");
+		assertFalse(copy.isPreTimed());
+		assertEquals(copy.getStreams().get(0).getDescription(), "North inbound");
+		assertEquals(copy.getPlans().get(0).get(0).getStreamState(0), State.GREEN);
+		assertEquals(copy.getPlans().get(0).get(0).getMinGreenInterval(), 7);
+		assertEquals(copy.getFaces().get(0).getLocation(), TrafficDirection.SOUTHWEST);
+		assertEquals(copy.getFaces().get(0).getFaceType(), SignalFace.LEFT_ARROW);
+	}
+	
+	@Test
+	public void testGeneratedDescriptionLoads() throws IOException, IntersectionLoadException{
+		IntersectionGenerator generator = new IntersectionGenerator(1);
+		generator.setStreams(40);
+		generator.setPhases(30);
+		generator.setPlans(2);
+		StringBuilder text = new StringBuilder();
+		generator.generate().writeText(text);
+		
+		MyIntersectionLoader loader = new MyIntersectionLoader(new BufferedReader(new StringReader(text.toString())));
+		StringBuilder reloaded = new StringBuilder();
+		loader.loadDescription().writeText(reloaded);
+		assertEquals(reloaded.toString(), text.toString());
+	}
+	
+	@Test
+	public void testGeneratedPlansClearEveryGreen(){
+		for (int phases = 1; phases <= 10; phases++) {
+			IntersectionGenerator generator = new IntersectionGenerator(phases);
+			generator.setStreams(7);
+			generator.setPhases(phases);
+			List<PhaseDescription> plan = generator.generate().getPlans().get(0);
+			assertEquals(plan.size() % 3, 0);
+			//Including the wrap from the last phase back to the first
+			for (int p = 0; p < plan.size(); p++) {
+				PhaseDescription from = plan.get(p);
+				PhaseDescription to = plan.get((p + 1) % plan.size());
+				boolean allStopped = true;
+				for (int s = 0; s < 7; s++)
+					allStopped &= from.getStreamState(s) != State.GREEN && from.getStreamState(s) != State.YELLOW;
+				for (int s = 0; s < 7; s++) {
+					State before = from.getStreamState(s);
+					State after = to.getStreamState(s);
+					String transition = phases + " phases, " + from.getName() + " to " + to.getName() + ", stream " + s;
+					if (before == State.GREEN)
+						assertTrue(transition, after == State.GREEN || after == State.YELLOW);
+					if (before == State.YELLOW)
+						assertTrue(transition, after != State.GREEN);
+					if (after == State.GREEN && before != State.GREEN)
+						assertTrue(transition, allStopped);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testLoaderReportsPartsAsRead() throws IOException, IntersectionLoadException{
+		IntersectionGenerator generator = new IntersectionGenerator(2);
+		generator.setStreams(5);
+		generator.setPhases(6);
+		generator.setPlans(2);
+		StringBuilder text = new StringBuilder();
+		IntersectionDescription generated = generator.generate();
+		generated.writeText(text);
+		
+		//The parts are reported in file order, the same as a complete description publishes them
+		StringBuilder whileReading = new StringBuilder();
+		MyIntersectionLoader loader = new MyIntersectionLoader(new BufferedReader(new StringReader(text.toString())));
+		loader.setListener(new PartRecorder(whileReading));
+		loader.loadDescription();
+		StringBuilder published = new StringBuilder();
+		generated.publish(new PartRecorder(published));
+		assertEquals(published.toString(), whileReading.toString());
+		assertTrue(whileReading.toString().startsWith("I S5 P0 0 1 2 3 4 5 E0 P1 0 1 2 3 4 5 E1 F0 "));
+		assertTrue(whileReading.toString().endsWith("D"));
+	}
+	
+	/**
+	 * Writes a short note of each part it is told about.
+	 */
+	private static class PartRecorder implements IntersectionDescription.Listener {
+		private final StringBuilder parts;
+		
+		PartRecorder(StringBuilder parts){
+			this.parts = parts;
+		}
+		
+		@Override
+		public void intersectionRead(IntersectionDescription description){
+			parts.append("I ");
+		}
+		
+		@Override
+		public void streamsRead(List<StreamDescription> streams){
+			parts.append("S").append(streams.size()).append(' ');
+		}
+		
+		@Override
+		public void planStarted(int plan, boolean preTimed){
+			parts.append("P").append(plan).append(' ');
+		}
+		
+		@Override
+		public void phaseRead(int plan, int phase, PhaseDescription description){
+			parts.append(phase).append(' ');
+		}
+		
+		@Override
+		public void planRead(int plan){
+			parts.append("E").append(plan).append(' ');
+		}
+		
+		@Override
+		public void faceRead(int face, FaceDescription description){
+			parts.append("F").append(face).append(' ');
+		}
+		
+		@Override
+		public void descriptionRead(IntersectionDescription description){
+			parts.append("D");
+		}
+	}
+	
+	@Test
+	public void testCompiledPlanNumbersStreamsInPhaseOrder(){
+		TrafficStream[] streams = new TrafficStream[40];
+		Phase phase = new Phase("All green", "Every stream");
+		for (int i = 0; i < streams.length; i++) {
+			streams[i] = new TrafficStream("S" + i, "Stream " + i);
+			phase.addStream(streams[i], State.GREEN);
+		}
+		PretimedPhasePlan plan = new PretimedPhasePlan();
+		plan.add(phase);
+		CompiledPhasePlan compiled = new CompiledPhasePlan(plan);
+		for (int i = 0; i < streams.length; i++)
+			assertSame(compiled.getStream(i), streams[i]);
+	}
+	
+	@Test
+	public void testPackedPhaseStatesChanges(){
+		State[] from = new State[70];
+		State[] to = new State[70];
+		for (int i = 0; i < from.length; i++){
+			from[i] = State.RED;
+			to[i] = State.RED;
+		}
+		to[3] = State.GREEN;
+		to[31] = State.OFF;
+		to[32] = State.YELLOW;
+		to[69] = State.GREEN;
+		PackedPhaseStates packedFrom = PackedPhaseStates.pack(from);
+		PackedPhaseStates packedTo = PackedPhaseStates.pack(to);
+		
+		for (int i = 0; i < to.length; i++)
+			assertEquals(packedTo.get(i), to[i]);
+		assertEquals(packedFrom.countChanges(packedTo), 4);
+		assertEquals(packedFrom.nextChange(packedTo, 0), 3);
+		assertEquals(packedFrom.nextChange(packedTo, 4), 31);
+		assertEquals(packedFrom.nextChange(packedTo, 32), 32);
+		assertEquals(packedFrom.nextChange(packedTo, 33), 69);
+		assertEquals(packedFrom.nextChange(packedTo, 70), -1);
+	}
+	
+	@Test
+	public void testTranscriptBufferOverwritesOldest(){
+		TranscriptBuffer buffer = new TranscriptBuffer(3);
+		assertEquals(buffer.getCapacity(), 4);
+		for (int i = 0; i < 6; i++)
+			buffer.add("Event " + i);
+		assertEquals(buffer.getFirst(), 2);
+		assertEquals(buffer.getEnd(), 6);
+		assertNull(buffer.get(1));
+		assertEquals(buffer.get(2).getMessage(), "Event 2");
+		buffer.add("North", State.GREEN);
+		assertEquals(buffer.get(6).getMessage(), "North going GREEN");
+		buffer.clear();
+		assertEquals(buffer.getFirst(), buffer.getEnd());
+		assertNull(buffer.get(6));
+	}
+	
+	@Test
+	public void testVirtualTimeRunsWholeCycles(){
+		IntersectionGenerator generator = new IntersectionGenerator(2);
+		generator.setStreams(10);
+		generator.setPhases(9);
+		IntersectionDescription description = generator.generate();
+		long cycle = 0;
+		for (PhaseDescription phase : description.getPlans().get(0))
+			cycle += phase.getMinGreenInterval() * 1000L;
+		
+		VirtualTimeSimulation simulation = new VirtualTimeSimulation(description);
+		simulation.runUntil(0);
+		assertEquals(simulation.getPhase(), 0);
+		long firstCycle = simulation.getTransitions();
+		simulation.runUntil(cycle);
+		assertEquals(simulation.getPhase(), 0);
+		long perCycle = simulation.getTransitions() - firstCycle;
+		simulation.runUntil(cycle * 100);
+		assertEquals(simulation.getTime(), cycle * 100);
+		assertEquals(simulation.getTransitions(), firstCycle + perCycle * 100);
+	}
+	
+	@Test
+	public void testStatusFollowsSimulation(){
+		IntersectionGenerator generator = new IntersectionGenerator(3);
+		generator.setStreams(12);
+		generator.setPhases(6);
+		IntersectionDescription description = generator.generate();
+		VirtualTimeSimulation simulation = new VirtualTimeSimulation(description);
+		IntersectionStatus status = new IntersectionStatus(description);
+		simulation.addListener(status);
+		
+		PackedPhaseStates read = new PackedPhaseStates(status.streamCount());
+		assertEquals(status.read(read), -1);
+		long version = status.getVersion();
+		simulation.runUntil(100000);
+		assertTrue(status.getVersion() > version);
+		assertEquals(status.read(read), simulation.getPhase());
+		assertEquals(read.countChanges(simulation.getStreamStates()), 0);
+	}
+
+	@Test
+	public void testStatusWritesWholeTransitions(){
+		IntersectionGenerator generator = new IntersectionGenerator(4);
+		generator.setStreams(12);
+		generator.setPhases(4);
+		IntersectionDescription description = generator.generate();
+		final VirtualTimeSimulation simulation = new VirtualTimeSimulation(description);
+		final IntersectionStatus status = new IntersectionStatus(description);
+		simulation.addListener(status);
+		final PackedPhaseStates read = new PackedPhaseStates(status.streamCount());
+		final int[] checked = new int[1];
+		// Told after the status, so it sees what a reader would mid-transition
+		simulation.addListener(new VirtualTimeSimulation.Listener() {
+			@Override
+			public void phaseStarted(long time, int phase) {
+			}
+			
+			@Override
+			public void streamChanged(long time, int stream, State state) {
+				assertTrue(status.read(read) != simulation.getPhase());
+				assertEquals(read.countChanges(simulation.getStreamStates()), 0);
+				checked[0]++;
+			}
+			
+			@Override
+			public void transitionEnded(long time) {
+				assertEquals(status.read(read), simulation.getPhase());
+				assertEquals(read.countChanges(simulation.getStreamStates()), 0);
+			}
+		});
+		simulation.runUntil(100000);
+		assertTrue(checked[0] > 0);
+		
+		// Through a bus, once every stream has reached the phase's planned state
+		IntersectionEventBus bus = new IntersectionEventBus();
+		CompiledPhasePlan plan = new CompiledPhasePlan(description.build(bus).getPlan(), description);
+		IntersectionStatus attached = new IntersectionStatus("Attached", plan, description);
+		attached.attach(bus);
+		PackedPhaseStates planned = plan.getStates(2);
+		PackedPhaseStates starting = new PackedPhaseStates(plan.streamCount());
+		assertEquals(attached.read(starting), -1);
+		bus.channel(plan.getPhase(2)).publish("started");
+		int last = -1;
+		for (int s = starting.nextChange(planned, 0); s >= 0; s = starting.nextChange(planned, s + 1))
+			last = s;
+		assertTrue(last >= 0);
+		for (int s = starting.nextChange(planned, 0); s != last; s = starting.nextChange(planned, s + 1)) {
+			bus.channel(plan.getStream(s)).publish(planned.get(s));
+			assertEquals(attached.read(read), -1);
+			assertEquals(read.countChanges(starting), 0);
+		}
+		bus.channel(plan.getStream(last)).publish(planned.get(last));
+		assertEquals(attached.read(read), 2);
+		assertEquals(read.countChanges(planned), 0);
+	}
+
+	@Test
+	public void testStatusReadsAreConsistent() throws InterruptedException{
+		IntersectionGenerator generator = new IntersectionGenerator(5);
+		generator.setStreams(100);
+		generator.setPhases(2);
+		final IntersectionStatus status = new IntersectionStatus(generator.generate());
+		final PackedPhaseStates red = new PackedPhaseStates(status.streamCount());
+		final PackedPhaseStates green = new PackedPhaseStates(status.streamCount());
+		for (int s = 0; s < red.size(); s++) {
+			red.set(s, State.RED);
+			green.set(s, State.GREEN);
+		}
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; !done.get(); i++)
+					status.publish(i % 2, i % 2 == 0 ? red : green);
+			}
+		};
+		//Never left running if an assertion fails
+		writer.setDaemon(true);
+		writer.start();
+
+		// Every read is all of one publish, never part of two
+		try {
+			PackedPhaseStates read = new PackedPhaseStates(status.streamCount());
+			for (int i = 0; i < 20000; i++) {
+				int phase = status.read(read);
+				if (phase >= 0)
+					assertEquals(read.countChanges(phase == 0 ? red : green), 0);
+			}
+		} finally {
+			done.set(true);
+			writer.join();
+		}
+	}
+
+	@Test
+	public void testEventBusFanOut(){
+		IntersectionEventBus bus = new IntersectionEventBus();
+		TrafficStream stream = new TrafficStream("N->S", "North inbound");
+		final ArrayList<State> heard = new ArrayList<State>();
+		IntersectionEventBus.StreamListener listener = new IntersectionEventBus.StreamListener() {
+			@Override
+			public void streamChanged(TrafficStream changed, State state) {
+				heard.add(state);
+			}
+		};
+		bus.subscribe(stream, listener);
+		bus.subscribe(stream, listener);
+		bus.channel(stream).publish(State.GREEN);
+		assertEquals(heard.size(), 2);
+		
+		bus.unsubscribe(stream, listener);
+		bus.channel(stream).publish(State.RED);
+		assertEquals(heard.size(), 3);
+		assertEquals(heard.get(2), State.RED);
+		assertEquals(bus.channel(stream).subscribers(), 1);
+	}
+	
+	@Test
+	public void testEventBusReleasesPlan(){
+		IntersectionEventBus bus = new IntersectionEventBus();
+		IntersectionDescription description = new IntersectionGenerator(8).generate();
+		Intersection intersection = description.build(bus);
+		CompiledPhasePlan plan = new CompiledPhasePlan(intersection.getPlan(), description);
+		TrafficStream stream = plan.getStream(0);
+		final ArrayList<Object> heard = new ArrayList<Object>();
+		Observer observer = new Observer() {
+			@Override
+			public void update(Observable o, Object arg) {
+				heard.add(arg);
+			}
+		};
+		IntersectionEventBus.StreamListener handle = bus.subscribeObserver(stream, observer);
+		bus.channel(stream).publish(State.GREEN);
+		assertEquals(heard.size(), 1);
+		bus.unsubscribe(stream, handle);
+		bus.channel(stream).publish(State.RED);
+		assertEquals(heard.size(), 1);
+		
+		//Released streams and phases no longer know about the bus
+		bus.channel(plan.getPhase(0));
+		assertEquals(stream.countObservers(), 1);
+		assertEquals(plan.getPhase(0).countObservers(), 1);
+		bus.release(plan);
+		assertEquals(stream.countObservers(), 0);
+		assertEquals(plan.getPhase(0).countObservers(), 0);
+		
+		//Unsubscribing afterwards doesn't observe them again
+		bus.unsubscribe(stream, handle);
+		bus.unsubscribe(plan.getPhase(0), new IntersectionEventBus.PhaseListener() {
+			@Override
+			public void phaseStarted(Phase phase, String message) {
+			}
+		});
+		assertEquals(stream.countObservers(), 0);
+		assertEquals(plan.getPhase(0).countObservers(), 0);
+	}
+	
+	@Test
+	public void testPaintedFacesAreNotBuilt(){
+		IntersectionEventBus bus = new IntersectionEventBus();
+		IntersectionDescription description = new IntersectionGenerator(9).generate();
+		IntersectionBuilder builder = new IntersectionBuilder(bus);
+		builder.setSignalFaces(false);
+		description.publish(builder);
+		assertNull(builder.getLastFace());
+		for (TrafficStream stream : builder.getStreams())
+			assertEquals(bus.channel(stream).subscribers(), 0);
+		
+		builder = new IntersectionBuilder(bus);
+		description.publish(builder);
+		assertNotNull(builder.getLastFace());
+	}
+	
+	@Test
+	public void testStatusDetachesAndLeavesDashboard(){
+		IntersectionEventBus bus = new IntersectionEventBus();
+		IntersectionDescription description = new IntersectionGenerator(10).generate();
+		CompiledPhasePlan plan = new CompiledPhasePlan(description.build(bus).getPlan(), description);
+		IntersectionStatus status = new IntersectionStatus("Detached", plan, description);
+		IntersectionEventBus.Subscriptions subscriptions = status.attach(bus);
+		PackedPhaseStates read = new PackedPhaseStates(plan.streamCount());
+		bus.channel(plan.getPhase(1)).publish("started");
+		for (int s = 0; s < plan.streamCount(); s++)
+			bus.channel(plan.getStream(s)).publish(plan.getStates(1).get(s));
+		assertEquals(status.read(read), 1);
+		subscriptions.unsubscribeAll();
+		bus.channel(plan.getPhase(0)).publish("started");
+		assertEquals(status.read(read), 1);
+		
+		IntersectionDashboard dashboard = new IntersectionDashboard();
+		dashboard.add(status);
+		dashboard.add(new IntersectionStatus("Kept", plan, description));
+		dashboard.remove(status);
+		assertEquals(dashboard.getIntersections(), 1);
+	}
+	
+	@Test
+	public void testLatencyHistogramPercentiles(){
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 99; i++)
+			histogram.record(1000);
+		histogram.record(1000000);
+		assertEquals(histogram.getCount(), 100);
+		assertTrue(histogram.getP50Micros() >= 1 && histogram.getP50Micros() < 2.1);
+		assertTrue(histogram.getP99Micros() < 2.1);
+		assertEquals(histogram.getMaxMicros(), 1000.0, 0.001);
+	}
+	
+	@Test
+	public void testJournalRollsOverSegments() throws IOException{
+		File directory = Files.createTempDirectory("journal").toFile();
+		try {
+			TransitionJournal journal = new TransitionJournal(directory, 100);
+			for (int i = 0; i < 250; i++)
+				journal.streamChanged(i, 7, i % 5, State.GREEN);
+			journal.phaseStarted(250, 7, 3);
+			journal.close();
+			checkRolledOverJournal(directory);
+		} finally {
+			deleteAll(directory);
+		}
+	}
+	
+	@Test
+	public void testJournalKeepsEveryRecordFromSeveralWriters() throws IOException, InterruptedException{
+		File directory = Files.createTempDirectory("journal").toFile();
+		try {
+			final TransitionJournal journal = new TransitionJournal(directory, 50);
+			Thread[] writers = new Thread[4];
+			for (int t = 0; t < writers.length; t++) {
+				final int intersection = t;
+				writers[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = 0; i < 1000; i++)
+							journal.streamChanged(i, intersection, i % 7, State.YELLOW);
+					}
+				});
+				writers[t].start();
+			}
+			// Forcing while segments fill lets go of full ones only
+			for (int i = 0; i < 20; i++)
+				journal.force();
+			for (Thread writer : writers)
+				writer.join();
+			journal.close();
+			
+			TransitionJournalReader reader = new TransitionJournalReader(directory);
+			assertEquals(reader.getEnd(), 4000);
+			final int[] counts = new int[writers.length];
+			reader.read(0, reader.getEnd(), new TransitionJournalReader.Visitor() {
+				@Override
+				public void streamChanged(long record, long time, int intersection, int stream, State state) {
+					assertEquals(stream, (int) (time % 7));
+					assertEquals(state, State.YELLOW);
+					counts[intersection]++;
+				}
+				
+				@Override
+				public void phaseStarted(long record, long time, int intersection, int phase) {
+					fail("No phases were journalled");
+				}
+			});
+			for (int count : counts)
+				assertEquals(count, 1000);
+		} finally {
+			deleteAll(directory);
+		}
+	}
+	
+	private static void checkRolledOverJournal(File directory) throws IOException{
+		TransitionJournalReader reader = new TransitionJournalReader(directory);
+		assertEquals(reader.getEnd(), 251);
+		final long[] counts = new long[2];
+		reader.read(0, reader.getEnd(), new TransitionJournalReader.Visitor() {
+			@Override
+			public void streamChanged(long record, long time, int intersection, int stream, State state) {
+				assertEquals(time, record);
+				assertEquals(stream, (int) (record % 5));
+				counts[0]++;
+			}
+			
+			@Override
+			public void phaseStarted(long record, long time, int intersection, int phase) {
+				assertEquals(phase, 3);
+				counts[1]++;
+			}
+		});
+		assertEquals(counts[0], 250);
+		assertEquals(counts[1], 1);
+		
+		// Reopening carries on after the last record, until detached
+		TransitionJournal reopened = new TransitionJournal(directory, 100);
+		try {
+			assertEquals(reopened.getRecords(), 251);
+			IntersectionDescription description = new IntersectionGenerator(5).generate();
+			IntersectionEventBus bus = new IntersectionEventBus();
+			CompiledPhasePlan plan = new CompiledPhasePlan(description.build(bus).getPlan(), description);
+			IntersectionEventBus.Subscriptions subscriptions = reopened.attach(bus, 8, plan);
+			bus.channel(plan.getStream(0)).publish(State.RED);
+			bus.channel(plan.getPhase(0)).publish("started");
+			assertEquals(reopened.getRecords(), 253);
+			subscriptions.unsubscribeAll();
+			bus.channel(plan.getStream(0)).publish(State.GREEN);
+			assertEquals(reopened.getRecords(), 253);
+		} finally {
+			reopened.close();
+		}
+	}
+	
+	@Test
+	public void testReplaySeeksToRecordedState() throws IOException{
+		IntersectionGenerator generator = new IntersectionGenerator(3);
+		generator.setStreams(12);
+		generator.setPhases(9);
+		IntersectionDescription description = generator.generate();
+		IntersectionEventBus bus = new IntersectionEventBus();
+		Intersection intersection = description.build(bus);
+		
+		File directory = Files.createTempDirectory("replay").toFile();
+		try {
+			TransitionJournal journal = new TransitionJournal(directory, 10000);
+			VirtualTimeSimulation recorded = new VirtualTimeSimulation(description);
+			recorded.addListener(journal.listener(4));
+			recorded.runUntil(4 * 3600 * 1000);
+			journal.close();
+			
+			TransitionReplay replay = new TransitionReplay(new TransitionJournalReader(directory), 4,
+					new CompiledPhasePlan(intersection.getPlan(), description), bus);
+			long time = 1234567;
+			replay.seek(time);
+			VirtualTimeSimulation expected = new VirtualTimeSimulation(description);
+			expected.runUntil(time - 1);
+			assertEquals(replay.getPhase(), expected.getPhase());
+			assertEquals(replay.getStreamStates().countChanges(expected.getStreamStates()), 0);
+			
+			//The same just before a time the index has a checkpoint at
+			TransitionJournalReader reader = new TransitionJournalReader(directory);
+			assertTrue(reader.getEnd() > TransitionReplay.INDEX_INTERVAL);
+			time = reader.timeOf(reader.getStart() + TransitionReplay.INDEX_INTERVAL - 1);
+			replay.seek(time);
+			expected = new VirtualTimeSimulation(description);
+			expected.runUntil(time - 1);
+			assertEquals(replay.getPhase(), expected.getPhase());
+			assertEquals(replay.getStreamStates().countChanges(expected.getStreamStates()), 0);
+		} finally {
+			deleteAll(directory);
+		}
+	}
+	
+	@Test
+	public void testDetectorFeedDispatchesInTimeOrder() throws IOException{
+		String log = "// time\tstream\r\n1000\t0\r\n\n1500 2\n2000\t0\n9000\t1";
+		ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(log.getBytes("US-ASCII")));
+		//A buffer smaller than the log, so lines are split across reads
+		DetectorFeed feed = new DetectorFeed(channel, 3, 20);
+		
+		assertFalse(feed.isWaiting(0, 999));
+		assertTrue(feed.isWaiting(2, 1600));
+		assertEquals(feed.getDetections(0), 1);
+		assertTrue(feed.isWaiting(0, 2000 + DetectorFeed.DEFAULT_GAP_MILLIS - 1));
+		assertFalse(feed.isWaiting(0, 2000 + DetectorFeed.DEFAULT_GAP_MILLIS));
+		assertEquals(feed.getDetections(0), 2);
+		assertEquals(feed.getLastDetected(1), -1);
+		assertEquals(feed.dispatchAll(), 1);
+		assertEquals(feed.getLastDetected(1), 9000);
+		assertNull(feed.getError());
+	}
+	
+	@Test(expected = IOException.class)
+	public void testDetectorFeedRejectsUnknownStream() throws IOException{
+		ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream("1000\t3\n".getBytes("US-ASCII")));
+		new DetectorFeed(channel, 3, DetectorFeed.DEFAULT_BUFFER_BYTES).dispatchAll();
+	}
+	
+	@Test
+	public void testDetectorFeedKeepsDetectionsBeforeBadLine() throws IOException{
+		String log = "1000\t0\n2000\t1\nnot a detection\n3000\t2\n";
+		ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(log.getBytes("US-ASCII")));
+		DetectorFeed feed = new DetectorFeed(channel, 3, DetectorFeed.DEFAULT_BUFFER_BYTES);
+		
+		assertTrue(feed.isWaiting(1, 2500));
+		assertEquals(feed.getDetections(0), 1);
+		assertEquals(feed.getError().getMessage(), "Detector line 3 should be a time and a stream");
+		assertEquals(feed.getDetections(2), 0);
+	}
+	
+	@Test(expected = IOException.class)
+	public void testDetectorFeedRejectsTimeTooLarge() throws IOException{
+		ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream("99999999999999999999\t0\n".getBytes("US-ASCII")));
+		new DetectorFeed(channel, 3, DetectorFeed.DEFAULT_BUFFER_BYTES).dispatchAll();
+	}
+	
+	@Test
+	public void testSweepFindsSettingsNoWorseThanDescribed(){
+		IntersectionGenerator generator = new IntersectionGenerator(6);
+		generator.setStreams(8);
+		generator.setPhases(6);
+		IntersectionDescription description = generator.generate();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		ForkJoinPool single = new ForkJoinPool(1);
+		try {
+			MinGreenSweep sweep = new MinGreenSweep(pool);
+			sweep.setRange(5, 40, 5);
+			MinGreenSweep.Result best = sweep.search(description);
+			
+			//The same best setting however the candidates are shared out
+			MinGreenSweep.Result alone = new MinGreenSweep(single).search(description);
+			assertArrayEquals(alone.getMinGreenIntervals(), new MinGreenSweep(pool).search(description).getMinGreenIntervals());
+			
+			//Tuning the best settings again finds nothing better
+			IntersectionDescription tuned = MinGreenSweep.withMinGreenIntervals(description, 0, best.getMinGreenIntervals());
+			MinGreenSweep.Result retuned = sweep.search(tuned);
+			assertArrayEquals(retuned.getMinGreenIntervals(), best.getMinGreenIntervals());
+			assertEquals(retuned.getMeanDelaySeconds(), best.getMeanDelaySeconds(), 1e-9);
+			
+			//A random search scores the described intervals too
+			sweep.setRandomSearch(1, 0);
+			assertTrue(sweep.search(tuned).getMeanDelaySeconds() <= best.getMeanDelaySeconds());
+			
+			//Throughput is scored with every stream queued, however light the traffic
+			sweep.setRandomSearch(0, 0);
+			sweep.setArrivalsPerHour(10);
+			sweep.setObjective(MinGreenSweep.Objective.THROUGHPUT);
+			MinGreenSweep.Result mostThrough = sweep.search(description);
+			assertTrue(mostThrough.getVehiclesPerHour() > 8 * 10);
+			IntersectionDescription widest = MinGreenSweep.withMinGreenIntervals(description, 0, mostThrough.getMinGreenIntervals());
+			assertEquals(sweep.search(widest).getVehiclesPerHour(), mostThrough.getVehiclesPerHour(), 1e-9);
+		} finally {
+			pool.shutdown();
+			single.shutdown();
+		}
+	}
+	
+	@Test
+	public void testHostJitterPercentileMeetsLimitExactly(){
+		SimulationHost host = new SimulationHost(1);
+		try {
+			for (int i = 0; i < 99; i++)
+				host.recordJitter(4999999);
+			host.recordJitter(20000000);
+			assertTrue(host.getJitterPercentileMillis(0.99) < 5);
+			assertEquals(host.getMaxJitterMillis(), 20, 1e-9);
+			
+			host.resetJitter();
+			for (int i = 0; i < 100; i++)
+				host.recordJitter(5000000);
+			assertTrue(host.getJitterPercentileMillis(0.99) >= 5);
+		} finally {
+			host.shutdown();
+		}
+	}
+	
+	@Test
+	public void testHostStopsOnlyTheIntersectionThatThrows() throws InterruptedException{
+		IntersectionGenerator generator = new IntersectionGenerator(7);
+		SimulationHost host = new SimulationHost(2, 1000);
+		try {
+			final CountDownLatch failed = new CountDownLatch(1);
+			host.setFailureListener(new SimulationHost.FailureListener() {
+				
+				@Override
+				public void failed(VirtualTimeSimulation simulation, RuntimeException e) {
+					failed.countDown();
+				}
+			});
+			VirtualTimeSimulation broken = new VirtualTimeSimulation(generator.generate());
+			broken.addListener(new VirtualTimeSimulation.Listener() {
+				
+				@Override
+				public void phaseStarted(long time, int phase) {
+					if (phase == 1)
+						throw new IllegalStateException("Broken listener");
+				}
+				
+				@Override
+				public void streamChanged(long time, int stream, State state) {
+				}
+			});
+			host.add(broken);
+			host.add(new VirtualTimeSimulation(generator.generate()));
+			assertTrue(failed.await(10, TimeUnit.SECONDS));
+			assertEquals(host.getFailures(), 1);
+			assertEquals(host.getIntersections(), 1);
+			
+			//The other intersection carries on
+			long transitions = host.getTransitions();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (host.getTransitions() == transitions && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertTrue(host.getTransitions() > transitions);
+			assertEquals(host.getFailures(), 1);
+			assertTrue(host.getMaxJitterMillis() >= host.getJitterPercentileMillis(0.5));
+		} finally {
+			host.shutdown();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package traffic.diy;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import traffic.diy.IntersectionLoadException.Section;
+
+/**
+ * Counters and latency histograms for the busiest parts of the system,
+ * registered with the platform MBean server the first time they are used:
+ *
+ * <ul>
+ * <li>traffic.diy:type=Counters - phase transitions and stream state changes</li>
+ * <li>traffic.diy:type=Latency,name=FanOut - time to tell every subscriber of a change</li>
+ * <li>traffic.diy:type=Latency,name=GuiUpdate - time the monitor spends showing a frame</li>
+ * <li>traffic.diy:type=Latency,name=Parse.&lt;section&gt; - time to read each section of a file</li>
+ * </ul>
+ *
+ * @author cijolly
+ */
+public class IntersectionMetrics implements IntersectionMetricsMBean {
+
+	private static final String DOMAIN = "traffic.diy";
+	private static final IntersectionMetrics INSTANCE = new IntersectionMetrics();
+
+	static {
+		INSTANCE.register();
+	}
+
+	private final LongAdder phaseTransitions = new LongAdder();
+	private final LongAdder streamStateChanges = new LongAdder();
+	private final LatencyHistogram fanOut = new LatencyHistogram();
+	private final LatencyHistogram guiUpdate = new LatencyHistogram();
+	private final EnumMap<Section, LatencyHistogram> parse = new EnumMap<Section, LatencyHistogram>(Section.class);
+
+	private IntersectionMetrics() {
+		for (Section section : Section.values())
+			parse.put(section, new LatencyHistogram());
+	}
+
+	/**
+	 * @return	The metrics for this JVM.
+	 */
+	public static IntersectionMetrics get() {
+		return INSTANCE;
+	}
+
+	public void phaseTransition() {
+		phaseTransitions.increment();
+	}
+
+	public void streamStateChange() {
+		streamStateChanges.increment();
+	}
+
+	@Override
+	public long getPhaseTransitions() {
+		return phaseTransitions.sum();
+	}
+
+	@Override
+	public long getStreamStateChanges() {
+		return streamStateChanges.sum();
+	}
+
+	public LatencyHistogram getFanOut() {
+		return fanOut;
+	}
+
+	public LatencyHistogram getGuiUpdate() {
+		return guiUpdate;
+	}
+
+	/**
+	 * @return	Time taken to read the section of a file.
+	 */
+	public LatencyHistogram getParse(Section section) {
+		return parse.get(section);
+	}
+
+	/**
+	 * Reset the counters. The histograms are reset through their own MBeans.
+	 */
+	@Override
+	public void reset() {
+		phaseTransitions.reset();
+		streamStateChanges.reset();
+	}
+
+	/**
+	 * Register the MBeans. Failing to is reported but otherwise ignored, as
+	 * the metrics are still collected.
+	 */
+	private void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, new ObjectName(DOMAIN + ":type=Counters"));
+			server.registerMBean(fanOut, new ObjectName(DOMAIN + ":type=Latency,name=FanOut"));
+			server.registerMBean(guiUpdate, new ObjectName(DOMAIN + ":type=Latency,name=GuiUpdate"));
+			for (Section section : Section.values())
+				server.registerMBean(parse.get(section),
+						new ObjectName(DOMAIN + ":type=Latency,name=Parse." + section.name()));
+		} catch (JMException e) {
+			e.printStackTrace();
+		} catch (SecurityException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package traffic.diy;
+
+/**
+ * What JMX sees of the IntersectionMetrics counters.
+ *
+ * @author cijolly
+ */
+public interface IntersectionMetricsMBean {
+
+	long getPhaseTransitions();
+
+	long getStreamStateChanges();
+
+	void reset();
+}
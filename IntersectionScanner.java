@@ -0,0 +1,254 @@
+package traffic.diy;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Split an intersection description file into lines and tab separated fields,
+ * skipping comments and blank lines. Characters are read into a reused buffer,
+ * and fields are kept as offsets into the current line, so no Strings are
+ * created unless a caller asks for one.
+ *
+ * @author cijolly
+ */
+public class IntersectionScanner {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Reader in;
+	private final ByteBuffer bytes;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+	private boolean skipLineFeed = false;
+
+	private char[] line = new char[128];
+	private int lineLength = 0;
+	private int lineNumber = 0;
+
+	private int[] fieldStarts = new int[8];
+	private int[] fieldEnds = new int[8];
+	private int fieldCount = 0;
+
+	private boolean peeked = false;
+	private boolean peekedResult = false;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param in	where to read data from.
+	 */
+	public IntersectionScanner(Reader in) {
+		this.in = in;
+		this.bytes = null;
+	}
+
+	/**
+	 * Constructor for class. Each byte is treated as one character, so the
+	 * file should be ASCII (other bytes are read as ISO-8859-1).
+	 *
+	 * @param bytes	where to read data from, from its position to its limit.
+	 */
+	public IntersectionScanner(ByteBuffer bytes) {
+		this.in = null;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Move to the next line which is not blank or a comment (begins with '//').
+	 *
+	 * @return	true if a line was found, false at the end of the file.
+	 * @throws IOException	if the file can't be read.
+	 */
+	public boolean nextLine() throws IOException {
+		if (peeked) {
+			peeked = false;
+			return peekedResult;
+		}
+		return readNonCommentLine();
+	}
+
+	/**
+	 * Check whether there is another line which is not blank or a comment. The
+	 * line becomes the current line, and the next call to nextLine() stays on it.
+	 *
+	 * @return	true if there is another line, false at the end of the file.
+	 * @throws IOException	if the file can't be read.
+	 */
+	public boolean hasNextLine() throws IOException {
+		if (!peeked) {
+			peekedResult = readNonCommentLine();
+			peeked = true;
+		}
+		return peekedResult;
+	}
+
+	private boolean readNonCommentLine() throws IOException {
+		while (readLine()) {
+			lineNumber++;
+			if (lineLength == 0)
+				continue;
+			if (lineLength >= 2 && line[0] == '/' && line[1] == '/')
+				continue;
+			splitFields();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return	The number of the current line in the file, counting comments and blank lines.
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @param text	A tag or other complete line.
+	 * @return	true if the whole of the current line is the same as the text.
+	 */
+	public boolean lineEquals(String text) {
+		return regionEquals(0, lineLength, text);
+	}
+
+	/**
+	 * @return	The number of tab separated fields in the current line. As with
+	 * 			String.split, empty fields at the end of the line aren't counted.
+	 */
+	public int fieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * @param field	Index of a field in the current line.
+	 * @return	The number of characters in the field.
+	 */
+	public int fieldLength(int field) {
+		return fieldEnds[field] - fieldStarts[field];
+	}
+
+	/**
+	 * @param field	Index of a field in the current line.
+	 * @param index	Index of a character within the field.
+	 * @return	The character.
+	 */
+	public char fieldCharAt(int field, int index) {
+		return line[fieldStarts[field] + index];
+	}
+
+	/**
+	 * @param field	Index of a field in the current line.
+	 * @param text	The text to compare the field to.
+	 * @return	true if the field holds exactly the text.
+	 */
+	public boolean fieldEquals(int field, String text) {
+		return regionEquals(fieldStarts[field], fieldEnds[field], text);
+	}
+
+	/**
+	 * @param field	Index of a field in the current line.
+	 * @return	A new String holding the field. Only use for names and descriptions
+	 * 			which need to be kept.
+	 */
+	public String fieldString(int field) {
+		return new String(line, fieldStarts[field], fieldLength(field));
+	}
+
+	/**
+	 * Read characters into the line buffer up to the next line terminator
+	 * ('\n', '\r' or "\r\n", as for BufferedReader.readLine).
+	 *
+	 * @return	false if the end of the file was reached before any characters were read.
+	 */
+	private boolean readLine() throws IOException {
+		lineLength = 0;
+		boolean readAny = false;
+		while (true) {
+			if (position >= limit && !fill())
+				return readAny;
+			char c = buffer[position++];
+			if (skipLineFeed) {
+				skipLineFeed = false;
+				if (c == '\n')
+					continue;
+			}
+			readAny = true;
+			if (c == '\n')
+				return true;
+			if (c == '\r') {
+				skipLineFeed = true;
+				return true;
+			}
+			if (lineLength == line.length)
+				line = Arrays.copyOf(line, line.length * 2);
+			line[lineLength++] = c;
+		}
+	}
+
+	/**
+	 * Refill the character buffer.
+	 *
+	 * @return	false at the end of the file.
+	 */
+	private boolean fill() throws IOException {
+		if (bytes != null)
+			return fillFromBytes();
+		int read = in.read(buffer, 0, buffer.length);
+		if (read <= 0)
+			return false;
+		position = 0;
+		limit = read;
+		return true;
+	}
+
+	/**
+	 * Refill the character buffer from the byte buffer, one character per byte.
+	 *
+	 * @return	false at the end of the buffer.
+	 */
+	private boolean fillFromBytes() {
+		int read = Math.min(bytes.remaining(), buffer.length);
+		if (read == 0)
+			return false;
+		for (int i = 0; i < read; i++)
+			buffer[i] = (char) (bytes.get() & 0xff);
+		position = 0;
+		limit = read;
+		return true;
+	}
+
+	/**
+	 * Record the start and end of each tab separated field in the current line.
+	 */
+	private void splitFields() {
+		fieldCount = 0;
+		int start = 0;
+		for (int i = 0; i <= lineLength; i++) {
+			if (i == lineLength || line[i] == '\t') {
+				if (fieldCount == fieldStarts.length) {
+					fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+					fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+				}
+				fieldStarts[fieldCount] = start;
+				fieldEnds[fieldCount] = i;
+				fieldCount++;
+				start = i + 1;
+			}
+		}
+		//Drop trailing empty fields, as String.split does
+		while (fieldCount > 0 && fieldStarts[fieldCount - 1] == fieldEnds[fieldCount - 1])
+			fieldCount--;
+	}
+
+	private boolean regionEquals(int start, int end, String text) {
+		if (end - start != text.length())
+			return false;
+		for (int i = 0; i < text.length(); i++) {
+			if (line[start + i] != text.charAt(i))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,330 @@
+package traffic.diy;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import traffic.core.Phase;
+import traffic.core.TrafficStream;
+import traffic.diy.IntersectionDescription.PhaseDescription;
+import traffic.util.State;
+
+/**
+ * The latest state of a running intersection: the running phase and the
+ * state of every stream. Whatever runs the intersection keeps it up to date,
+ * and anything showing the intersection reads it when it is ready to.
+ *
+ * Readers never lock. The states are packed into an array of longs as in
+ * PackedPhaseStates, with the running phase after them, guarded by a
+ * sequence number that is odd while a change is being written. A reader
+ * copies the array and tries again if the sequence number changed while it
+ * did, so readers never hold up the intersection, and a slow reader just
+ * misses the changes in between.
+ *
+ * A change of phase is written as one change, the phase with all its
+ * streams, so no reader sees it half done. Followed through a simulation,
+ * the transition is buffered until the simulation says it has ended. Followed
+ * through a bus, where the phase and each stream arrive on their own, it is
+ * buffered until every stream has reached its planned state, or the next
+ * phase starts. Stream changes outside a transition are written as they come.
+ *
+ * Every change moves the version on, so a reader can tell whether there is
+ * anything new without copying the states.
+ *
+ * @author cijolly
+ */
+public class IntersectionStatus implements VirtualTimeSimulation.Listener {
+
+	private final String name;
+	private final String[] streamNames;
+	private final String[] phaseNames;
+	private final IntersectionDescription description;
+	private final CompiledPhasePlan plan;
+
+	private final int streams;
+	private final int words;
+
+	/**
+	 * The packed stream states, then the running phase.
+	 */
+	private final AtomicLongArray snapshot;
+
+	/**
+	 * Even when the snapshot can be read, odd while it is being written.
+	 */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * The writers' view of the states, with any transition not yet written.
+	 * Guarded by this, like the rest of the writers' state.
+	 */
+	private final PackedPhaseStates pending;
+	private int pendingPhase = -1;
+	private boolean inTransition;
+	/**
+	 * What the transition ends with when followed through a bus, or null.
+	 */
+	private PackedPhaseStates planned;
+
+	/**
+	 * Constructor for class, for a simulation of a description's first plan.
+	 * Pass it to the simulation's addListener().
+	 *
+	 * @param description	The intersection being simulated.
+	 */
+	public IntersectionStatus(IntersectionDescription description) {
+		this.name = description.getName();
+		this.description = description;
+		this.plan = null;
+		List<IntersectionDescription.StreamDescription> described = description.getStreams();
+		streamNames = new String[described.size()];
+		for (int s = 0; s < streamNames.length; s++)
+			streamNames[s] = described.get(s).getName();
+		List<PhaseDescription> phases = description.getPlans().get(0);
+		phaseNames = new String[phases.size()];
+		for (int p = 0; p < phaseNames.length; p++)
+			phaseNames[p] = phases.get(p).getName();
+		streams = streamNames.length;
+		pending = startingStates();
+		words = pending.wordCount();
+		snapshot = startingSnapshot();
+	}
+
+	/**
+	 * For a built intersection. Use attach() to keep it up to date.
+	 *
+	 * @param name			Name of the intersection.
+	 * @param plan			The intersection's plan, which numbers its streams and phases.
+	 * @param description	The description it was built from, or null.
+	 */
+	public IntersectionStatus(String name, CompiledPhasePlan plan, IntersectionDescription description) {
+		this.name = name;
+		this.description = description;
+		this.plan = plan;
+		streamNames = new String[plan.streamCount()];
+		for (int s = 0; s < streamNames.length; s++)
+			streamNames[s] = plan.getStream(s).getname();
+		phaseNames = new String[plan.phaseCount()];
+		for (int p = 0; p < phaseNames.length; p++)
+			phaseNames[p] = plan.getPhase(p).getName();
+		streams = streamNames.length;
+		pending = startingStates();
+		words = pending.wordCount();
+		snapshot = startingSnapshot();
+	}
+
+	/**
+	 * @return	Every stream red, as before an intersection starts.
+	 */
+	private PackedPhaseStates startingStates() {
+		PackedPhaseStates red = new PackedPhaseStates(streams);
+		for (int s = 0; s < streams; s++)
+			red.set(s, State.RED);
+		return red;
+	}
+
+	/**
+	 * @return	The starting states, with no phase running.
+	 */
+	private AtomicLongArray startingSnapshot() {
+		AtomicLongArray starting = new AtomicLongArray(words + 1);
+		for (int w = 0; w < words; w++)
+			starting.set(w, pending.getWord(w));
+		starting.set(words, -1);
+		return starting;
+	}
+
+	/**
+	 * Follow a built intersection's streams and phases through its bus.
+	 *
+	 * @return	The subscriptions made, to stop following with unsubscribeAll().
+	 */
+	public IntersectionEventBus.Subscriptions attach(IntersectionEventBus bus) {
+		if (plan == null)
+			throw new IllegalStateException("Only a built intersection can be attached");
+		IntersectionEventBus.Subscriptions subscriptions = bus.subscriptions();
+		for (int s = 0; s < plan.streamCount(); s++) {
+			final int stream = s;
+			subscriptions.subscribe(plan.getStream(s), new IntersectionEventBus.StreamListener() {
+
+				@Override
+				public void streamChanged(TrafficStream ts, State state) {
+					plannedStreamChanged(stream, state);
+				}
+			});
+		}
+		for (int p = 0; p < plan.phaseCount(); p++) {
+			final int index = p;
+			subscriptions.subscribe(plan.getPhase(p), new IntersectionEventBus.PhaseListener() {
+
+				@Override
+				public void phaseStarted(Phase started, String message) {
+					plannedPhaseStarted(index);
+				}
+			});
+		}
+		return subscriptions;
+	}
+
+	/**
+	 * Start buffering a transition, written once the simulation ends it.
+	 */
+	@Override
+	public synchronized void phaseStarted(long time, int phase) {
+		startTransition(phase, null);
+	}
+
+	@Override
+	public synchronized void streamChanged(long time, int stream, State state) {
+		if (stream < 0 || stream >= streams)
+			throw new IndexOutOfBoundsException("Stream " + stream + " of " + streams);
+		pending.set(stream, state);
+		if (inTransition)
+			return;
+		int word = PackedPhaseStates.wordOf(stream);
+		long start = beginWrite();
+		snapshot.set(word, pending.getWord(word));
+		endWrite(start);
+	}
+
+	@Override
+	public synchronized void transitionEnded(long time) {
+		endTransition();
+	}
+
+	private synchronized void plannedPhaseStarted(int phase) {
+		startTransition(phase, plan.getStates(phase));
+		// The streams may have changed before the phase said it started
+		if (pending.nextChange(planned, 0) < 0)
+			endTransition();
+	}
+
+	private synchronized void plannedStreamChanged(int stream, State state) {
+		streamChanged(0, stream, state);
+		if (inTransition && planned != null && pending.nextChange(planned, 0) < 0)
+			endTransition();
+	}
+
+	private void startTransition(int phase, PackedPhaseStates planned) {
+		// A transition that never reached its planned states is written as it got
+		endTransition();
+		pendingPhase = phase;
+		this.planned = planned;
+		inTransition = true;
+	}
+
+	private void endTransition() {
+		if (!inTransition)
+			return;
+		inTransition = false;
+		planned = null;
+		write(pendingPhase, pending);
+	}
+
+	/**
+	 * Change the running phase and every stream at once, so no reader sees
+	 * some streams changed and not others.
+	 *
+	 * @param phase		Index of the running phase.
+	 * @param states	The state of every stream.
+	 */
+	public synchronized void publish(int phase, PackedPhaseStates states) {
+		if (states.size() != streams)
+			throw new IllegalArgumentException(states.size() + " stream states for " + streams + " streams");
+		inTransition = false;
+		planned = null;
+		pendingPhase = phase;
+		pending.copyFrom(states);
+		write(phase, states);
+	}
+
+	private void write(int phase, PackedPhaseStates states) {
+		long start = beginWrite();
+		for (int w = 0; w < words; w++)
+			snapshot.set(w, states.getWord(w));
+		snapshot.set(words, phase);
+		endWrite(start);
+	}
+
+	/**
+	 * @return	A number that changes each time the status does.
+	 */
+	public long getVersion() {
+		return sequence.get() >>> 1;
+	}
+
+	/**
+	 * Copy the state of every stream, as they all were at one moment.
+	 *
+	 * @param into	Where to copy the states to, with a place for every stream.
+	 * @return	The index of the running phase, or -1 if none has started.
+	 */
+	public int read(PackedPhaseStates into) {
+		if (into.size() != streams)
+			throw new IllegalArgumentException("Place for " + into.size() + " stream states, not " + streams);
+		while (true) {
+			long start = sequence.get();
+			if ((start & 1) != 0) {
+				// A change is being written, and will be done in a moment
+				Thread.yield();
+				continue;
+			}
+			for (int w = 0; w < words; w++)
+				into.setWord(w, snapshot.get(w));
+			int phase = (int) snapshot.get(words);
+			// Only a consistent copy if nothing was written while copying
+			if (sequence.get() == start)
+				return phase;
+		}
+	}
+
+	/**
+	 * Claim the snapshot for writing. Writers hold this's lock, so this only
+	 * marks the snapshot as being written for readers.
+	 *
+	 * @return	The sequence number before writing.
+	 */
+	private long beginWrite() {
+		long start = sequence.get();
+		sequence.set(start + 1);
+		return start;
+	}
+
+	private void endWrite(long start) {
+		sequence.set(start + 2);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int streamCount() {
+		return streamNames.length;
+	}
+
+	public String getStreamName(int stream) {
+		return streamNames[stream];
+	}
+
+	public int phaseCount() {
+		return phaseNames.length;
+	}
+
+	public String getPhaseName(int phase) {
+		return phaseNames[phase];
+	}
+
+	/**
+	 * @return	The description the intersection was built from, or null.
+	 */
+	public IntersectionDescription getDescription() {
+		return description;
+	}
+
+	/**
+	 * @return	The built intersection's plan, or null if it is only simulated.
+	 */
+	public CompiledPhasePlan getPlan() {
+		return plan;
+	}
+}
@@ -0,0 +1,85 @@
+package traffic.diy;
+
+import traffic.core.TrafficStream;
+import traffic.util.State;
+
+/**
+ * Keeps a phase table, and a view of signal faces if there is one, showing
+ * the latest IntersectionStatus of an intersection. Nothing is told about
+ * changes; refresh() reads the status when the GUI is ready for a new frame,
+ * and passes on only what has changed since the last one.
+ *
+ * Use this on the EDT.
+ *
+ * @author cijolly
+ */
+public class IntersectionStatusView {
+
+	private final IntersectionStatus status;
+	private final CompiledPhasePlan plan;
+	private final PhaseTableView phaseTable;
+	private final SignalFaceArrayView faceView;
+
+	private final PackedPhaseStates latest;
+	private final PackedPhaseStates shown;
+	private int phase = -1;
+	private long version = -1;
+
+	/**
+	 * Constructor for class. The phase table and faces are assumed to start
+	 * with every stream red and no phase running.
+	 *
+	 * @param status		The status to show.
+	 * @param plan			The plan the status numbers its streams and phases by.
+	 * @param phaseTable	Shows the plan's phases.
+	 * @param faceView		Shows the signal faces, or null.
+	 */
+	public IntersectionStatusView(IntersectionStatus status, CompiledPhasePlan plan, PhaseTableView phaseTable,
+			SignalFaceArrayView faceView) {
+		if (status.streamCount() != plan.streamCount())
+			throw new IllegalArgumentException("Status has " + status.streamCount() + " streams, plan has "
+					+ plan.streamCount());
+		this.status = status;
+		this.plan = plan;
+		this.phaseTable = phaseTable;
+		this.faceView = faceView;
+		latest = new PackedPhaseStates(plan.streamCount());
+		shown = new PackedPhaseStates(plan.streamCount());
+		for (int s = 0; s < shown.size(); s++)
+			shown.set(s, State.RED);
+	}
+
+	public IntersectionStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * Catch up with the status, repainting the phases and faces that have
+	 * changed.
+	 *
+	 * @return	true if anything had changed.
+	 */
+	public boolean refresh() {
+		long newest = status.getVersion();
+		if (newest == version)
+			return false;
+		version = newest;
+		int newPhase = status.read(latest);
+		if (newPhase != phase && newPhase >= 0) {
+			// The new phase's chips start in their planned colours, so bring
+			// them all up to date
+			phaseTable.phaseStarted(plan.getPhase(newPhase));
+			for (int s = 0; s < latest.size(); s++)
+				phaseTable.streamChanged(plan.getStream(s), latest.get(s));
+		}
+		phase = newPhase;
+		for (int s = shown.nextChange(latest, 0); s >= 0; s = shown.nextChange(latest, s + 1)) {
+			TrafficStream ts = plan.getStream(s);
+			phaseTable.streamChanged(ts, latest.get(s));
+			if (faceView != null)
+				faceView.streamChanged(ts, latest.get(s));
+		}
+		shown.copyFrom(latest);
+		return true;
+	}
+}
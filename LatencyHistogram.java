@@ -0,0 +1,94 @@
+package traffic.diy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations. Each duration is counted in the bucket
+ * for its highest set bit, so recording is a few atomic adds and percentiles
+ * are accurate to within a factor of two.
+ *
+ * @author cijolly
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * @param nanos	A duration, in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+		count.increment();
+		totalNanos.add(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+			max = maxNanos.get();
+	}
+
+	/**
+	 * Record the time since start.
+	 *
+	 * @param startNanos	When the timed work started, from System.nanoTime().
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public double getMeanMicros() {
+		long n = count.sum();
+		return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+	}
+
+	@Override
+	public double getP50Micros() {
+		return getPercentileMicros(0.5);
+	}
+
+	@Override
+	public double getP99Micros() {
+		return getPercentileMicros(0.99);
+	}
+
+	@Override
+	public double getMaxMicros() {
+		return maxNanos.get() / 1000.0;
+	}
+
+	/**
+	 * @param fraction	Between 0 and 1.
+	 * @return	The upper bound of the bucket holding that fraction of durations,
+	 *          in microseconds.
+	 */
+	public double getPercentileMicros(double fraction) {
+		long wanted = (long) Math.ceil(count.sum() * fraction);
+		long seen = 0;
+		for (int i = 0; i < 64; i++) {
+			seen += buckets.get(i);
+			if (seen >= wanted && seen > 0)
+				return Math.min((2L << i) - 1, maxNanos.get()) / 1000.0;
+		}
+		return getMaxMicros();
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < 64; i++)
+			buckets.set(i, 0);
+		count.reset();
+		totalNanos.reset();
+		maxNanos.set(0);
+	}
+}
@@ -0,0 +1,21 @@
+package traffic.diy;
+
+/**
+ * What JMX sees of a LatencyHistogram. Times are in microseconds.
+ *
+ * @author cijolly
+ */
+public interface LatencyHistogramMBean {
+
+	long getCount();
+
+	double getMeanMicros();
+
+	double getP50Micros();
+
+	double getP99Micros();
+
+	double getMaxMicros();
+
+	void reset();
+}
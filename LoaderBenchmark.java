@@ -0,0 +1,91 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import traffic.core.Intersection;
+
+/**
+ * JMH benchmarks of MyIntersectionLoader.buildIntersection() on descriptions
+ * of increasing size from IntersectionGenerator.
+ *
+ * Run main() (with JMH on the class path) to run these and the
+ * TextParserBenchmark with the GC profiler, which reports allocation rates.
+ *
+ * @author cijolly
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoaderBenchmark {
+
+	/**
+	 * small is about the size of the demo intersections. huge has a phase
+	 * line of 500 colours for each of 1,998 phases.
+	 */
+	@Param({ "small", "medium", "huge" })
+	public String size;
+
+	private String description;
+
+	@Setup
+	public void generate() throws IOException {
+		IntersectionGenerator generator = new IntersectionGenerator(size.hashCode());
+		if (size.equals("small")) {
+			generator.setStreams(5);
+			generator.setPhases(6);
+			generator.setFaces(13);
+		} else if (size.equals("medium")) {
+			generator.setStreams(50);
+			generator.setPhases(99);
+			generator.setFaces(200);
+		} else {
+			generator.setStreams(500);
+			generator.setPhases(1998);
+			generator.setFaces(2000);
+		}
+		StringBuilder sb = new StringBuilder();
+		generator.generate().writeText(sb);
+		description = sb.toString();
+	}
+
+	@Benchmark
+	public Intersection buildIntersection() {
+		MyIntersectionLoader il = new MyIntersectionLoader(new BufferedReader(new StringReader(description)));
+		return il.buildIntersection();
+	}
+
+	/**
+	 * Run the loader and text parser benchmarks with the GC profiler.
+	 */
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(LoaderBenchmark.class.getSimpleName())
+				.include(TextParserBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,108 @@
+package traffic.diy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import traffic.core.Intersection;
+
+/**
+ * Load every intersection from a file holding many intersection descriptions
+ * one after another. The file is memory mapped and parsed straight from the
+ * mapped bytes, rather than being decoded into Strings a line at a time.
+ *
+ * @author cijolly
+ */
+public class MappedIntersectionLoader {
+
+	private final File file;
+	private long bytesLoaded = 0;
+	private long loadNanos = 0;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param file	The ASCII file of intersection descriptions to load.
+	 */
+	public MappedIntersectionLoader(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Map the file and build each intersection described in it, in order.
+	 *
+	 * @return	The intersections in the file.
+	 * @throws IOException	if the file can't be mapped.
+	 * @throws IntersectionLoadException	if any description is invalid. The line number is counted from the start of the file.
+	 */
+	public List<Intersection> loadIntersections() throws IOException, IntersectionLoadException {
+		long startTime = System.nanoTime();
+		ArrayList<Intersection> intersections = new ArrayList<Intersection>();
+		FileInputStream inFile = new FileInputStream(file);
+		try {
+			FileChannel channel = inFile.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("File too large to map: " + file);
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			IntersectionScanner scanner = new IntersectionScanner(mapped);
+			//Each loader reads one description, leaving the scanner at the start of the next
+			while (scanner.hasNextLine()) {
+				MyIntersectionLoader il = new MyIntersectionLoader(scanner);
+				intersections.add(il.loadIntersection());
+			}
+			bytesLoaded = size;
+		} finally {
+			inFile.close();
+		}
+		loadNanos = System.nanoTime() - startTime;
+		return intersections;
+	}
+
+	/**
+	 * @return	The size of the file in bytes, after a successful load.
+	 */
+	public long getBytesLoaded() {
+		return bytesLoaded;
+	}
+
+	/**
+	 * @return	Time taken by the last successful load, in milliseconds.
+	 */
+	public double getLoadMillis() {
+		return loadNanos / 1e6;
+	}
+
+	/**
+	 * @return	Throughput of the last successful load, in megabytes per second.
+	 */
+	public double getMegabytesPerSecond() {
+		if (loadNanos == 0)
+			return 0;
+		return (bytesLoaded / (1024.0 * 1024.0)) / (loadNanos / 1e9);
+	}
+
+	/**
+	 * Load each file named on the command line and report how fast it was read.
+	 */
+	public static void main(String[] args) {
+		for (String name : args) {
+			MappedIntersectionLoader loader = new MappedIntersectionLoader(new File(name));
+			try {
+				List<Intersection> intersections = loader.loadIntersections();
+				System.out.printf("%s: %d intersections, %d bytes in %.1f ms (%.1f MB/s)%n", name,
+						intersections.size(), loader.getBytesLoaded(), loader.getLoadMillis(),
+						loader.getMegabytesPerSecond());
+			} catch (IntersectionLoadException e) {
+				System.out.println(name + ": " + e.getMessage());
+			} catch (IOException e) {
+				System.out.println(name + ": unable to read file");
+				e.printStackTrace();
+			}
+		}
+	}
+}
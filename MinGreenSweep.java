@@ -0,0 +1,607 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import traffic.diy.IntersectionDescription.FaceDescription;
+import traffic.diy.IntersectionDescription.PhaseDescription;
+import traffic.diy.IntersectionDescription.StreamDescription;
+import traffic.util.State;
+
+/**
+ * Finds the min green intervals that suit a phase plan best, by running it
+ * in virtual time with each of many candidate settings and keeping the one
+ * that scores best. Candidates are either every combination of intervals in
+ * a range (a grid), or a number of combinations picked at random. A grid of
+ * more than MAX_GRID_CANDIDATES is searched at random instead. Candidates
+ * are shared out over a fork-join pool, and whole networks of intersections
+ * can be tuned at once.
+ *
+ * Each candidate is scored with a simple queueing model. Vehicles arrive on
+ * each stream at a steady rate and queue until it is green, when they leave
+ * at the saturation flow once the first vehicle has got going. Delay is the
+ * mean time a vehicle spends queueing, and throughput is the vehicles that
+ * leave in an hour; when tuning for throughput, with more traffic arriving
+ * than can leave. For fully actuated plans a stream has traffic waiting
+ * while its queue isn't empty.
+ *
+ * Only phases with a green stream and no yellow one are tuned; warnings and
+ * all red clearances keep their described intervals. The described intervals
+ * are always scored too, so the best result is never worse than them.
+ *
+ * @author cijolly
+ */
+public class MinGreenSweep {
+
+	/**
+	 * What makes one setting better than another.
+	 */
+	public enum Objective {
+		/** The least mean delay per vehicle. */
+		DELAY,
+		/**
+		 * The most vehicles the intersection can pass with every stream
+		 * queued. Counting those that leave at the arrival rates instead
+		 * would score every setting that clears light traffic the same.
+		 */
+		THROUGHPUT
+	}
+
+	/**
+	 * Default vehicles arriving on each stream in an hour.
+	 */
+	public static final double DEFAULT_ARRIVALS_PER_HOUR = 300;
+
+	/**
+	 * Vehicles a green stream can pass in an hour.
+	 */
+	public static final double SATURATION_PER_HOUR = 1800;
+
+	/**
+	 * Green time lost while the first vehicle in a queue gets going, in
+	 * milliseconds.
+	 */
+	public static final long STARTUP_LOST_MILLIS = 2000;
+
+	public static final int DEFAULT_MIN_SECONDS = 5;
+	public static final int DEFAULT_MAX_SECONDS = 60;
+	public static final int DEFAULT_STEP_SECONDS = 5;
+
+	/**
+	 * The most candidates a grid search tries. A bigger grid is searched with
+	 * this many candidates picked at random.
+	 */
+	public static final int MAX_GRID_CANDIDATES = 100000;
+
+	/**
+	 * Default virtual time each candidate is run for.
+	 */
+	public static final double DEFAULT_HOURS = 1;
+
+	/**
+	 * Candidates scored by each task before it is split.
+	 */
+	private static final int CANDIDATES_PER_TASK = 16;
+
+	private static final double MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+	/**
+	 * The best setting found for a plan.
+	 */
+	public static class Result {
+		private final int[] minGreenIntervals;
+		private final double meanDelaySeconds;
+		private final double vehiclesPerHour;
+
+		Result(int[] minGreenIntervals, double meanDelaySeconds, double vehiclesPerHour) {
+			this.minGreenIntervals = minGreenIntervals;
+			this.meanDelaySeconds = meanDelaySeconds;
+			this.vehiclesPerHour = vehiclesPerHour;
+		}
+
+		/**
+		 * @return	The min green interval of each phase of the plan, in seconds.
+		 */
+		public int[] getMinGreenIntervals() {
+			return minGreenIntervals.clone();
+		}
+
+		public double getMeanDelaySeconds() {
+			return meanDelaySeconds;
+		}
+
+		/**
+		 * @return	For a THROUGHPUT search, the vehicles the setting can pass in
+		 *          an hour with every stream queued. Otherwise the vehicles that
+		 *          left at the arrival rates.
+		 */
+		public double getVehiclesPerHour() {
+			return vehiclesPerHour;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %.1f s mean delay, %.0f vehicles/h", Arrays.toString(minGreenIntervals),
+					meanDelaySeconds, vehiclesPerHour);
+		}
+	}
+
+	/**
+	 * Vehicles queueing on each stream of one simulation, as a steady flow.
+	 */
+	private static class Traffic implements VirtualTimeSimulation.Listener, VirtualTimeSimulation.Demand {
+		private final double[] arrivals;
+		private final double saturation;
+		private final double[] queue;
+		private final long[] since;
+		private final boolean[] green;
+		private final long[] discharging;
+		private double delay = 0;
+		private double arrived = 0;
+		private double served = 0;
+
+		/**
+		 * @param arrivalsPerHour	Vehicles arriving on each stream in an hour.
+		 */
+		Traffic(double[] arrivalsPerHour) {
+			arrivals = new double[arrivalsPerHour.length];
+			for (int s = 0; s < arrivals.length; s++)
+				arrivals[s] = arrivalsPerHour[s] / MILLIS_PER_HOUR;
+			saturation = SATURATION_PER_HOUR / MILLIS_PER_HOUR;
+			queue = new double[arrivals.length];
+			since = new long[arrivals.length];
+			green = new boolean[arrivals.length];
+			discharging = new long[arrivals.length];
+		}
+
+		@Override
+		public void phaseStarted(long time, int phase) {
+		}
+
+		@Override
+		public void streamChanged(long time, int stream, State state) {
+			advance(stream, time);
+			green[stream] = state == State.GREEN;
+			discharging[stream] = time + STARTUP_LOST_MILLIS;
+		}
+
+		@Override
+		public boolean isWaiting(int stream, long time) {
+			advance(stream, time);
+			return queue[stream] > 0;
+		}
+
+		void finish(long time) {
+			for (int s = 0; s < queue.length; s++)
+				advance(s, time);
+		}
+
+		/**
+		 * Bring a stream's queue up to a time, adding up the delay on the way.
+		 */
+		private void advance(int stream, long time) {
+			if (green[stream] && since[stream] < discharging[stream])
+				flow(stream, Math.min(time, discharging[stream]), false);
+			flow(stream, time, green[stream]);
+		}
+
+		/**
+		 * @param moving	true if the queue is leaving at the saturation flow.
+		 */
+		private void flow(int stream, long time, boolean moving) {
+			double t = time - since[stream];
+			if (t <= 0)
+				return;
+			since[stream] = time;
+			double start = queue[stream];
+			double rate = moving ? arrivals[stream] - saturation : arrivals[stream];
+			arrived += arrivals[stream] * t;
+			if (rate < 0 && start < -rate * t) {
+				// The queue clears, and after that vehicles pass without waiting
+				delay += start * (start / -rate) / 2;
+				served += start + arrivals[stream] * t;
+				queue[stream] = 0;
+				return;
+			}
+			delay += start * t + rate * t * t / 2;
+			if (moving)
+				served += saturation * t;
+			queue[stream] = start + rate * t;
+		}
+
+		double meanDelaySeconds() {
+			return arrived > 0 ? delay / arrived / 1000 : 0;
+		}
+	}
+
+	/**
+	 * One plan being tuned, and how to make and score its candidates. Takes
+	 * the sweep's settings as they were when the search was made.
+	 */
+	private class Search {
+		private final Objective objective = MinGreenSweep.this.objective;
+		private final int minSeconds = MinGreenSweep.this.minSeconds;
+		private final int stepSeconds = MinGreenSweep.this.stepSeconds;
+		private final long seed = MinGreenSweep.this.seed;
+		private final double hours = MinGreenSweep.this.hours;
+		private final IntersectionDescription description;
+		private final int plan;
+		private final double[] arrivalsPerHour;
+		private final int[] described;
+		private final int[] tuned;
+		private final int values;
+		private final long candidates;
+		private final boolean random;
+
+		Search(IntersectionDescription description, int plan, double[] arrivalsPerHour) {
+			if (arrivalsPerHour.length != description.getStreams().size())
+				throw new IllegalArgumentException(arrivalsPerHour.length + " arrival rates for "
+						+ description.getStreams().size() + " streams");
+			this.description = description;
+			this.plan = plan;
+			this.arrivalsPerHour = arrivalsPerHour.clone();
+			List<PhaseDescription> phases = description.getPlans().get(plan);
+			described = new int[phases.size()];
+			int[] tunable = new int[phases.size()];
+			int count = 0;
+			for (int p = 0; p < described.length; p++) {
+				described[p] = phases.get(p).getMinGreenInterval();
+				if (isTunable(phases.get(p)))
+					tunable[count++] = p;
+			}
+			tuned = Arrays.copyOf(tunable, count);
+			values = (maxSeconds - minSeconds) / stepSeconds + 1;
+
+			long grid = 1;
+			for (int i = 0; i < tuned.length && grid <= MAX_GRID_CANDIDATES; i++)
+				grid *= values;
+			if (randomCandidates > 0) {
+				random = true;
+				candidates = randomCandidates;
+			} else if (grid > MAX_GRID_CANDIDATES) {
+				random = true;
+				candidates = MAX_GRID_CANDIDATES;
+			} else {
+				random = false;
+				candidates = grid;
+			}
+		}
+
+		/**
+		 * @return	The intervals of a candidate, worked out from its number
+		 *          alone so any task can make any candidate.
+		 */
+		int[] candidate(long number) {
+			int[] intervals = described.clone();
+			if (random) {
+				Random r = new Random(seed + number * 0x9E3779B97F4A7C15L);
+				for (int p : tuned)
+					intervals[p] = minSeconds + r.nextInt(values) * stepSeconds;
+			} else {
+				for (int p : tuned) {
+					intervals[p] = minSeconds + (int) (number % values) * stepSeconds;
+					number /= values;
+				}
+			}
+			return intervals;
+		}
+
+		Result score(int[] intervals) {
+			Traffic traffic = run(intervals, arrivalsPerHour);
+			double served = traffic.served;
+			if (objective == Objective.THROUGHPUT) {
+				// More than can leave, so every stream is always queued
+				double[] saturated = new double[arrivalsPerHour.length];
+				Arrays.fill(saturated, 2 * SATURATION_PER_HOUR);
+				served = run(intervals, saturated).served;
+			}
+			return new Result(intervals, traffic.meanDelaySeconds(), served / hours);
+		}
+
+		/**
+		 * @return	The traffic after running the plan with a candidate's intervals.
+		 */
+		private Traffic run(int[] intervals, double[] arrivals) {
+			VirtualTimeSimulation simulation = new VirtualTimeSimulation(description, plan, intervals);
+			Traffic traffic = new Traffic(arrivals);
+			simulation.addListener(traffic);
+			if (!description.isPreTimed())
+				simulation.setDemand(traffic);
+			long end = (long) (hours * MILLIS_PER_HOUR);
+			simulation.runUntil(end);
+			traffic.finish(end);
+			return traffic;
+		}
+
+		/**
+		 * @return	The better of two results, or the first if they are as good.
+		 */
+		Result better(Result a, Result b) {
+			if (a == null)
+				return b;
+			if (b == null)
+				return a;
+			if (objective == Objective.THROUGHPUT && b.vehiclesPerHour != a.vehiclesPerHour)
+				return b.vehiclesPerHour > a.vehiclesPerHour ? b : a;
+			return b.meanDelaySeconds < a.meanDelaySeconds ? b : a;
+		}
+
+		/**
+		 * Score the candidates in this thread and the pool it is part of.
+		 */
+		Result run() {
+			Result best = score(described);
+			if (tuned.length == 0)
+				return best;
+			return better(best, new Candidates(this, 0, candidates).invoke());
+		}
+	}
+
+	/**
+	 * Scores a range of a search's candidates, splitting it in half until
+	 * it is small.
+	 */
+	private class Candidates extends RecursiveTask<Result> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Search search;
+		private final long from;
+		private final long to;
+
+		Candidates(Search search, long from, long to) {
+			this.search = search;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Result compute() {
+			if (to - from <= CANDIDATES_PER_TASK) {
+				Result best = null;
+				for (long c = from; c < to; c++)
+					best = search.better(best, search.score(search.candidate(c)));
+				return best;
+			}
+			long middle = (from + to) >>> 1;
+			Candidates first = new Candidates(search, from, middle);
+			first.fork();
+			Result second = new Candidates(search, middle, to).compute();
+			return search.better(first.join(), second);
+		}
+	}
+
+	/**
+	 * Tunes a range of a network's intersections, splitting it in half until
+	 * there is one.
+	 */
+	private class Intersections extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<IntersectionDescription> descriptions;
+		private final Result[] results;
+		private final int from;
+		private final int to;
+
+		Intersections(List<IntersectionDescription> descriptions, Result[] results, int from, int to) {
+			this.descriptions = descriptions;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				IntersectionDescription description = descriptions.get(from);
+				results[from] = new Search(description, 0, uniformArrivals(description)).run();
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Intersections(descriptions, results, from, middle),
+						new Intersections(descriptions, results, middle, to));
+			}
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private Objective objective = Objective.DELAY;
+	private int minSeconds = DEFAULT_MIN_SECONDS;
+	private int maxSeconds = DEFAULT_MAX_SECONDS;
+	private int stepSeconds = DEFAULT_STEP_SECONDS;
+	private int randomCandidates = 0;
+	private long seed = 0;
+	private double hours = DEFAULT_HOURS;
+	private double arrivalsPerHour = DEFAULT_ARRIVALS_PER_HOUR;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param pool	The pool to score candidates on.
+	 */
+	public MinGreenSweep(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public void setObjective(Objective objective) {
+		this.objective = objective;
+	}
+
+	/**
+	 * Set the intervals tried for each tuned phase.
+	 *
+	 * @param minSeconds	The shortest interval.
+	 * @param maxSeconds	The longest interval.
+	 * @param stepSeconds	The difference between one interval and the next.
+	 */
+	public void setRange(int minSeconds, int maxSeconds, int stepSeconds) {
+		if (minSeconds < 1 || maxSeconds < minSeconds || stepSeconds < 1)
+			throw new IllegalArgumentException("Invalid range " + minSeconds + " to " + maxSeconds + " in steps of "
+					+ stepSeconds);
+		this.minSeconds = minSeconds;
+		this.maxSeconds = maxSeconds;
+		this.stepSeconds = stepSeconds;
+	}
+
+	/**
+	 * Try a number of settings picked at random from the range, instead of
+	 * every setting.
+	 *
+	 * @param candidates	Number of settings to try, or 0 for a grid search
+	 *                      of up to MAX_GRID_CANDIDATES.
+	 * @param seed			Seed for picking them.
+	 */
+	public void setRandomSearch(int candidates, long seed) {
+		if (candidates < 0)
+			throw new IllegalArgumentException("Can't try " + candidates + " candidates");
+		this.randomCandidates = candidates;
+		this.seed = seed;
+	}
+
+	/**
+	 * @param hours	Virtual time each candidate is run for.
+	 */
+	public void setHours(double hours) {
+		if (hours <= 0)
+			throw new IllegalArgumentException("Hours must be more than 0");
+		this.hours = hours;
+	}
+
+	/**
+	 * @param arrivalsPerHour	Vehicles arriving on every stream in an hour,
+	 *                          unless given for each stream.
+	 */
+	public void setArrivalsPerHour(double arrivalsPerHour) {
+		this.arrivalsPerHour = arrivalsPerHour;
+	}
+
+	/**
+	 * Tune the first plan of an intersection.
+	 *
+	 * @return	The best setting found.
+	 */
+	public Result search(IntersectionDescription description) {
+		return search(description, 0, uniformArrivals(description));
+	}
+
+	/**
+	 * @param description		The intersection.
+	 * @param plan				Index of the plan to tune.
+	 * @param arrivalsPerHour	Vehicles arriving on each stream in an hour.
+	 * @return	The best setting found.
+	 */
+	public Result search(final IntersectionDescription description, final int plan, final double[] arrivalsPerHour) {
+		final Search search = new Search(description, plan, arrivalsPerHour);
+		return pool.invoke(new RecursiveTask<Result>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Result compute() {
+				return search.run();
+			}
+		});
+	}
+
+	/**
+	 * Tune the first plan of every intersection in a network, all at once.
+	 *
+	 * @return	The best setting for each intersection, in the same order.
+	 */
+	public List<Result> searchNetwork(List<IntersectionDescription> descriptions) {
+		Result[] results = new Result[descriptions.size()];
+		if (results.length > 0)
+			pool.invoke(new Intersections(descriptions, results, 0, results.length));
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * @return	A copy of a description with new min green intervals for a
+	 *          plan, ready to be written out.
+	 */
+	public static IntersectionDescription withMinGreenIntervals(IntersectionDescription description, int plan,
+			int[] minGreenIntervals) {
+		IntersectionDescription tuned = new IntersectionDescription(description.getName(),
+				description.getDescription());
+		tuned.setPreTimed(description.isPreTimed());
+		for (StreamDescription stream : description.getStreams())
+			tuned.addStream(stream);
+		for (int p = 0; p < description.getPlans().size(); p++) {
+			ArrayList<PhaseDescription> phases = new ArrayList<PhaseDescription>();
+			for (int i = 0; i < description.getPlans().get(p).size(); i++) {
+				PhaseDescription phase = description.getPlans().get(p).get(i);
+				if (p == plan)
+					phase = new PhaseDescription(phase.getName(), phase.getDescription(), phase.getStreamStates(),
+							minGreenIntervals[i]);
+				phases.add(phase);
+			}
+			tuned.addPlan(phases);
+		}
+		for (FaceDescription face : description.getFaces())
+			tuned.addFace(face);
+		return tuned;
+	}
+
+	private double[] uniformArrivals(IntersectionDescription description) {
+		double[] arrivals = new double[description.getStreams().size()];
+		Arrays.fill(arrivals, arrivalsPerHour);
+		return arrivals;
+	}
+
+	/**
+	 * @return	true if a phase gives some stream right of way, rather than
+	 *          warning or clearing.
+	 */
+	private static boolean isTunable(PhaseDescription phase) {
+		PackedPhaseStates states = phase.getStreamStates();
+		boolean green = false;
+		for (int s = 0; s < states.size(); s++) {
+			if (states.get(s) == State.YELLOW)
+				return false;
+			green |= states.get(s) == State.GREEN;
+		}
+		return green;
+	}
+
+	/**
+	 * Tune intersection files, or a generated network if none are given, and
+	 * report how long it took.
+	 *
+	 * Arguments: [file...].
+	 */
+	public static void main(String[] args) throws IOException, IntersectionLoadException {
+		List<IntersectionDescription> descriptions = new ArrayList<IntersectionDescription>();
+		for (String name : args) {
+			BufferedReader in = new BufferedReader(new FileReader(name));
+			try {
+				descriptions.add(new MyIntersectionLoader(in).loadDescription());
+			} finally {
+				in.close();
+			}
+		}
+		MinGreenSweep sweep = new MinGreenSweep(ForkJoinPool.commonPool());
+		if (descriptions.isEmpty()) {
+			IntersectionGenerator generator = new IntersectionGenerator(1);
+			generator.setPhases(6);
+			for (int i = 0; i < 200; i++)
+				descriptions.add(generator.generate());
+			sweep.setRandomSearch(500, 1);
+		}
+
+		long start = System.nanoTime();
+		List<Result> results = sweep.searchNetwork(descriptions);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		for (int i = 0; i < results.size(); i++)
+			System.out.println(descriptions.get(i).getName() + " " + results.get(i));
+		System.out.printf("Tuned %d intersections in %.1f seconds on %d threads%n", results.size(), seconds,
+				ForkJoinPool.commonPool().getParallelism());
+	}
+}
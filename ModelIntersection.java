@@ -5,8 +5,7 @@ package traffic.diy;
 import traffic.core.Intersection;
 import traffic.core.Phase;
 import traffic.core.TrafficStream;
-//import traffic.misc.Detector;
-import traffic.misc.RandomDetector;
+import traffic.misc.Detector;
 import traffic.phaseplan.FullyActuatedPhasePlan;
 import traffic.phaseplan.PretimedPhasePlan;
 import traffic.signal.SignalFace;
@@ -27,6 +26,15 @@ public class ModelIntersection {
 	 * @return the intersection I made.
 	 */
 	public static Intersection preTimedIntersection() {
+		return preTimedIntersection(new IntersectionEventBus());
+	}
+
+	/**
+	 * The pre-timed demo, with its signal faces subscribed through a bus.
+	 * @param bus the bus to wire the signal faces through.
+	 * @return the intersection I made.
+	 */
+	public static Intersection preTimedIntersection(IntersectionEventBus bus) {
 
 		//Instantiate the intersection
 		Intersection myIntersection = new Intersection("Yaldhurst - Peer street", "Model of a pre-timed Cross Intersection");
@@ -124,24 +132,24 @@ public class ModelIntersection {
 		
 		SignalFace southProtectedRight = new SignalFace(TrafficDirection.SOUTHEAST, TrafficDirection.SOUTH , SignalFace.RIGHT_ARROW);
 		
-		//Add the signal faces as observers of the streams
-		nInbound.addObserver(north1);
-		nInbound.addObserver(north2);
-		nInbound.addObserver(north3);
+		//Subscribe the signal faces to the streams
+		bus.subscribeObserver(nInbound, north1);
+		bus.subscribeObserver(nInbound, north2);
+		bus.subscribeObserver(nInbound, north3);
 		
-		sInbound.addObserver(south1);
-		sInbound.addObserver(south2);
-		sInbound.addObserver(south3);
+		bus.subscribeObserver(sInbound, south1);
+		bus.subscribeObserver(sInbound, south2);
+		bus.subscribeObserver(sInbound, south3);
 		
-		eInbound.addObserver(east1);
-		eInbound.addObserver(east2);
-		eInbound.addObserver(east3);
+		bus.subscribeObserver(eInbound, east1);
+		bus.subscribeObserver(eInbound, east2);
+		bus.subscribeObserver(eInbound, east3);
 		
-		wInbound.addObserver(west1);
-		wInbound.addObserver(west2);
-		wInbound.addObserver(west3);
+		bus.subscribeObserver(wInbound, west1);
+		bus.subscribeObserver(wInbound, west2);
+		bus.subscribeObserver(wInbound, west3);
 		
-		protectedEast.addObserver(southProtectedRight);
+		bus.subscribeObserver(protectedEast, southProtectedRight);
 		
 		myIntersection.addPlan(phasePlan);
 		
@@ -172,6 +180,25 @@ public class ModelIntersection {
 	 * @return the intersection I made.
 	 */
 	public static Intersection fullyActivatedIntersection() {
+		return fullyActivatedIntersection(new IntersectionEventBus());
+	}
+
+	/**
+	 * The fully-actuated demo, with its signal faces subscribed through a bus.
+	 * @param bus the bus to wire the signal faces through.
+	 * @return the intersection I made.
+	 */
+	public static Intersection fullyActivatedIntersection(IntersectionEventBus bus) {
+		return fullyActivatedIntersection(bus, DetectorSource.RANDOM);
+	}
+
+	/**
+	 * The fully-actuated demo, with its detectors made by a DetectorSource.
+	 * @param bus the bus to wire the signal faces through.
+	 * @param detectors makes the detector for each stream.
+	 * @return the intersection I made.
+	 */
+	public static Intersection fullyActivatedIntersection(IntersectionEventBus bus, DetectorSource detectors) {
 		//Instantiate an intersection
 		Intersection myIntersection = new Intersection("Fully actuated", "N/S main road with east inbound connecting");
 		
@@ -184,9 +211,9 @@ public class ModelIntersection {
 		FullyActuatedPhasePlan phasePlan = new FullyActuatedPhasePlan();
 		
 		//Instantiate detectors, and add them to the streams
-		RandomDetector detector1 = new RandomDetector();
-		RandomDetector detector2 = new RandomDetector();
-		RandomDetector detector3 = new RandomDetector();
+		Detector detector1 = detectors.detectorFor(0, nInbound);
+		Detector detector2 = detectors.detectorFor(1, sInbound);
+		Detector detector3 = detectors.detectorFor(2, eInbound);
 		
 		nInbound.addDetector(detector1);
 		sInbound.addDetector(detector2);
@@ -247,17 +274,17 @@ public class ModelIntersection {
 		SignalFace east1 = new SignalFace(TrafficDirection.SOUTHEAST, TrafficDirection.EAST , SignalFace.STANDARD);
 		SignalFace east2 = new SignalFace(TrafficDirection.NORTHEAST, TrafficDirection.EAST , SignalFace.STANDARD);
 		
-		//Add the signal faces as observers of the traffic streams
-		nInbound.addObserver(north1);
-		nInbound.addObserver(north2);
-		nInbound.addObserver(north3);
+		//Subscribe the signal faces to the traffic streams
+		bus.subscribeObserver(nInbound, north1);
+		bus.subscribeObserver(nInbound, north2);
+		bus.subscribeObserver(nInbound, north3);
 		
-		sInbound.addObserver(south1);
-		sInbound.addObserver(south2);
-		sInbound.addObserver(south3);
+		bus.subscribeObserver(sInbound, south1);
+		bus.subscribeObserver(sInbound, south2);
+		bus.subscribeObserver(sInbound, south3);
 		
-		eInbound.addObserver(east1);
-		eInbound.addObserver(east2);
+		bus.subscribeObserver(eInbound, east1);
+		bus.subscribeObserver(eInbound, east2);
 		
 		myIntersection.addPlan(phasePlan);
 		
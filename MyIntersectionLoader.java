@@ -5,26 +5,24 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
-import javax.swing.JOptionPane;
 //import javax.swing.JPanel;
 
 import traffic.core.Intersection;
-import traffic.core.Phase;
-import traffic.core.TrafficStream;
-import traffic.phaseplan.FullyActuatedPhasePlan;
-import traffic.phaseplan.PhasePlan;
-import traffic.phaseplan.PretimedPhasePlan;
 import traffic.signal.SignalFace;
 import traffic.util.State;
 import traffic.util.TrafficDirection;
 //import traffic.load.TrafficException;
 import traffic.load.TrafficSyntaxException;
-import traffic.misc.RandomDetector;
+import traffic.diy.IntersectionDescription.FaceDescription;
+import traffic.diy.IntersectionDescription.PhaseDescription;
+import traffic.diy.IntersectionDescription.StreamDescription;
+import traffic.diy.IntersectionLoadException.Section;
 //import traffic.load.TrafficIOException;;
 
 /**
  * Read an intersection description file and build an intersection from the data
- * it contains.
+ * it contains. The file is first read into an {@link IntersectionDescription},
+ * which is then built.
  *
  */
 public class MyIntersectionLoader {
@@ -147,15 +145,141 @@ public class MyIntersectionLoader {
 		 * @return	Int indicating the time delay of the phase.
 		 */
 		public static int StringToTime(String phaseTimeString) throws TrafficSyntaxException{
-			 if (!phaseTimeString.matches("[0-9]*")) throw new TrafficSyntaxException("Delay time must be numeric"); //Throw exception if not a number
-			return Integer.parseInt(phaseTimeString);
+			if (phaseTimeString.length() == 0) throw new TrafficSyntaxException("Delay time must be numeric");
+			int time = 0;
+			for (int i = 0; i < phaseTimeString.length(); i++){
+				time = AddDigit(time, phaseTimeString.charAt(i));
+			}
+			return time;
+		}
+
+		/**
+		 * Convert a field of the current line into a direction enum, without creating a string.
+		 *
+		 * @param scanner	Scanner positioned on a SignalFace line.
+		 * @param field		Index of the field containing a direction.
+		 * @return	Enum indicating the parsed direction
+		 */
+		public static TrafficDirection FieldToDirection(IntersectionScanner scanner, int field) throws TrafficSyntaxException{
+			int length = scanner.fieldLength(field);
+			if (length == 1){
+				switch(scanner.fieldCharAt(field, 0)){
+					case 'N': return TrafficDirection.NORTH;
+					case 'S': return TrafficDirection.SOUTH;
+					case 'E': return TrafficDirection.EAST;
+					case 'W': return TrafficDirection.WEST;
+				}
+			}
+			else if (length == 2){
+				char first = scanner.fieldCharAt(field, 0);
+				char second = scanner.fieldCharAt(field, 1);
+				if (first == 'N' && second == 'E') return TrafficDirection.NORTHEAST;
+				if (first == 'N' && second == 'W') return TrafficDirection.NORTHWEST;
+				if (first == 'S' && second == 'E') return TrafficDirection.SOUTHEAST;
+				if (first == 'S' && second == 'W') return TrafficDirection.SOUTHWEST;
+			}
+			throw new TrafficSyntaxException("Invalid direction");
+		}
+
+		/**
+		 * Convert a field of the current line into a SignalFace type, without creating a string.
+		 *
+		 * @param scanner	Scanner positioned on a SignalFace line.
+		 * @param field		Index of the field containing the shape of the face.
+		 * @return	Int indicating the shape of the signal face.
+		 */
+		public static int FieldToFaceType(IntersectionScanner scanner, int field) throws TrafficSyntaxException{
+			if (scanner.fieldEquals(field, "STANDARD")) return SignalFace.STANDARD;
+			if (scanner.fieldEquals(field, "LEFT_ARROW")) return SignalFace.LEFT_ARROW;
+			if (scanner.fieldEquals(field, "RIGHT_ARROW")) return SignalFace.RIGHT_ARROW;
+			throw new TrafficSyntaxException("Invalid shape");
+		}
+
+		/**
+		 * Convert a field of the current line into a delay time, without creating a string.
+		 *
+		 * @param scanner	Scanner positioned on a phase line.
+		 * @param field		Index of the field containing the delay time.
+		 * @return	Int indicating the time delay of the phase.
+		 */
+		public static int FieldToTime(IntersectionScanner scanner, int field) throws TrafficSyntaxException{
+			int length = scanner.fieldLength(field);
+			if (length == 0) throw new TrafficSyntaxException("Delay time must be numeric");
+			int time = 0;
+			for (int i = 0; i < length; i++){
+				time = AddDigit(time, scanner.fieldCharAt(field, i));
+			}
+			return time;
+		}
+
+		/**
+		 * Convert a direction into the word used for it in the intersection file.
+		 * 
+		 * @param direction	A direction.
+		 * @return	The word for the direction, such as "NE".
+		 */
+		public static String DirectionToString(TrafficDirection direction){
+			switch(direction){
+				case NORTHEAST: return "NE";
+				case NORTHWEST: return "NW";
+				case SOUTHEAST: return "SE";
+				case SOUTHWEST: return "SW";
+				case NORTH: return "N";
+				case SOUTH: return "S";
+				case EAST: return "E";
+				case WEST: return "W";
+				default: throw new IllegalArgumentException("No word for direction " + direction);
+			}
+		}
+		
+		/**
+		 * Convert a SignalFace type into the word used for it in the intersection file.
+		 * 
+		 * @param faceType	One of the SignalFace shape constants.
+		 * @return	The word for the shape, such as "STANDARD".
+		 */
+		public static String FaceTypeToString(int faceType){
+			if (faceType == SignalFace.STANDARD) return "STANDARD";
+			if (faceType == SignalFace.LEFT_ARROW) return "LEFT_ARROW";
+			if (faceType == SignalFace.RIGHT_ARROW) return "RIGHT_ARROW";
+			throw new IllegalArgumentException("No word for face type " + faceType);
+		}
+		
+		/**
+		 * Convert a state into the colour character used for it in the intersection file.
+		 * 
+		 * @param state	A stream state.
+		 * @return	'G', 'Y', 'R' or 'X'.
+		 */
+		public static char StateToChar(State state){
+			switch(state){
+				case GREEN: return 'G';
+				case YELLOW: return 'Y';
+				case RED: return 'R';
+				case OFF: return 'X';
+				default: throw new IllegalArgumentException("No colour for state " + state);
+			}
+		}
+		
+		/**
+		 * Append a decimal digit to a delay time being parsed.
+		 *
+		 * @param value	The time parsed so far.
+		 * @param digit	The next character of the time.
+		 * @return	The time including the new digit.
+		 */
+		private static int AddDigit(int value, char digit) throws TrafficSyntaxException{
+			if (digit < '0' || digit > '9') throw new TrafficSyntaxException("Delay time must be numeric"); //Throw exception if not a number
+			if (value > (Integer.MAX_VALUE - (digit - '0')) / 10) throw new TrafficSyntaxException("Delay time too large");
+			return value * 10 + (digit - '0');
 		}	
 	}
 
-	private BufferedReader br;
-	private ArrayList<TrafficStream> trafficStreamList = new ArrayList<TrafficStream>();
-	private HashMap<String, TrafficStream> trafficStreamMap = new HashMap<String, TrafficStream>();
-	private boolean preTimedIntersection = true;
+	private IntersectionScanner scanner;
+	private IntersectionDescription myDescription;
+	private ArrayList<StreamDescription> trafficStreamList = new ArrayList<StreamDescription>();
+	private HashMap<String, Integer> trafficStreamMap = new HashMap<String, Integer>();
+	private IntersectionDescription.Listener listener;
 	
 	/**
 	 * Constructor for class.
@@ -164,72 +288,133 @@ public class MyIntersectionLoader {
 	 *            where to read data from.
 	 */
 	public MyIntersectionLoader(BufferedReader br) {
-		this.br = br;
+		this(new IntersectionScanner(br));
+	}
+	
+	/**
+	 * Constructor for class.
+	 * 
+	 * @param scanner
+	 *            where to read lines and fields from.
+	 */
+	public MyIntersectionLoader(IntersectionScanner scanner) {
+		this.scanner = scanner;
+	}
+	
+	/**
+	 * Be told about each part of the description as soon as it has been read,
+	 * on the thread doing the reading. Nothing is told about a part after an
+	 * error in it.
+	 * 
+	 * @param listener
+	 *            who to tell, or null for no-one.
+	 */
+	public void setListener(IntersectionDescription.Listener listener) {
+		this.listener = listener;
 	}
 
 	/**
 	 * Build intersection from description in file. Read line at a time and
 	 * process rather than parse using grammar.
 	 * 
+	 * Errors are printed rather than displayed, so this is safe to call
+	 * without a GUI. Use {@link #loadIntersection()} to find out what went wrong.
+	 * 
 	 * @return the intersection, or null if something went wrong
 	 */
 	public Intersection buildIntersection() {
+		try {
+			return loadIntersection();
+		} catch (IntersectionLoadException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Build intersection from description in file, reporting the section, line and
+	 * reason for any error. Doesn't use any GUI components.
+	 * 
+	 * @return the intersection
+	 * @throws IntersectionLoadException if the description is invalid
+	 */
+	public Intersection loadIntersection() throws IntersectionLoadException {
+		return loadDescription().build();
+	}
+
+	/**
+	 * Build intersection from description in file, subscribing its signal faces
+	 * to their streams through the given bus.
+	 * 
+	 * @param bus the bus to wire the signal faces through
+	 * @return the intersection
+	 * @throws IntersectionLoadException if the description is invalid
+	 */
+	public Intersection loadIntersection(IntersectionEventBus bus) throws IntersectionLoadException {
+		return loadDescription().build(bus);
+	}
+
+	/**
+	 * Read the intersection description from file without building it, reporting the
+	 * section, line and reason for any error. The description can be built with
+	 * {@link IntersectionDescription#build()}, or saved.
+	 *
+	 * @return the description
+	 * @throws IntersectionLoadException if the description is invalid
+	 */
+	public IntersectionDescription loadDescription() throws IntersectionLoadException {
 		//Read the file line by line.
 		//If the next line is an open tag, read the expected
 		//data until find a close tag.		
-		//If get an invalid line, return null. Null is interpreted
-		//by the MyIntersectionMonitor as an invalid intersection.
+		//If get an invalid line, throw an exception saying which
+		//section it was in and where.
 		
-		Intersection myIntersection = null;
-	
-		//Read the intersection description
+		//Read the intersection description, timing each section
+		long start = System.nanoTime();
 		try {
-			myIntersection = ReadIntersectionDescription();
+			myDescription = ReadIntersectionDescription();
 		} catch (TrafficSyntaxException e) {
-			JOptionPane.showMessageDialog(null, "Error in format of intersection description, or invalid intersection data file",
-					"Syntax Error", JOptionPane.ERROR_MESSAGE);
-			e.printStackTrace();
-			return null;
+			throw new IntersectionLoadException(Section.INTERSECTION, scanner.getLineNumber(), e.getMessage());
 		}
+		IntersectionMetrics.get().getParse(Section.INTERSECTION).recordSince(start);
+		if (listener != null)
+			listener.intersectionRead(myDescription);
 		
 		//Read and build the traffic streams
+		start = System.nanoTime();
 		try{
 			ReadTrafficStreams();
 		}
 		catch (TrafficSyntaxException e){
-			JOptionPane.showMessageDialog(null, "Error in format of traffic streams",
-					"Syntax Error", JOptionPane.ERROR_MESSAGE);
-			e.printStackTrace();
-			return null;
+			throw new IntersectionLoadException(Section.TRAFFIC_STREAMS, scanner.getLineNumber(), e.getMessage());
 		}
+		IntersectionMetrics.get().getParse(Section.TRAFFIC_STREAMS).recordSince(start);
+		if (listener != null)
+			listener.streamsRead(myDescription.getStreams());
 		
 		//Read the phase plans, which contain phase streams within them
+		start = System.nanoTime();
 		try{
-			ReadPhasePlans(myIntersection);
+			ReadPhasePlans();
 		}
 		catch (TrafficSyntaxException e){
-			JOptionPane.showMessageDialog(null, "Error in format of phase plans",
-					"Syntax Error", JOptionPane.ERROR_MESSAGE);
-			e.printStackTrace();
-			return null;
+			throw new IntersectionLoadException(Section.PHASE_PLANS, scanner.getLineNumber(), e.getMessage());
 		}
+		IntersectionMetrics.get().getParse(Section.PHASE_PLANS).recordSince(start);
 		
 		//Read the signal faces
+		start = System.nanoTime();
 		try{
-			ReadSignalFaces(myIntersection);
+			ReadSignalFaces();
 		}
 		catch (TrafficSyntaxException e){
-			JOptionPane.showMessageDialog(null, "Error in format of signal faces",
-					"Syntax Error", JOptionPane.ERROR_MESSAGE);
-			e.printStackTrace();
-			return null;
+			throw new IntersectionLoadException(Section.SIGNAL_FACES, scanner.getLineNumber(), e.getMessage());
 		}
+		IntersectionMetrics.get().getParse(Section.SIGNAL_FACES).recordSince(start);
 
-		//If this interection is fully actuated, add detectors to the traffic streams.
-		if (!preTimedIntersection)
-			AddDetectors();
-		
-		return myIntersection;
+		if (listener != null)
+			listener.descriptionRead(myDescription);
+		return myDescription;
 	}
 	
 	/**
@@ -239,22 +424,21 @@ public class MyIntersectionLoader {
 	 * @return
 	 * @throws TrafficSyntaxException
 	 */
-	private Intersection ReadIntersectionDescription() throws TrafficSyntaxException{
+	private IntersectionDescription ReadIntersectionDescription() throws TrafficSyntaxException{
 		//Read the first line
-		String intersectionLine = GetNextNonCommentLine(br);
-		if (!intersectionLine.equals(traffic.load.Tag.INTERSECTION))
+		if (!NextNonCommentLine() || !scanner.lineEquals(traffic.load.Tag.INTERSECTION))
 			throw new TrafficSyntaxException("Missing Intersection tag");
 		//Read the second line
-		String descriptionLine = GetNextNonCommentLine(br);
-		String[] descriptionWords = SplitLineAlongTabs(descriptionLine);
+		if (!NextNonCommentLine())
+			throw new TrafficSyntaxException("End of file before intersection description");
 		//All that is required for a valid intersection name and description is two strings
-		if(descriptionWords.length < 2)
+		if (scanner.fieldCount() < 2)
 			throw new TrafficSyntaxException("Missing intersection title or description");
+		IntersectionDescription intersection = new IntersectionDescription(scanner.fieldString(0), scanner.fieldString(1));
 		//Read the last line and return
-		String endIntersectionLine = GetNextNonCommentLine(br);
-		if (!endIntersectionLine.equals(traffic.load.Tag.END_INTERSECTION))
+		if (!NextNonCommentLine() || !scanner.lineEquals(traffic.load.Tag.END_INTERSECTION))
 			throw new TrafficSyntaxException("Missing End intersection Tag");
-		return new Intersection(descriptionWords[0], descriptionWords[1]);
+		return intersection;
 	}
 	
 	/**
@@ -265,70 +449,69 @@ public class MyIntersectionLoader {
 	 * @throws TrafficSyntaxException
 	 */
 	private void ReadTrafficStreams() throws TrafficSyntaxException{
-		String streamLine = GetNextNonCommentLine(br);
-		if (!streamLine.equals(traffic.load.Tag.TRAFFIC_STREAMS))
+		if (!NextNonCommentLine() || !scanner.lineEquals(traffic.load.Tag.TRAFFIC_STREAMS))
 			throw new TrafficSyntaxException("Missing Traffic Streams tag");
 		
-		String nextLine;
+		boolean moreLines;
 		//Read the file until the end tag is encountered, of the end of the file.
-		while(((nextLine = GetNextNonCommentLine(br)) != null) && !nextLine.equals(traffic.load.Tag.END_TRAFFIC_STREAMS)){
+		while((moreLines = NextNonCommentLine()) && !scanner.lineEquals(traffic.load.Tag.END_TRAFFIC_STREAMS)){
 			try {
-				AddTrafficStream(nextLine);
+				AddTrafficStream();
 			}
 			catch (TrafficSyntaxException e){
-				e.printStackTrace();
-				throw new TrafficSyntaxException("Invalid traffic stream description");
+				throw new TrafficSyntaxException("Invalid traffic stream description" + DetailOf(e));
 			}
 		}
 		//If the end of the file was reached before the stream was finished, throw an exception
-		if (nextLine == null)
+		if (!moreLines)
 			throw new TrafficSyntaxException("End of file before intersection complete");
 	}
 	
 	/**
 	 * Read the phase plans from the file. A number of phase plans can be read between the opening and closing 
 	 * PhasePlan tags. A number of phases can be added to each phase plan between the opening and closing Phases tags.
-	 * @param myIntersection	The intersection to add the PhasePlans to.
 	 * @throws TrafficSyntaxException
 	 */
-	private void ReadPhasePlans(Intersection myIntersection) throws TrafficSyntaxException{
-		String planLine = GetNextNonCommentLine(br);
-
-		if (planLine.equals(traffic.load.Tag.PHASEPLAN))
-			preTimedIntersection = true;
-		else if (planLine.equals("<PhasePlanActuated>"))
-			preTimedIntersection = false;
+	private void ReadPhasePlans() throws TrafficSyntaxException{
+		if (!NextNonCommentLine())
+			throw new TrafficSyntaxException("Missing PhasePlan tag");
+		else if (scanner.lineEquals(traffic.load.Tag.PHASEPLAN))
+			myDescription.setPreTimed(true);
+		else if (scanner.lineEquals("<PhasePlanActuated>"))
+			myDescription.setPreTimed(false);
 		else
 			throw new TrafficSyntaxException("Missing PhasePlan tag");
 		
 		boolean phasePlanAdded = false;		
-		String nextLine;
+		boolean moreLines;
 		//Process the file for phase plans until the PhasePlan ending tag is reached, or the end of the file is reached
-		while(((nextLine = GetNextNonCommentLine(br)) != null) && !nextLine.equals(traffic.load.Tag.END_PHASEPLAN)){
-			if (nextLine.equals(traffic.load.Tag.PHASES)){
-				PhasePlan phasePlan = null;
-				if (preTimedIntersection)
-					phasePlan = new PretimedPhasePlan(); 
-				else
-					phasePlan = new FullyActuatedPhasePlan();
+		while((moreLines = NextNonCommentLine()) && !scanner.lineEquals(traffic.load.Tag.END_PHASEPLAN)){
+			if (scanner.lineEquals(traffic.load.Tag.PHASES)){
+				ArrayList<PhaseDescription> phasePlan = new ArrayList<PhaseDescription>();
+				int planIndex = myDescription.getPlans().size();
+				if (listener != null)
+					listener.planStarted(planIndex, myDescription.isPreTimed());
 				//Process the file for phases until the Phases ending tag is reached, or the end of the file
-				while(((nextLine = GetNextNonCommentLine(br)) != null) && !nextLine.equals(traffic.load.Tag.END_PHASES)){
+				while((moreLines = NextNonCommentLine()) && !scanner.lineEquals(traffic.load.Tag.END_PHASES)){
 					try{
-						AddPhase(nextLine, phasePlan);	
+						AddPhase(phasePlan);
+						if (listener != null)
+							listener.phaseRead(planIndex, phasePlan.size() - 1, phasePlan.get(phasePlan.size() - 1));
 					}
 					catch (TrafficSyntaxException e){
-						e.printStackTrace();
-						throw new TrafficSyntaxException("Invalid phase");
+						throw new TrafficSyntaxException("Invalid phase" + DetailOf(e));
 					}
 				}
-				if (nextLine == null)
+				if (!moreLines)
 					throw new TrafficSyntaxException("End of file before phases complete");
-				myIntersection.addPlan(phasePlan);
+				myDescription.addPlan(phasePlan);
 				phasePlanAdded = true;
+				if (listener != null)
+					listener.planRead(planIndex);
 			}
 		}
 		
-		if (nextLine == null)
+		if (!moreLines)
 			throw new TrafficSyntaxException("End of file before phases plans complete");
 		//Require the inner loop to have been traversed at least once, to have at least one phase plan.
 		if (!phasePlanAdded)
@@ -337,154 +520,120 @@ public class MyIntersectionLoader {
 	
 	/**
 	 * Read the SignalFaces from the file.
-	 * @param myIntersection	The intersection to add the signal faces to.
 	 * @throws TrafficSyntaxException
 	 */
-	private void ReadSignalFaces(Intersection intersection) throws TrafficSyntaxException{
-		String faceLine = GetNextNonCommentLine(br);
-		if (!faceLine.equals(traffic.load.Tag.SIGNAL_FACES))
+	private void ReadSignalFaces() throws TrafficSyntaxException{
+		if (!NextNonCommentLine() || !scanner.lineEquals(traffic.load.Tag.SIGNAL_FACES))
 			throw new TrafficSyntaxException("Missing SignalFace tag");
 		
-		String nextLine;
-		while(((nextLine = GetNextNonCommentLine(br)) != null) && !nextLine.equals(traffic.load.Tag.END_SIGNAL_FACES)){
+		boolean moreLines;
+		while((moreLines = NextNonCommentLine()) && !scanner.lineEquals(traffic.load.Tag.END_SIGNAL_FACES)){
 			try{
-				AddSignalFace(nextLine, intersection);
+				AddSignalFace();
 			}
 			catch (TrafficSyntaxException e){
-				e.printStackTrace();
-				throw new TrafficSyntaxException("Invalid SignalFace");
+				throw new TrafficSyntaxException("Invalid SignalFace" + DetailOf(e));
 			}
 		}
-		if (nextLine == null)
+		if (!moreLines)
 			throw new TrafficSyntaxException("End of file before SignalFaces complete");
 	}
 
-	private void AddDetectors(){
-		for (TrafficStream stream: trafficStreamList){
-			RandomDetector detector = new RandomDetector();
-			stream.addDetector(detector);
-		}
-	}
-	
 	/**
-	 * Return the next line in the intersection file which is not blank or a comment.
-	 * 
-	 * @param buffRead	A buffered reader
+	 * Move the scanner to the next line in the intersection file which is not blank or a comment.
 	 * 
-	 * @return A string containing a single line from the intersection file, ignoring comments and empty lines.
+	 * @return true if there is another line, false at the end of the file.
+	 * @throws TrafficSyntaxException if the file can't be read.
 	 */
-	private String GetNextNonCommentLine(BufferedReader buffRead){
-		//Ignore strings that begin with  '//' (ignoring quotes) and empty lines
-		//Otherwise, return the next string.
-		String line = null;
+	private boolean NextNonCommentLine() throws TrafficSyntaxException{
 		try {
-			while ( (line = buffRead.readLine()) != null){
-				//Return lines that aren't comments or empty
-				if (!line.matches("//.*") && line.matches("(.)+")){
-					return line;
-				}
-			}
-			return null;
+			return scanner.nextLine();
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new TrafficSyntaxException("Unable to read intersection file" + (e.getMessage() == null ? "" : ": " + e.getMessage()));
 		}
-		return null;
 	}
 	
 	/**
-	 * Take a line from the input file, and split it by the tabs in the line.
+	 * Describe the cause of a nested syntax error, for appending to the message of the
+	 * error thrown by the enclosing section.
 	 * 
-	 * @param lineToSplit	String containing a line from the intersection file
-	 * @return	Array of strings split along tabs in the initial line
+	 * @param e	The syntax error thrown while reading a single line.
+	 * @return	": " followed by the message of the error, or an empty string if it has none.
 	 */
-	private String[] SplitLineAlongTabs(String lineToSplit){
-		String[] wordArray = lineToSplit.split("\t");
-		return wordArray;
+	private static String DetailOf(TrafficSyntaxException e){
+		if (e.getMessage() == null)
+			return "";
+		return ": " + e.getMessage();
 	}
 	
 	/**
-	 * Take a string, split it into words, and use those words to build a traffic stream.
+	 * Use the fields of the current line to build a traffic stream.
 	 * Add the traffic stream to the traffic stream list
-	 * 
-	 * @param trafficStreamString String containing a line from between the traffic stream tags
 	 */
-	private void AddTrafficStream(String trafficStreamString) throws TrafficSyntaxException{
-		try{
-			String[] trafficSplit = SplitLineAlongTabs(trafficStreamString);
-			TrafficStream newStream = new TrafficStream(trafficSplit[0], trafficSplit[1]);
-			trafficStreamList.add(newStream);
-			trafficStreamMap.put(trafficSplit[0], newStream);
-		}
-		catch (ArrayIndexOutOfBoundsException e){
+	private void AddTrafficStream() throws TrafficSyntaxException{
+		if (scanner.fieldCount() < 2)
 			throw new TrafficSyntaxException();
-		}
+		String streamName = scanner.fieldString(0);
+		StreamDescription newStream = new StreamDescription(streamName, scanner.fieldString(1));
+		trafficStreamList.add(newStream);
+		trafficStreamMap.put(streamName, myDescription.addStream(newStream));
 	}
 	
 	/**
-	 * Instantiate a new phase. Add the name, then the description.
+	 * Instantiate a new phase from the fields of the current line. Add the name, then the description.
 	 * The number of colours should equal the number of streams
-	 * 
-	 * @param phaseString String containing a line from between the phase tags
 	 */
-	private void AddPhase(String phaseString, PhasePlan phasePlan) throws TrafficSyntaxException{
-		String[] phaseSplit = SplitLineAlongTabs(phaseString);
-		Phase newPhase = new Phase(phaseSplit[0], phaseSplit[1]);
-		if (phaseSplit.length < 4) throw new TrafficSyntaxException("Insufficient phase word length");	//Throw exception if insufficient words
-		if (phaseSplit[2].length() < trafficStreamList.size()) throw new TrafficSyntaxException("Insufficient signal colours"); //Throw exception if insufficient signal colours
-		//Loop through all colours in third word
+	private void AddPhase(ArrayList<PhaseDescription> phasePlan) throws TrafficSyntaxException{
+		if (scanner.fieldCount() < 4) throw new TrafficSyntaxException("Insufficient phase word length");	//Throw exception if insufficient words
+		if (scanner.fieldLength(2) < trafficStreamList.size()) throw new TrafficSyntaxException("Insufficient signal colours"); //Throw exception if insufficient signal colours
+		PackedPhaseStates streamStates = new PackedPhaseStates(trafficStreamList.size());
+		//Loop through all colours in third word, packing them in stream order
 		for (int i = 0; i < trafficStreamList.size(); i++){
-			State streamState = IntersectionTextParser.CharToState(phaseSplit[2].charAt(i));
-			newPhase.addStream(trafficStreamList.get(i), streamState);	
+			streamStates.set(i, IntersectionTextParser.CharToState(scanner.fieldCharAt(2, i)));
 		}
-		int delayTime = IntersectionTextParser.StringToTime(phaseSplit[3]);
-		newPhase.setMinGreenInterval(delayTime);
-		phasePlan.add(newPhase);
+		int delayTime = IntersectionTextParser.FieldToTime(scanner, 3);
+		phasePlan.add(new PhaseDescription(scanner.fieldString(0), scanner.fieldString(1), streamStates, delayTime));
 	}
 	
 	/**
-	 * Add a signal face to the intersection.
-	 * 
-	 * @param signalString	String containing a line from between the SignalFace tags.
-	 * @param intersect		The intersection being built.
+	 * Add a signal face described by the fields of the current line to the intersection.
 	 */
-	private void AddSignalFace(String signalString, Intersection intersect) throws TrafficSyntaxException{
-		String[] signalSplit = SplitLineAlongTabs(signalString);
+	private void AddSignalFace() throws TrafficSyntaxException{
 		TrafficDirection location;
 		TrafficDirection facing;
 		int faceType;
 		
-		if (signalSplit.length < 4) throw new TrafficSyntaxException("Insufficient words in SignalFace description");
+		if (scanner.fieldCount() < 4) throw new TrafficSyntaxException("Insufficient words in SignalFace description");
 		
 		try{
-			 location = IntersectionTextParser.StringToDirection(signalSplit[0]);
+			 location = IntersectionTextParser.FieldToDirection(scanner, 0);
 		}
 		catch (TrafficSyntaxException e){
 			throw new TrafficSyntaxException("Invalid location");
 		}
 		
 		try{
-			 facing = IntersectionTextParser.StringToDirection(signalSplit[1]);
+			 facing = IntersectionTextParser.FieldToDirection(scanner, 1);
 		}
 		catch (TrafficSyntaxException e){
 			throw new TrafficSyntaxException("Invalid direction");
 		}
 		
 		try{
-			 faceType = IntersectionTextParser.StringToFaceType(signalSplit[2]);
+			 faceType = IntersectionTextParser.FieldToFaceType(scanner, 2);
 		}
 		catch (TrafficSyntaxException e){
 			throw new TrafficSyntaxException("Invalid shape");
 		}
 		
-		SignalFace newSignalFace = new SignalFace(location, facing, faceType);
-		
-		//Get the value of a traffic stream that corresponds to the key of its name.
-		TrafficStream streamToObserve = trafficStreamMap.get(signalSplit[3]);
+		//Get the index of the traffic stream that corresponds to the key of its name.
+		Integer streamToObserve = trafficStreamMap.get(scanner.fieldString(3));
 		if (streamToObserve == null)
 			throw new TrafficSyntaxException("Stream assigned to face does not exist");
-		else
-			streamToObserve.addObserver(newSignalFace);
 		
-		intersect.addSignalFace(newSignalFace);
+		FaceDescription face = new FaceDescription(location, facing, faceType, streamToObserve);
+		myDescription.addFace(face);
+		if (listener != null)
+			listener.faceRead(myDescription.getFaces().size() - 1, face);
 	}
 }
@@ -1,24 +1,17 @@
 package traffic.diy;
 
-import java.awt.BorderLayout;
 import java.awt.Color;
-import java.awt.Dimension;
-import java.awt.FlowLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -32,16 +25,14 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
-import javax.swing.border.BevelBorder;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.EtchedBorder;
-import javax.swing.border.SoftBevelBorder;
 
 import traffic.core.Intersection;
 import traffic.core.Phase;
 import traffic.core.TrafficStream;
 import traffic.demo.DemoClydeCreyke;
-import traffic.misc.TranscriptPane;
-import traffic.phaseplan.PhasePlan;
 import traffic.signal.SignalFace;
 import traffic.util.State;
 
@@ -53,7 +44,8 @@ import java.io.*;
  * @author cijolly
  *
  */
-public class MyIntersectionMonitor extends JFrame implements Observer {
+public class MyIntersectionMonitor extends JFrame
+		implements IntersectionEventBus.StreamListener, IntersectionEventBus.PhaseListener {
 
 	/**
 	 * 
@@ -91,20 +83,130 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	 */
 	protected JTextArea transcript;
 
-	protected TranscriptPane tp;
+	/**
+	 * Shows the latest events, kept in a bounded buffer.
+	 */
+	protected TranscriptView tp;
 
 	private static Intersection myIntersection;
 
-	private HashMap<TrafficStream, ArrayList<JPanel>> streamStateChips = new HashMap<TrafficStream, ArrayList<JPanel>>();
+	/**
+	 * The description myIntersection was built from, if it was loaded from a
+	 * file. Null for the demo intersections, which can only be serialised.
+	 */
+	private static IntersectionDescription myDescription;
+
+	/**
+	 * The bus myIntersection was built on. Each intersection has a bus of its
+	 * own, so its streams, phases and subscribers go when it does.
+	 */
+	private IntersectionEventBus myBus;
+
+	/**
+	 * Parsed descriptions of the files opened so far, so reopening a file
+	 * doesn't parse it again unless it has changed.
+	 */
+	private IntersectionCache intersectionCache = new IntersectionCache(
+			new File(System.getProperty("java.io.tmpdir"), "intersection-cache"), 64L * 1024 * 1024, 32);
+
+	/**
+	 * Rows of phases shown at once in each intersection's phase table.
+	 */
+	private static final int PHASE_ROWS = 8;
+
+	/**
+	 * An intersection shown in the window, with a tile on the dashboard.
+	 */
+	private class ShownIntersection {
+		final Intersection intersection;
+		final JPanel panel;
+		final CompiledPhasePlan plan;
+		final IntersectionEventBus bus;
+		final IntersectionStatus status;
+		final IntersectionStatusView view;
+		final IntersectionEventBus.Subscriptions subscriptions;
+		final IntersectionEventBus.Subscriptions statusSubscriptions;
+		boolean running = false;
+
+		ShownIntersection(Intersection intersection, JPanel panel, CompiledPhasePlan plan, IntersectionDescription d,
+				IntersectionEventBus bus, IntersectionEventBus.Subscriptions subscriptions, PhaseTableView phaseTable,
+				SignalFaceArrayView faceView) {
+			this.intersection = intersection;
+			this.panel = panel;
+			this.plan = plan;
+			this.bus = bus;
+			this.subscriptions = subscriptions;
+			status = new IntersectionStatus(intersection.getName(), plan, d);
+			statusSubscriptions = status.attach(bus);
+			view = new IntersectionStatusView(status, plan, phaseTable, faceView);
+		}
+
+		/**
+		 * Start the intersection, unless it is already running.
+		 */
+		void start() {
+			if (running)
+				return;
+			running = true;
+			intersection.start();
+		}
+
+		void finish() {
+			running = false;
+			intersection.finish();
+		}
+
+		/**
+		 * Stop the intersection and let go of everything that shows it.
+		 */
+		void remove() {
+			if (running)
+				finish();
+			subscriptions.unsubscribeAll();
+			statusSubscriptions.unsubscribeAll();
+			bus.release(plan);
+			dashboard.remove(status);
+			mainPanel.remove(panel);
+		}
+	}
+
+	/**
+	 * Every intersection shown. Only used on the EDT.
+	 */
+	private final ArrayList<ShownIntersection> intersections = new ArrayList<ShownIntersection>();
+	private final IntersectionDashboard dashboard = new IntersectionDashboard();
+	private JFrame dashboardFrame;
+
+	/**
+	 * Runs the generated intersections simulated for the dashboard.
+	 */
+	private SimulationHost simulationHost;
+
+	/**
+	 * The journal being replayed, if any.
+	 */
+	private TransitionReplay replay;
+
+
+	/**
+	 * Default limit on how often the window is repainted for state changes.
+	 */
+	public static final int DEFAULT_FRAME_RATE = 30;
+
+	/**
+	 * Fires on the EDT once a frame, to read the status of each intersection
+	 * shown. The intersections never wait for the GUI, and however fast they
+	 * change there is never more than one repaint per frame.
+	 */
+	private final Timer frameTimer = new Timer(1000 / DEFAULT_FRAME_RATE, new ActionListener() {
 
-	private HashMap<Phase, JPanel> phasePanels = new HashMap<Phase, JPanel>();
-	private Phase thePhase = null;
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			flushFrame();
+		}
+	});
 
 	private Color labelBackground = Color.orange;
-	private Color phasePanelBackground = Color.pink;
-	private Color streamBackground = Color.magenta;
-	private Color inactivePhaseBackground = Color.GRAY;
-	private Color activePhaseBackground = Color.CYAN;
 
 	/**
 	 * The standard <CODE>main</CODE> method creates the frame and contents. A
@@ -126,9 +228,10 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	public MyIntersectionMonitor(String title) {
 		super(title);
 		this.setJMenuBar(mb);
+		frameTimer.start();
 
 		// How to open an intersection file
-//		fmo.setBackground(inactivePhaseBackground);
+//		fmo.setBackground(Color.GRAY);
 		fmo.addActionListener(new ActionListener() {
 
 			@Override
@@ -203,6 +306,8 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				myIntersection = DemoClydeCreyke.pretimedMultiPhase();
+				myBus = new IntersectionEventBus();
+				myDescription = null;
 
 				if (myIntersection == null) {
 					// not good :-(
@@ -210,7 +315,7 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 							"Malformed Intersection", JOptionPane.ERROR_MESSAGE);
 					return;
 				}
-				mainPanel.add(intersectionGUI(myIntersection));
+				mainPanel.add(intersectionGUI(myIntersection, myDescription, myBus));
 				getContentPane().validate();
 			}
 		});
@@ -222,14 +327,16 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				// for example...
-				myIntersection = ModelIntersection.preTimedIntersection();
+				myBus = new IntersectionEventBus();
+				myIntersection = ModelIntersection.preTimedIntersection(myBus);
+				myDescription = null;
 				if (myIntersection == null) {
 					// not good :-(
 					JOptionPane.showMessageDialog(null, "My demo failed --- keep trying!", "Null Intersection",
 							JOptionPane.ERROR_MESSAGE);
 					return;
 				}
-				mainPanel.add(intersectionGUI(myIntersection));
+				mainPanel.add(intersectionGUI(myIntersection, myDescription, myBus));
 				getContentPane().validate();
 			}
 		});
@@ -241,14 +348,31 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				// for example...
-				myIntersection = ModelIntersection.fullyActivatedIntersection();
+				myBus = new IntersectionEventBus();
+				myIntersection = ModelIntersection.fullyActivatedIntersection(myBus);
+				myDescription = null;
 				if (myIntersection == null) {
 					// not good :-(
 					JOptionPane.showMessageDialog(null, "My demo failed --- keep trying!", "Null Intersection",
 							JOptionPane.ERROR_MESSAGE);
 					return;
 				}
-				mainPanel.add(intersectionGUI(myIntersection));
+				mainPanel.add(intersectionGUI(myIntersection, myDescription, myBus));
+				getContentPane().validate();
+			}
+		});
+
+		JMenuItem fmGenerated = new JMenuItem("Generated Intersection");
+		// How to show a randomly generated intersection
+		fmGenerated.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				IntersectionGenerator generator = new IntersectionGenerator(System.nanoTime());
+				myDescription = generator.generate();
+				myBus = new IntersectionEventBus();
+				myIntersection = myDescription.build(myBus, DetectorSource.RANDOM, false);
+				mainPanel.add(intersectionGUI(myIntersection, myDescription, myBus));
 				getContentPane().validate();
 			}
 		});
@@ -264,6 +388,7 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 
 		fm.add(fmMinePre);
 		fm.add(fmMineFull);
+		fm.add(fmGenerated);
 
 		fm.add(fmq);
 
@@ -290,13 +415,118 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				if (myIntersection != null) {
+				ShownIntersection shown = shown(myIntersection);
+				if (shown != null) {
 					tp.log("Stopping");
-					myIntersection.finish();
+					tp.refresh();
+					shown.finish();
 				}
 			}
 		});
 
+		JMenuItem iClose = new JMenuItem("Close");
+		im.add(iClose);
+		// How to stop showing the intersection and let it go
+		iClose.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				closeIntersection();
+			}
+		});
+
+		JMenuItem iReplay = new JMenuItem("Replay Journal...");
+		im.add(iReplay);
+		// How to replay what an intersection did from its journal
+		iReplay.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				replayJournal();
+			}
+		});
+
+		JMenuItem iSeek = new JMenuItem("Seek Replay...");
+		im.add(iSeek);
+		iSeek.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				seekReplay();
+			}
+		});
+
+		JMenuItem iStopReplay = new JMenuItem("Stop Replay");
+		im.add(iStopReplay);
+		iStopReplay.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (replay != null)
+					replay.stop();
+			}
+		});
+
+		JMenu dm = new JMenu("Dashboard");
+
+		JMenuItem dShow = new JMenuItem("Show Dashboard");
+		dm.add(dShow);
+		// How to see every intersection at once
+		dShow.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showDashboard();
+			}
+		});
+
+		JMenuItem dSimulate = new JMenuItem("Simulate Generated Intersections...");
+		dm.add(dSimulate);
+		dSimulate.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				simulateGenerated();
+			}
+		});
+
+		JMenuItem dDetectorLog = new JMenuItem("Simulate With Detector Log...");
+		dm.add(dDetectorLog);
+		// How to run the intersection on show with recorded traffic
+		dDetectorLog.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				simulateWithDetectorLog();
+			}
+		});
+
+		JMenuItem dStart = new JMenuItem("Start All");
+		dm.add(dStart);
+		dStart.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				for (ShownIntersection shown : intersections)
+					shown.start();
+			}
+		});
+
+		JMenuItem dStop = new JMenuItem("Stop All");
+		dm.add(dStop);
+		dStop.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				tp.log("Stopping all");
+				tp.refresh();
+				for (ShownIntersection shown : intersections)
+					shown.finish();
+			}
+		});
+
+		mb.add(dm);
+
 		JMenu tm = new JMenu("Transcript");
 		tm.add(tms);
 		tm.add(tmc);
@@ -306,7 +536,7 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 		this.setLayout(new BoxLayout(this.getContentPane(), BoxLayout.Y_AXIS));
 		add(new JScrollPane(mainPanel));
 
-		tp = new TranscriptPane(5);
+		tp = new TranscriptView(5);
 		add(tp);
 
 	}
@@ -317,15 +547,214 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	 * followed by the signal faces. ToolTips are used to reduce the amount of
 	 * text displayed.
 	 * 
+	 * If the intersection was built from a description, its signal faces are
+	 * all painted by one component. Otherwise the faces don't say which
+	 * stream they show, so each face shows its own GUI.
+	 * 
 	 * @param i
 	 *            The intersection to display.
+	 * @param d
+	 *            The description it was built from, or null.
+	 * @param bus
+	 *            The bus it was built on.
 	 * @return
 	 */
-	private JPanel intersectionGUI(Intersection i) {
+	private JPanel intersectionGUI(Intersection i, IntersectionDescription d, IntersectionEventBus bus) {
 		JPanel thisIntersection = new JPanel();
 		thisIntersection.setLayout(new BoxLayout(thisIntersection, BoxLayout.Y_AXIS));
-		JLabel lName = new JLabel(i.getName(), JLabel.CENTER);
-		JLabel lDesc = new JLabel(i.getDescription(), JLabel.CENTER);
+		thisIntersection.add(intersectionLabels(i.getName(), i.getDescription()));
+
+		// Look up chip colours by index rather than building each phase's map of states.
+		// Numbered as described, so the faces can find their streams.
+		CompiledPhasePlan compiledPlan = new CompiledPhasePlan(i.getPlan(), d);
+
+		// Now assemble the SignalFaces
+		SignalFaceArrayView faceView = null;
+		if (d != null) {
+			faceView = faceView();
+			for (IntersectionDescription.FaceDescription face : d.getFaces())
+				addFace(faceView, face, compiledPlan.getStream(face.getStream()));
+			thisIntersection.add(faceView);
+		} else {
+			List<SignalFace> faces = i.getSignalFaces();
+			JPanel physicalSignalFaces = new JPanel();
+			for (SignalFace sf : faces)
+				addFacePanel(physicalSignalFaces, sf);
+			thisIntersection.add(physicalSignalFaces);
+		}
+
+		TrafficStream[] streams = new TrafficStream[compiledPlan.streamCount()];
+		for (int s = 0; s < streams.length; s++)
+			streams[s] = compiledPlan.getStream(s);
+		IntersectionEventBus.Subscriptions subscriptions = bus.subscriptions();
+		PhaseTableView phaseTable = phaseTable(streams, subscriptions);
+
+		// A row for each phase in plan
+		for (int p = 0; p < compiledPlan.phaseCount(); p++)
+			addPhaseRow(phaseTable, compiledPlan.getPhase(p), compiledPlan.getStates(p), subscriptions);
+
+		thisIntersection.add(phaseTable);
+
+		addToDashboard(new ShownIntersection(i, thisIntersection, compiledPlan, d, bus, subscriptions, phaseTable,
+				faceView));
+		return thisIntersection;
+	}
+
+	/**
+	 * Keep track of an intersection, and give it a tile on the dashboard.
+	 */
+	private void addToDashboard(ShownIntersection shown) {
+		intersections.add(shown);
+		dashboard.add(shown.status);
+	}
+
+	/**
+	 * @return	How an intersection is shown, or null if it isn't.
+	 */
+	private ShownIntersection shown(Intersection i) {
+		for (ShownIntersection shown : intersections) {
+			if (shown.intersection == i)
+				return shown;
+		}
+		return null;
+	}
+
+	/**
+	 * Stop the current intersection and take it off the window and the
+	 * dashboard, unsubscribing everything that showed it.
+	 */
+	private void closeIntersection() {
+		ShownIntersection shown = shown(myIntersection);
+		if (shown == null)
+			return;
+		if (replay != null) {
+			// It may be replaying through the intersection's bus
+			replay.stop();
+			replay = null;
+		}
+		shown.remove();
+		intersections.remove(shown);
+		myIntersection = null;
+		myDescription = null;
+		myBus = null;
+		mainPanel.revalidate();
+		mainPanel.repaint();
+	}
+
+	/**
+	 * Open the dashboard in a window of its own. It stops refreshing when the
+	 * window is closed.
+	 */
+	private void showDashboard() {
+		if (dashboardFrame == null) {
+			dashboardFrame = new JFrame("Dashboard");
+			dashboardFrame.add(dashboard);
+			dashboardFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+			dashboardFrame.setSize(820, 600);
+		}
+		dashboardFrame.setVisible(true);
+		dashboardFrame.toFront();
+	}
+
+	/**
+	 * Ask how many, then run that many generated intersections on a shared
+	 * pool and show them on the dashboard.
+	 */
+	private void simulateGenerated() {
+		String answer = JOptionPane.showInputDialog(this, "How many intersections?", "100");
+		if (answer == null)
+			return;
+		int count;
+		try {
+			count = Integer.parseInt(answer.trim());
+		} catch (NumberFormatException e) {
+			JOptionPane.showMessageDialog(this, answer + " isn't a number", "Not Simulated", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		IntersectionGenerator generator = new IntersectionGenerator(System.nanoTime());
+		for (int n = 0; n < count; n++) {
+			IntersectionDescription description = generator.generate();
+			VirtualTimeSimulation simulation = new VirtualTimeSimulation(description);
+			IntersectionStatus status = new IntersectionStatus(description);
+			simulation.addListener(status);
+			dashboard.add(status);
+			simulationHost().add(simulation);
+		}
+		showDashboard();
+	}
+
+	/**
+	 * Ask for a log of detections, then simulate the fully actuated
+	 * intersection on show with its traffic coming from the log, and show it
+	 * on the dashboard.
+	 */
+	private void simulateWithDetectorLog() {
+		if (myDescription == null || myDescription.isPreTimed()) {
+			JOptionPane.showMessageDialog(this, "Open a fully actuated intersection file first", "No Intersection",
+					JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		JFileChooser jfc = new JFileChooser(System.getProperty("user.dir"));
+		if (jfc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		final File log = jfc.getSelectedFile();
+		final DetectorFeed feed;
+		try {
+			feed = DetectorFeed.open(log, myDescription.getStreams().size());
+		} catch (IOException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage(), "Detector Log Not Read", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		VirtualTimeSimulation simulation = new VirtualTimeSimulation(myDescription);
+		simulation.setDemand(feed);
+		simulation.addListener(new VirtualTimeSimulation.Listener() {
+			private boolean reported = false;
+
+			@Override
+			public void phaseStarted(long time, int phase) {
+				// The feed stops at a bad line, and the traffic stops with it
+				if (!reported && feed.getError() != null) {
+					reported = true;
+					tp.log(log.getName() + ": " + feed.getError().getMessage());
+				}
+			}
+
+			@Override
+			public void streamChanged(long time, int stream, State state) {
+			}
+		});
+		IntersectionStatus status = new IntersectionStatus(myDescription);
+		simulation.addListener(status);
+		dashboard.add(status);
+		simulationHost().add(simulation);
+		showDashboard();
+	}
+
+	/**
+	 * @return	The pool the dashboard's simulations run on, created the first
+	 *          time it is needed.
+	 */
+	private SimulationHost simulationHost() {
+		if (simulationHost == null) {
+			simulationHost = new SimulationHost(Runtime.getRuntime().availableProcessors());
+			simulationHost.setFailureListener(new SimulationHost.FailureListener() {
+
+				@Override
+				public void failed(VirtualTimeSimulation simulation, RuntimeException e) {
+					e.printStackTrace();
+					tp.log("A simulated intersection stopped at " + simulation.getTime() + "ms: " + e);
+				}
+			});
+		}
+		return simulationHost;
+	}
+
+	/**
+	 * @return	The intersection's name and description, one above the other.
+	 */
+	private JPanel intersectionLabels(String name, String description) {
+		JLabel lName = new JLabel(name, JLabel.CENTER);
+		JLabel lDesc = new JLabel(description, JLabel.CENTER);
 
 		JPanel labels = new JPanel();
 		// 2 rows, 1 column
@@ -333,99 +762,278 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 		labels.add(lName);
 		labels.add(lDesc);
 		labels.setBackground(labelBackground);
-		thisIntersection.add(labels);
+		return labels;
+	}
 
-		// Now assemble the SignalFaces
-		List<SignalFace> faces = i.getSignalFaces();
-		JPanel physicalSignalFaces = new JPanel();
-
-		for (SignalFace sf : faces) {
-			JPanel thisFacePanel = new JPanel();
-			thisFacePanel.setLayout(new BoxLayout(thisFacePanel, BoxLayout.Y_AXIS));
-
-			String at = sf.location().label();
-			String facing = sf.orientation().label();
-
-			JLabel atLabel = new JLabel(at, JLabel.CENTER);
-			JLabel facingLabel = new JLabel(facing, JLabel.CENTER);
-
-			JPanel faceLabels = new JPanel();
-			faceLabels.setLayout(new BoxLayout(faceLabels, BoxLayout.Y_AXIS));
-			faceLabels.setToolTipText(sf.location() + " facing " + sf.orientation());
-			faceLabels.add(atLabel);
-			faceLabels.add(facingLabel);
-
-			thisFacePanel.add(faceLabels);
-			thisFacePanel.add(sf.getGUI()); // the 3 lights
-
-			thisFacePanel.setBorder(BorderFactory.createEtchedBorder());
-			physicalSignalFaces.add(thisFacePanel);
-		}
-		thisIntersection.add(physicalSignalFaces);
-
-		JPanel phasesPanel = new JPanel();
-
-		// Each phase gets same vertical space. (1 column)
-		// One row per phase
-		phasesPanel.setLayout(new BoxLayout(phasesPanel, BoxLayout.Y_AXIS));
-		PhasePlan plan = i.getPlan();
-
-		// Collect the GUI representation for each phase in plan
-		for (Phase currPhase : plan.phases()) {
-			JPanel currPhasePanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-			currPhasePanel.setBackground(phasePanelBackground);
-			currPhasePanel.setBorder(BorderFactory.createSoftBevelBorder(BevelBorder.RAISED));
-			// We'll need to keep up to date as phases change
-			currPhase.addObserver(this);
-			phasePanels.put(currPhase, currPhasePanel);
-
-			// Name and description in a text area
-			JTextArea tpp = new JTextArea(4, 9);
-			tpp.setLineWrap(true);
-			tpp.setWrapStyleWord(true);
-			tpp.append(currPhase.getName() + " \n");
-			tpp.append(currPhase.getDescription());
-			tpp.setEditable(false);
-			currPhasePanel.add(tpp);
-
-			JPanel currPhaseStreams = new JPanel();
-			// For each phase, collect the traffic stream info...
-			Collection<TrafficStream> streams = currPhase.getTrafficStreams();
-
-			for (TrafficStream ts : streams) {
-				ts.addObserver(this);
-				JPanel streamPanel = new JPanel(new BorderLayout());
-				String si = ts.toString();
-				String sii = si.substring(si.indexOf(" ") + 1, si.length() - 1);
-
-				JLabel streamInfo = new JLabel(ts.getname(), JLabel.CENTER);
-				streamInfo.setToolTipText(sii);
-
-				streamPanel.add(streamInfo, BorderLayout.NORTH);
-				streamPanel.setBackground(streamBackground);
-				streamPanel.setBorder(BorderFactory.createSoftBevelBorder(SoftBevelBorder.RAISED));
-				JPanel streamPanelChip = new JPanel();
-				streamPanelChip.setPreferredSize(new Dimension(25, 25));
-				streamPanelChip.setBackground(colourForState(currPhase.streamStates().get(ts)));
-
-				addChip(ts, streamPanelChip);
-
-				streamPanel.add(streamPanelChip);
-				currPhaseStreams.add(streamPanel);
+	/**
+	 * Add a signal face's lights, labelled with where it is and which way it
+	 * faces.
+	 */
+	private void addFacePanel(JPanel physicalSignalFaces, SignalFace sf) {
+		JPanel thisFacePanel = new JPanel();
+		thisFacePanel.setLayout(new BoxLayout(thisFacePanel, BoxLayout.Y_AXIS));
+
+		String at = sf.location().label();
+		String facing = sf.orientation().label();
+
+		JLabel atLabel = new JLabel(at, JLabel.CENTER);
+		JLabel facingLabel = new JLabel(facing, JLabel.CENTER);
+
+		JPanel faceLabels = new JPanel();
+		faceLabels.setLayout(new BoxLayout(faceLabels, BoxLayout.Y_AXIS));
+		faceLabels.setToolTipText(sf.location() + " facing " + sf.orientation());
+		faceLabels.add(atLabel);
+		faceLabels.add(facingLabel);
+
+		thisFacePanel.add(faceLabels);
+		thisFacePanel.add(sf.getGUI()); // the 3 lights
+
+		thisFacePanel.setBorder(BorderFactory.createEtchedBorder());
+		physicalSignalFaces.add(thisFacePanel);
+	}
+
+	/**
+	 * @return	An empty view of signal faces.
+	 */
+	private SignalFaceArrayView faceView() {
+		SignalFaceArrayView faceView = new SignalFaceArrayView();
+		faceView.setBorder(BorderFactory.createEtchedBorder());
+		return faceView;
+	}
+
+	/**
+	 * Add a described signal face, which follows its stream as the phase
+	 * table's chips do.
+	 */
+	private void addFace(SignalFaceArrayView faceView, IntersectionDescription.FaceDescription face, TrafficStream ts) {
+		faceView.addFace(face.getLocation(), face.getFacing(), face.getFaceType(), ts);
+	}
+
+	/**
+	 * @param subscriptions	Where to subscribe to the intersection's bus.
+	 * @return	An empty table of phases. Its streams' changes are logged in
+	 *          the transcript.
+	 */
+	private PhaseTableView phaseTable(TrafficStream[] streams, IntersectionEventBus.Subscriptions subscriptions) {
+		PhaseTableView phaseTable = new PhaseTableView(PHASE_ROWS);
+		phaseTable.setStreams(streams);
+		for (TrafficStream ts : streams)
+			subscriptions.subscribe(ts, this);
+		phaseTable.setBorder(BorderFactory.createEtchedBorder(EtchedBorder.RAISED));
+		return phaseTable;
+	}
+
+	/**
+	 * Add a row showing a phase, with a chip for each stream in its planned
+	 * colour.
+	 *
+	 * @param states			The planned state of each of the table's streams.
+	 * @param subscriptions		Where to subscribe to the intersection's bus.
+	 */
+	private void addPhaseRow(PhaseTableView phaseTable, Phase currPhase, PackedPhaseStates states,
+			IntersectionEventBus.Subscriptions subscriptions) {
+		// Log the phase starting in the transcript
+		subscriptions.subscribe(currPhase, this);
+		phaseTable.addPhase(currPhase, states);
+	}
+
+	/**
+	 * Shows an intersection while it is read on a background thread. Each
+	 * part is built and added to the window on the EDT as soon as it has been
+	 * read. If the reader gets ahead, the parts waiting are added together
+	 * and laid out once.
+	 */
+	private class ProgressiveLoad implements IntersectionDescription.Listener {
+		private final IntersectionEventBus bus = new IntersectionEventBus();
+		private final IntersectionEventBus.Subscriptions subscriptions = bus.subscriptions();
+		private final IntersectionBuilder builder = new IntersectionBuilder(bus);
+		private final ConcurrentLinkedQueue<Runnable> parts = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicBoolean drainScheduled = new AtomicBoolean();
+		private final Runnable drain = new Runnable() {
+
+			@Override
+			public void run() {
+				drainParts();
 			}
-			currPhasePanel.add(currPhaseStreams);
-			phasesPanel.add(currPhasePanel);
+		};
+
+		// Only used on the EDT
+		private JPanel thisIntersection;
+		private SignalFaceArrayView faceView;
+		private PhaseTableView phaseTable;
+
+		ProgressiveLoad() {
+			// The face view paints the faces
+			builder.setSignalFaces(false);
+		}
+
+		@Override
+		public void intersectionRead(final IntersectionDescription description) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					builder.intersectionRead(description);
+					thisIntersection = new JPanel();
+					thisIntersection.setLayout(new BoxLayout(thisIntersection, BoxLayout.Y_AXIS));
+					thisIntersection.add(intersectionLabels(description.getName(), description.getDescription()));
+					faceView = faceView();
+					thisIntersection.add(faceView);
+					mainPanel.add(thisIntersection);
+				}
+			});
 		}
 
-		phasesPanel.setBorder(BorderFactory.createEtchedBorder(EtchedBorder.RAISED));
+		@Override
+		public void streamsRead(final List<IntersectionDescription.StreamDescription> streams) {
+			post(new Runnable() {
 
-		thisIntersection.add(phasesPanel);
-		return thisIntersection;
+				@Override
+				public void run() {
+					builder.streamsRead(streams);
+					phaseTable = phaseTable(builder.getStreams(), subscriptions);
+					thisIntersection.add(phaseTable);
+				}
+			});
+		}
+
+		@Override
+		public void planStarted(final int plan, final boolean preTimed) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					builder.planStarted(plan, preTimed);
+				}
+			});
+		}
+
+		@Override
+		public void phaseRead(final int plan, final int phase, final IntersectionDescription.PhaseDescription description) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					builder.phaseRead(plan, phase, description);
+					// Only the first plan is shown
+					if (plan == 0)
+						addPhaseRow(phaseTable, builder.getLastPhase(), description.getStreamStates(), subscriptions);
+				}
+			});
+		}
+
+		@Override
+		public void planRead(final int plan) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					builder.planRead(plan);
+				}
+			});
+		}
+
+		@Override
+		public void faceRead(final int face, final IntersectionDescription.FaceDescription description) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					builder.faceRead(face, description);
+					addFace(faceView, description, builder.getStreams()[description.getStream()]);
+				}
+			});
+		}
+
+		@Override
+		public void descriptionRead(final IntersectionDescription description) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					builder.descriptionRead(description);
+					// Only now can it be started or saved
+					myDescription = description;
+					myIntersection = builder.getIntersection();
+					myBus = bus;
+					CompiledPhasePlan compiledPlan = new CompiledPhasePlan(myIntersection.getPlan(), description);
+					addToDashboard(new ShownIntersection(myIntersection, thisIntersection, compiledPlan, description, bus,
+							subscriptions, phaseTable, faceView));
+				}
+			});
+		}
+
+		/**
+		 * The description turned out to be invalid, so take away what has
+		 * been shown of it.
+		 */
+		void failed(final IntersectionLoadException e) {
+			failed(new Runnable() {
+
+				@Override
+				public void run() {
+					JOptionPane.showMessageDialog(null, e.getMessage(), "Syntax Error", JOptionPane.ERROR_MESSAGE);
+					JOptionPane.showMessageDialog(null, "This intersection isn't valid and can't be displayed",
+							"Malformed Intersection", JOptionPane.ERROR_MESSAGE);
+				}
+			});
+		}
+
+		/**
+		 * The file couldn't be read, so take away what has been shown of it.
+		 */
+		void failed(final IOException e) {
+			failed(new Runnable() {
+
+				@Override
+				public void run() {
+					JOptionPane.showMessageDialog(null, e.getMessage(), "Intersection Not Read",
+							JOptionPane.ERROR_MESSAGE);
+				}
+			});
+		}
+
+		/**
+		 * Remove the part shown and stop listening to its streams and phases,
+		 * then tell the user why.
+		 */
+		private void failed(final Runnable report) {
+			post(new Runnable() {
+
+				@Override
+				public void run() {
+					if (thisIntersection != null)
+						mainPanel.remove(thisIntersection);
+					subscriptions.unsubscribeAll();
+					report.run();
+				}
+			});
+		}
+
+		private void post(Runnable part) {
+			parts.add(part);
+			if (drainScheduled.compareAndSet(false, true))
+				SwingUtilities.invokeLater(drain);
+		}
+
+		private void drainParts() {
+			// Clear first, so a part posted while draining schedules another drain
+			drainScheduled.set(false);
+			Runnable part;
+			while ((part = parts.poll()) != null)
+				part.run();
+			mainPanel.revalidate();
+			mainPanel.repaint();
+		}
 	}
 
 	/**
 	 * Open menu item selected so go ahead and load the corresponding file.
 	 * Doesn't start its cycle.
+	 * 
+	 * The file is read on a background thread, and the intersection appears
+	 * a part at a time as it is read. It can't be started until it has all
+	 * been read.
 	 */
 	private void openIntersection() {
 		File f;
@@ -438,21 +1046,26 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			f = jfc.getSelectedFile();
 			if (f.exists() && f.isFile() && f.canRead()) {
 				// so far, so good
-				try {
-					BufferedReader br = new BufferedReader(new FileReader(f.getPath()));
-					// OK, file is opened so read & process content
-					MyIntersectionLoader il = new MyIntersectionLoader(br);
-					myIntersection = il.buildIntersection();
-					if (myIntersection == null) {
-						JOptionPane.showMessageDialog(null, "This intersection isn't valid and can't be displayed",
-								"Malformed Intersection", JOptionPane.ERROR_MESSAGE);
-						return;
+				myIntersection = null;
+				myDescription = null;
+				final File source = f;
+				final ProgressiveLoad load = new ProgressiveLoad();
+				Thread loader = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							// Only parsed if this content hasn't been opened before
+							intersectionCache.load(source, load);
+						} catch (IntersectionLoadException e) {
+							load.failed(e);
+						} catch (IOException ioe) {
+							load.failed(ioe);
+						}
 					}
-					mainPanel.add(intersectionGUI(myIntersection));
-					super.getContentPane().validate();
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
-				}
+				}, "Intersection loader");
+				loader.setDaemon(true);
+				loader.start();
 			}
 			break;
 		case JFileChooser.CANCEL_OPTION:
@@ -463,7 +1076,8 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	}
 
 	/**
-	 * Save the current intersection to file system in serialised form.
+	 * Save the current intersection to file system. Intersections loaded from a
+	 * description file are saved in binary form, others in serialised form.
 	 */
 	private void saveSerialisedIntersection() {
 		File f;
@@ -476,10 +1090,16 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 				f = jfc.getSelectedFile();
 			try{
 				FileOutputStream outFile = new FileOutputStream(f.getPath());
-				ObjectOutputStream outStream = new ObjectOutputStream(outFile);
-				outStream.writeObject(myIntersection);
-				outStream.flush();
-				outStream.close();
+				if (myDescription != null) {
+					BufferedOutputStream outStream = new BufferedOutputStream(outFile);
+					BinaryIntersectionFormat.write(myDescription, outStream);
+					outStream.close();
+				} else {
+					ObjectOutputStream outStream = new ObjectOutputStream(outFile);
+					outStream.writeObject(myIntersection);
+					outStream.flush();
+					outStream.close();
+				}
 		        outFile.close();
 		        JOptionPane.showMessageDialog(null, "Intersection saved", "Saved", JOptionPane.INFORMATION_MESSAGE);
 			}
@@ -496,10 +1116,11 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	}
 
 	/**
-	 * Load a previously saved intersection in serialised form.
+	 * Load a previously saved intersection in binary or serialised form.
 	 */
 	private void loadSerialisedIntersection() {
 		myIntersection = null;
+		myDescription = null;
 		File f;
 		String cwd = System.getProperty("user.dir");
 
@@ -511,14 +1132,23 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 			if (f.exists() && f.isFile() && f.canRead()) {
 				try {
 					//Try to load the intersection
-					FileInputStream inFile = new FileInputStream(f.getPath());
-					ObjectInputStream inStream = new ObjectInputStream(inFile);
-					myIntersection = (Intersection) inStream.readObject();
-					inStream.close();
-					inFile.close();
-
-					myIntersection.recoverObservers();
-					mainPanel.add(intersectionGUI(myIntersection));
+					BufferedInputStream inFile = new BufferedInputStream(new FileInputStream(f.getPath()));
+					if (isBinaryIntersection(inFile)) {
+						//Building the description wires up the observers, so nothing to recover
+						myDescription = BinaryIntersectionFormat.read(inFile);
+						myBus = new IntersectionEventBus();
+						myIntersection = myDescription.build(myBus, DetectorSource.RANDOM, false);
+						inFile.close();
+					} else {
+						ObjectInputStream inStream = new ObjectInputStream(inFile);
+						myIntersection = (Intersection) inStream.readObject();
+						inStream.close();
+						inFile.close();
+
+						myIntersection.recoverObservers();
+						myBus = new IntersectionEventBus();
+					}
+					mainPanel.add(intersectionGUI(myIntersection, myDescription, myBus));
 					getContentPane().validate();
 				}
 				catch(IOException e)
@@ -541,11 +1171,107 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 		}
 	}
 
+	/**
+	 * Check whether a saved intersection is in binary form, leaving the stream
+	 * where it was.
+	 * 
+	 * @param in
+	 *            The saved intersection.
+	 * @return true if the stream starts with the binary format's magic number.
+	 */
+	private boolean isBinaryIntersection(BufferedInputStream in) throws IOException {
+		in.mark(4);
+		int magic = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = in.read();
+			if (b < 0) {
+				in.reset();
+				return false;
+			}
+			magic = (magic << 8) | b;
+		}
+		in.reset();
+		return magic == BinaryIntersectionFormat.MAGIC;
+	}
+
+	/**
+	 * Replay a journal of the intersection on show, as if it were running.
+	 * Asks for the journal directory, the intersection's id in it and the speed.
+	 */
+	private void replayJournal() {
+		if (myIntersection == null) {
+			JOptionPane.showMessageDialog(null, "Open the intersection the journal was recorded from first",
+					"No Intersection", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		JFileChooser jfc = new JFileChooser(System.getProperty("user.dir"));
+		jfc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		if (jfc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		String id = JOptionPane.showInputDialog(this, "Intersection id in the journal", "0");
+		String speed = JOptionPane.showInputDialog(this, "Replay speed (1 to 1000)", "1");
+		if (id == null || speed == null)
+			return;
+
+		try {
+			if (replay != null)
+				replay.stop();
+			replay = new TransitionReplay(new TransitionJournalReader(jfc.getSelectedFile()), Integer.parseInt(id.trim()),
+					new CompiledPhasePlan(myIntersection.getPlan(), myDescription), myBus);
+			replay.setSpeed(Double.parseDouble(speed.trim()));
+			replay.setFailureListener(new TransitionReplay.FailureListener() {
+
+				@Override
+				public void playbackFailed(TransitionReplay failed, final IOException e) {
+					SwingUtilities.invokeLater(new Runnable() {
+
+						@Override
+						public void run() {
+							JOptionPane.showMessageDialog(null, e.getMessage(), "Replay Stopped",
+									JOptionPane.ERROR_MESSAGE);
+						}
+					});
+				}
+			});
+			replay.seek(replay.getStartTime());
+			replay.play();
+		} catch (IOException e) {
+			replay = null;
+			JOptionPane.showMessageDialog(null, e.getMessage(), "Journal Not Read", JOptionPane.ERROR_MESSAGE);
+		} catch (IllegalArgumentException e) {
+			// Includes NumberFormatException
+			replay = null;
+			JOptionPane.showMessageDialog(null, e.getMessage(), "Invalid Replay", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
+	/**
+	 * Jump the replay to a number of seconds from the start of its journal.
+	 */
+	private void seekReplay() {
+		if (replay == null)
+			return;
+		String seconds = JOptionPane.showInputDialog(this, "Seconds from the start of the journal (0 to "
+				+ (replay.getEndTime() - replay.getStartTime()) / 1000 + ")", "0");
+		if (seconds == null)
+			return;
+		try {
+			replay.seek(replay.getStartTime() + (long) (Double.parseDouble(seconds.trim()) * 1000));
+			replay.play();
+		} catch (IOException e) {
+			JOptionPane.showMessageDialog(null, e.getMessage(), "Journal Not Read", JOptionPane.ERROR_MESSAGE);
+		} catch (NumberFormatException e) {
+			JOptionPane.showMessageDialog(null, e.getMessage(), "Invalid Time", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
 	/**
 	 * Start intersection cycle
 	 */
 	private void start() {
-		myIntersection.start();
+		ShownIntersection shown = shown(myIntersection);
+		if (shown != null)
+			shown.start();
 	}
 
 	/**
@@ -556,85 +1282,55 @@ public class MyIntersectionMonitor extends JFrame implements Observer {
 	}
 
 	/**
-	 * Given the current state, what colour should we use?
+	 * We're subscribed to the TrafficStreams on show, so their changes can be
+	 * logged in the transcript.
 	 * 
-	 * @param state
-	 *            The state we're in.
-	 * @return the colour to use.
+	 * Called on the simulation threads. Logging doesn't lock or touch Swing;
+	 * the GUI catches up on the EDT in flushFrame().
 	 */
-	private Color colourForState(State state) {
-		Color col;
-
-		switch (state) {
-		case RED:
-			col = Color.RED;
-			break;
-		case YELLOW:
-			col = Color.YELLOW;
-			break;
-		case GREEN:
-			col = Color.GREEN;
-			break;
-		case OFF:
-			col = Color.BLACK;
-			break;
-		default:
-			col = Color.BLUE;
-			break;
-		}
-		return col;
+	@Override
+	public void streamChanged(TrafficStream ts, State state) {
+		tp.getBuffer().add(ts, state);
 	}
 
-	/*
-	 * Which chips refer to each stream
+	/**
+	 * We're also subscribed to the phases, to log them starting.
 	 */
-	private void addChip(TrafficStream ts, JPanel jp) {
-		if (streamStateChips.containsKey(ts)) {
-			ArrayList<JPanel> panels = streamStateChips.get(ts);
-			panels.add(jp);
-			streamStateChips.replace(ts, panels);
-		} else {
-			ArrayList<JPanel> panels = new ArrayList<JPanel>();
-			panels.add(jp);
-			streamStateChips.put(ts, panels);
-		}
-
+	@Override
+	public void phaseStarted(Phase p, String message) {
+		// transcript.append((String) arg);
+		tp.log(message);
 	}
 
 	/**
-	 * Implement the Observable interface. We're possibly observing
-	 * TrafficStreams - when they change state they will notify us and we'll
-	 * update our GUI accordingly.
-	 * 
-	 * Could also be observing phases. Maybe highlight the current one?
-	 * 
-	 * We could potentially notify other observers of our own (e.g. to update a
-	 * log)
+	 * Limit how often the window is repainted for state changes. Changes that
+	 * happen between frames are shown together in the next frame.
+	 *
+	 * @param framesPerSecond	The most repaints per second.
 	 */
-	@Override
-	public void update(Observable o, Object arg) {
-		if ((arg instanceof State) && (o instanceof TrafficStream)) {
-			TrafficStream ts = (TrafficStream) o;
-			State state = (State) arg;
-			tp.log(ts + " going " + state);
+	public void setMaxFrameRate(int framesPerSecond) {
+		if (framesPerSecond < 1)
+			throw new IllegalArgumentException("Frame rate must be at least 1");
+		frameTimer.setDelay(1000 / framesPerSecond);
+	}
 
-			repaint();
-		} else {
-			if (o instanceof Phase) {
-				Phase p = (Phase) o;
-				JPanel jp;
-				if (thePhase != null) {
-					jp = phasePanels.get(thePhase);
-					jp.setBackground(inactivePhaseBackground);
-				}
-				jp = phasePanels.get(p);
-				jp.setBackground(activePhaseBackground);
-				thePhase = p;
-				// transcript.append((String) arg);
-				tp.log((String) arg);
-				repaint();
-			}
-		}
+	/**
+	 * Show everything that has changed since the last frame, reading each
+	 * intersection's status. Only the components that changed are repainted.
+	 * Runs on the EDT.
+	 */
+	private void flushFrame() {
+		long start = System.nanoTime();
+		tp.refresh();
+
+		// Faces with their own GUI redraw themselves. Painted faces and the
+		// chips of the running phase follow their streams, repainting just the
+		// lamps and chips that change.
+		boolean changed = false;
+		for (ShownIntersection shown : intersections)
+			changed |= shown.view.refresh();
+		if (changed)
+			IntersectionMetrics.get().getGuiUpdate().recordSince(start);
 	}
 
 }
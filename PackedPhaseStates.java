@@ -0,0 +1,190 @@
+package traffic.diy;
+
+import traffic.util.State;
+
+/**
+ * The state of every stream during a phase, packed two bits per stream into
+ * an array of longs. Streams are referred to by index, in the order they
+ * were described (MyIntersectionLoader's trafficStreamList order).
+ *
+ * Looking up a stream is a shift and a mask, and the streams that change
+ * between two phases are found by comparing whole words at once.
+ *
+ * @author cijolly
+ */
+public class PackedPhaseStates {
+
+	private static final State[] STATES = State.values();
+	private static final int STREAMS_PER_WORD = 32;
+	private static final long LOW_BITS = 0x5555555555555555L;
+
+	static {
+		// Each state is stored as its ordinal in two bits
+		if (STATES.length > 4)
+			throw new IllegalStateException("Too many states to pack into two bits");
+	}
+
+	private final long[] words;
+	private final int size;
+
+	/**
+	 * Constructor for class. Every stream starts as the first State constant
+	 * until it is set.
+	 *
+	 * @param size	Number of streams.
+	 */
+	public PackedPhaseStates(int size) {
+		this.size = size;
+		this.words = new long[(size + STREAMS_PER_WORD - 1) / STREAMS_PER_WORD];
+	}
+
+	/**
+	 * @param states	The state of each stream, in stream order.
+	 * @return	The states, packed.
+	 */
+	public static PackedPhaseStates pack(State[] states) {
+		PackedPhaseStates packed = new PackedPhaseStates(states.length);
+		for (int i = 0; i < states.length; i++)
+			packed.set(i, states[i]);
+		return packed;
+	}
+
+	/**
+	 * @return	A copy that can be changed without changing this.
+	 */
+	public PackedPhaseStates copy() {
+		PackedPhaseStates copy = new PackedPhaseStates(size);
+		System.arraycopy(words, 0, copy.words, 0, words.length);
+		return copy;
+	}
+
+	/**
+	 * Make this the same as another with the same number of streams, without
+	 * making a new one.
+	 */
+	public void copyFrom(PackedPhaseStates other) {
+		if (other.size != size)
+			throw new IllegalArgumentException("Phases have different numbers of streams");
+		System.arraycopy(other.words, 0, words, 0, words.length);
+	}
+
+	/**
+	 * Set the state of a stream. Only for use while the phase is being read or
+	 * compiled, as phases may be shared once built.
+	 *
+	 * @param stream	Index of the stream.
+	 * @param state		The state of the stream during the phase.
+	 */
+	public void set(int stream, State state) {
+		checkIndex(stream);
+		int word = wordOf(stream);
+		words[word] = withState(words[word], stream, state);
+	}
+
+	/**
+	 * @param stream	Index of the stream.
+	 * @return	The state of the stream during the phase.
+	 */
+	public State get(int stream) {
+		checkIndex(stream);
+		int shift = (stream % STREAMS_PER_WORD) * 2;
+		return STATES[(int) (words[stream / STREAMS_PER_WORD] >>> shift) & 3];
+	}
+
+	/**
+	 * @return	The number of streams.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return	The number of words the states are packed into.
+	 */
+	int wordCount() {
+		return words.length;
+	}
+
+	/**
+	 * @return	One word of packed states, for copying the states somewhere else.
+	 */
+	long getWord(int word) {
+		return words[word];
+	}
+
+	void setWord(int word, long value) {
+		words[word] = value;
+	}
+
+	/**
+	 * @return	The index of the word a stream is packed into.
+	 */
+	static int wordOf(int stream) {
+		return stream / STREAMS_PER_WORD;
+	}
+
+	/**
+	 * @param word		A word of packed states.
+	 * @param stream	Index of a stream packed into the word.
+	 * @param state		The stream's new state.
+	 * @return	The word with the stream's state changed.
+	 */
+	static long withState(long word, int stream, State state) {
+		int shift = (stream % STREAMS_PER_WORD) * 2;
+		return (word & ~(3L << shift)) | ((long) state.ordinal() << shift);
+	}
+
+	/**
+	 * Find the next stream whose state is different in another phase. To visit
+	 * every stream that changes on a transition:
+	 * <pre>
+	 * for (int s = from.nextChange(to, 0); s &gt;= 0; s = from.nextChange(to, s + 1))
+	 * </pre>
+	 *
+	 * @param other		The phase to compare with. Must have the same number of streams.
+	 * @param stream	Index of the first stream to check.
+	 * @return	Index of the next stream with a different state, or -1 if there isn't one.
+	 */
+	public int nextChange(PackedPhaseStates other, int stream) {
+		if (other.size != size)
+			throw new IllegalArgumentException("Phases have different numbers of streams");
+		if (stream >= size)
+			return -1;
+		int word = stream / STREAMS_PER_WORD;
+		// Ignore streams before the first one asked for
+		long changed = changedStreams(other, word) & (-1L << ((stream % STREAMS_PER_WORD) * 2));
+		while (true) {
+			if (changed != 0)
+				return word * STREAMS_PER_WORD + Long.numberOfTrailingZeros(changed) / 2;
+			if (++word == words.length)
+				return -1;
+			changed = changedStreams(other, word);
+		}
+	}
+
+	/**
+	 * @param other	The phase to compare with. Must have the same number of streams.
+	 * @return	The number of streams whose state is different in the other phase.
+	 */
+	public int countChanges(PackedPhaseStates other) {
+		if (other.size != size)
+			throw new IllegalArgumentException("Phases have different numbers of streams");
+		int count = 0;
+		for (int word = 0; word < words.length; word++)
+			count += Long.bitCount(changedStreams(other, word));
+		return count;
+	}
+
+	/**
+	 * @return	A word with the low bit of each stream's pair of bits set if that stream differs.
+	 */
+	private long changedStreams(PackedPhaseStates other, int word) {
+		long difference = words[word] ^ other.words[word];
+		return (difference | (difference >>> 1)) & LOW_BITS;
+	}
+
+	private void checkIndex(int stream) {
+		if (stream < 0 || stream >= size)
+			throw new IndexOutOfBoundsException("Stream " + stream + " of " + size);
+	}
+}
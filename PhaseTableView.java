@@ -0,0 +1,350 @@
+package traffic.diy;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.ListCellRenderer;
+import javax.swing.ToolTipManager;
+
+import traffic.core.Phase;
+import traffic.core.TrafficStream;
+import traffic.util.State;
+
+/**
+ * Shows the phases of a plan, one row each, with a chip for each stream in
+ * the colour planned for it. The running phase is highlighted and its chips
+ * follow their streams as they change.
+ *
+ * Rows are painted by one renderer rather than built from components, and
+ * the list only paints the rows in view, so the time to show a plan and the
+ * memory it takes don't grow with the number of phases or streams.
+ *
+ * Use this on the EDT.
+ *
+ * @author cijolly
+ */
+public class PhaseTableView extends JPanel {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int NAME_WIDTH = 130;
+	private static final int CHIP_WIDTH = 56;
+	private static final int CHIP_SIZE = 25;
+	private static final int ROW_HEIGHT = 68;
+	private static final int GAP = 4;
+
+	private static final Color PHASE_BACKGROUND = Color.pink;
+	private static final Color STREAM_BACKGROUND = Color.magenta;
+	private static final Color INACTIVE_PHASE_BACKGROUND = Color.GRAY;
+	private static final Color ACTIVE_PHASE_BACKGROUND = Color.CYAN;
+
+	/**
+	 * The rows of the list, one per phase.
+	 */
+	private class PhaseListModel extends AbstractListModel<Phase> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public int getSize() {
+			return phases.size();
+		}
+
+		@Override
+		public Phase getElementAt(int index) {
+			return phases.get(index);
+		}
+
+		void added(int index) {
+			fireIntervalAdded(this, index, index);
+		}
+
+		void cleared(int size) {
+			if (size > 0)
+				fireIntervalRemoved(this, 0, size - 1);
+		}
+	}
+
+	/**
+	 * Paints whichever row the list asks for.
+	 */
+	private class RowRenderer extends JComponent implements ListCellRenderer<Phase> {
+
+		private static final long serialVersionUID = 1L;
+
+		private int row;
+
+		@Override
+		public Component getListCellRendererComponent(JList<? extends Phase> list, Phase value, int index,
+				boolean isSelected, boolean cellHasFocus) {
+			row = index;
+			return this;
+		}
+
+		/**
+		 * Wide enough for every chip, so a scroll pane scrolls to them.
+		 */
+		@Override
+		public Dimension getPreferredSize() {
+			return new Dimension(chipX(streams.length), ROW_HEIGHT);
+		}
+
+		@Override
+		protected void paintComponent(Graphics g) {
+			Phase phase = phases.get(row);
+			PackedPhaseStates shown = row == running ? runningStates : planned.get(row);
+			Color background = PHASE_BACKGROUND;
+			if (row == running)
+				background = ACTIVE_PHASE_BACKGROUND;
+			else if (ran.get(row))
+				background = INACTIVE_PHASE_BACKGROUND;
+			Rectangle clip = g.getClipBounds();
+			if (clip == null)
+				clip = new Rectangle(0, 0, getWidth(), getHeight());
+			g.setColor(background);
+			g.fillRect(clip.x, clip.y, clip.width, clip.height);
+			g.setFont(getFont());
+			FontMetrics metrics = g.getFontMetrics();
+
+			// Name and description
+			if (clip.x < NAME_WIDTH)
+				paintName(g, phase);
+
+			// Only the chips in the clip, so repainting one chip or a scrolled
+			// strip doesn't cost every stream
+			int first = Math.max(0, Math.floorDiv(clip.x - NAME_WIDTH, CHIP_WIDTH));
+			int last = Math.min(streams.length - 1, Math.floorDiv(clip.x + clip.width - 1 - NAME_WIDTH, CHIP_WIDTH));
+			for (int s = first; s <= last; s++) {
+				int x = chipX(s);
+				g.setColor(STREAM_BACKGROUND);
+				g.fillRect(x, GAP, CHIP_WIDTH - GAP, ROW_HEIGHT - 2 * GAP);
+				g.setColor(Color.BLACK);
+				String name = streams[s].getname();
+				g.drawString(name, x + (CHIP_WIDTH - GAP - metrics.stringWidth(name)) / 2, GAP + metrics.getAscent());
+				g.setColor(colourForState(shown.get(s)));
+				g.fillRect(x + (CHIP_WIDTH - GAP - CHIP_SIZE) / 2, ROW_HEIGHT - GAP - CHIP_SIZE - GAP, CHIP_SIZE,
+						CHIP_SIZE);
+			}
+		}
+
+		private void paintName(Graphics g, Phase phase) {
+			g.setColor(Color.WHITE);
+			g.fillRect(GAP, GAP, NAME_WIDTH - 2 * GAP, ROW_HEIGHT - 2 * GAP);
+			g.setColor(Color.BLACK);
+			Font font = getFont();
+			g.setFont(font.deriveFont(Font.BOLD));
+			FontMetrics metrics = g.getFontMetrics();
+			int y = GAP + metrics.getAscent();
+			g.drawString(phase.getName(), 2 * GAP, y);
+			g.setFont(font);
+			metrics = g.getFontMetrics();
+			drawWrapped(g, metrics, phase.getDescription(), 2 * GAP, y + metrics.getHeight(), NAME_WIDTH - 4 * GAP,
+					ROW_HEIGHT - GAP);
+		}
+
+		/**
+		 * The list asks the renderer for the tooltip of the row under the
+		 * mouse, with the point in the row's coordinates.
+		 */
+		@Override
+		public String getToolTipText(MouseEvent event) {
+			int s = streamAt(event.getX());
+			if (s < 0)
+				return phases.get(row).getName();
+			String si = streams[s].toString();
+			return si.substring(si.indexOf(" ") + 1, si.length() - 1);
+		}
+	}
+
+	private final PhaseListModel model = new PhaseListModel();
+	private final JList<Phase> list = new JList<Phase>(model);
+
+	private TrafficStream[] streams = new TrafficStream[0];
+	private final HashMap<TrafficStream, Integer> streamIndex = new HashMap<TrafficStream, Integer>();
+	private final ArrayList<Phase> phases = new ArrayList<Phase>();
+	private final ArrayList<PackedPhaseStates> planned = new ArrayList<PackedPhaseStates>();
+	private final HashMap<Phase, Integer> phaseIndex = new HashMap<Phase, Integer>();
+
+	// The running phase, what its chips show, and the phases that have run
+	private int running = -1;
+	private PackedPhaseStates runningStates;
+	private final BitSet ran = new BitSet();
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param rows	Number of rows to show.
+	 */
+	public PhaseTableView(int rows) {
+		super(new BorderLayout());
+		list.setCellRenderer(new RowRenderer());
+		list.setVisibleRowCount(rows);
+		// Rows all the same size, so the list doesn't measure every phase
+		list.setFixedCellHeight(ROW_HEIGHT);
+		list.setFixedCellWidth(NAME_WIDTH);
+		ToolTipManager.sharedInstance().registerComponent(list);
+		add(new JScrollPane(list), BorderLayout.CENTER);
+	}
+
+	/**
+	 * Set the streams that every phase has a chip for, in the order they
+	 * appear. Forgets any phases already shown.
+	 */
+	public void setStreams(TrafficStream[] streams) {
+		int size = phases.size();
+		phases.clear();
+		planned.clear();
+		phaseIndex.clear();
+		running = -1;
+		ran.clear();
+		model.cleared(size);
+
+		this.streams = streams.clone();
+		streamIndex.clear();
+		for (int s = 0; s < streams.length; s++)
+			streamIndex.put(streams[s], s);
+		list.setFixedCellWidth(chipX(streams.length));
+		revalidate();
+	}
+
+	public TrafficStream[] getStreams() {
+		return streams.clone();
+	}
+
+	/**
+	 * Add a row for a phase after those already shown.
+	 *
+	 * @param phase		The phase.
+	 * @param states	The planned state of each stream, in stream order.
+	 */
+	public void addPhase(Phase phase, PackedPhaseStates states) {
+		if (states.size() != streams.length)
+			throw new IllegalArgumentException("Phase " + phase.getName() + " has " + states.size()
+					+ " stream states for " + streams.length + " streams");
+		phaseIndex.put(phase, phases.size());
+		phases.add(phase);
+		planned.add(states);
+		model.added(phases.size() - 1);
+	}
+
+	public int getPhaseCount() {
+		return phases.size();
+	}
+
+	/**
+	 * @return	true if the phase has a row.
+	 */
+	public boolean contains(Phase phase) {
+		return phaseIndex.containsKey(phase);
+	}
+
+	/**
+	 * Highlight a phase as running. Its chips start in their planned colours.
+	 * The phase that was running goes back to its planned colours.
+	 */
+	public void phaseStarted(Phase phase) {
+		Integer index = phaseIndex.get(phase);
+		if (index == null)
+			return;
+		if (running >= 0) {
+			ran.set(running);
+			repaintRow(running);
+		}
+		running = index;
+		runningStates = planned.get(running).copy();
+		repaintRow(running);
+	}
+
+	/**
+	 * Show a stream's state on its chip in the running phase. Only the chip
+	 * is repainted.
+	 */
+	public void streamChanged(TrafficStream ts, State state) {
+		Integer s = streamIndex.get(ts);
+		if (s == null || running < 0 || runningStates.get(s) == state)
+			return;
+		runningStates.set(s, state);
+		Rectangle cell = list.getCellBounds(running, running);
+		if (cell != null)
+			list.repaint(cell.x + chipX(s), cell.y, CHIP_WIDTH, cell.height);
+	}
+
+	/**
+	 * Given the current state, what colour should we use?
+	 *
+	 * @param state	The state we're in.
+	 * @return	the colour to use.
+	 */
+	public static Color colourForState(State state) {
+		switch (state) {
+		case RED:
+			return Color.RED;
+		case YELLOW:
+			return Color.YELLOW;
+		case GREEN:
+			return Color.GREEN;
+		case OFF:
+			return Color.BLACK;
+		default:
+			return Color.BLUE;
+		}
+	}
+
+	private void repaintRow(int row) {
+		Rectangle cell = list.getCellBounds(row, row);
+		if (cell != null)
+			list.repaint(cell);
+	}
+
+	private static int chipX(int stream) {
+		return NAME_WIDTH + stream * CHIP_WIDTH;
+	}
+
+	/**
+	 * @return	The index of the stream whose chip is at x in a row, or -1.
+	 */
+	private int streamAt(int x) {
+		if (x < NAME_WIDTH)
+			return -1;
+		int s = (x - NAME_WIDTH) / CHIP_WIDTH;
+		return s < streams.length ? s : -1;
+	}
+
+	/**
+	 * Draw text a word at a time, starting a new line when a word won't fit,
+	 * until it runs out of room.
+	 */
+	private static void drawWrapped(Graphics g, FontMetrics metrics, String text, int x, int y, int width,
+			int bottom) {
+		StringBuilder line = new StringBuilder();
+		for (String word : text.split(" ")) {
+			if (line.length() > 0 && metrics.stringWidth(line + " " + word) > width) {
+				if (y + metrics.getDescent() > bottom)
+					return;
+				g.drawString(line.toString(), x, y);
+				y += metrics.getHeight();
+				line.setLength(0);
+			}
+			if (line.length() > 0)
+				line.append(' ');
+			line.append(word);
+		}
+		if (line.length() > 0 && y + metrics.getDescent() <= bottom)
+			g.drawString(line.toString(), x, y);
+	}
+}
@@ -0,0 +1,242 @@
+package traffic.diy;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.MouseEvent;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.swing.JComponent;
+import javax.swing.ToolTipManager;
+
+import traffic.core.TrafficStream;
+import traffic.signal.SignalFace;
+import traffic.util.State;
+import traffic.util.TrafficDirection;
+
+/**
+ * Paints every signal face of an intersection in one component, in a grid
+ * of cells. Each cell has the face's location and direction, and its three
+ * lamps with the one for its stream's state lit. Arrow faces show their
+ * arrow in the lit lamp.
+ *
+ * Faces are kept in arrays, with a byte for each face's state. A stream
+ * change repaints only the lamps of the faces showing that stream, and
+ * painting skips the cells outside the area being painted.
+ *
+ * Use this on the EDT.
+ *
+ * @author cijolly
+ */
+public class SignalFaceArrayView extends JComponent {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default faces in each row of the grid.
+	 */
+	public static final int DEFAULT_COLUMNS = 10;
+
+	private static final int CELL_WIDTH = 64;
+	private static final int CELL_HEIGHT = 104;
+	private static final int LAMP_SIZE = 18;
+	private static final int LAMP_GAP = 3;
+	private static final int LAMPS_TOP = 36;
+	private static final int GAP = 2;
+
+	private static final Color UNLIT = Color.DARK_GRAY;
+	private static final State[] STATES = State.values();
+
+	private final int columns;
+
+	// One entry per face
+	private int faceCount = 0;
+	private String[] locations = new String[16];
+	private String[] facings = new String[16];
+	private String[] tooltips = new String[16];
+	private byte[] faceTypes = new byte[16];
+	private byte[] states = new byte[16];
+
+	/**
+	 * The faces showing each stream.
+	 */
+	private final HashMap<TrafficStream, int[]> streamFaces = new HashMap<TrafficStream, int[]>();
+
+	/**
+	 * Constructor for class.
+	 */
+	public SignalFaceArrayView() {
+		this(DEFAULT_COLUMNS);
+	}
+
+	/**
+	 * @param columns	Faces in each row of the grid.
+	 */
+	public SignalFaceArrayView(int columns) {
+		if (columns < 1)
+			throw new IllegalArgumentException("Need at least one column");
+		this.columns = columns;
+		setOpaque(true);
+		ToolTipManager.sharedInstance().registerComponent(this);
+	}
+
+	/**
+	 * Add a face after those already shown. It shows its stream as red until
+	 * told otherwise.
+	 *
+	 * @param location	Where the face is.
+	 * @param facing	Which way the face points.
+	 * @param faceType	Shape of the face, one of the SignalFace constants.
+	 * @param stream	The stream the face shows.
+	 * @return	The index of the face.
+	 */
+	public int addFace(TrafficDirection location, TrafficDirection facing, int faceType, TrafficStream stream) {
+		if (faceCount == states.length) {
+			int capacity = faceCount * 2;
+			locations = Arrays.copyOf(locations, capacity);
+			facings = Arrays.copyOf(facings, capacity);
+			tooltips = Arrays.copyOf(tooltips, capacity);
+			faceTypes = Arrays.copyOf(faceTypes, capacity);
+			states = Arrays.copyOf(states, capacity);
+		}
+		int face = faceCount++;
+		locations[face] = location.label();
+		facings[face] = facing.label();
+		tooltips[face] = location + " facing " + facing;
+		faceTypes[face] = (byte) faceType;
+		states[face] = (byte) State.RED.ordinal();
+
+		int[] faces = streamFaces.get(stream);
+		faces = faces == null ? new int[1] : Arrays.copyOf(faces, faces.length + 1);
+		faces[faces.length - 1] = face;
+		streamFaces.put(stream, faces);
+
+		// Only the grid size and the new cell change
+		if (face % columns == 0 || face < columns)
+			revalidate();
+		repaint(cellBounds(face));
+		return face;
+	}
+
+	public int getFaceCount() {
+		return faceCount;
+	}
+
+	/**
+	 * @return	The state a face is showing.
+	 */
+	public State getState(int face) {
+		return STATES[states[face]];
+	}
+
+	/**
+	 * Show a stream's new state on every face showing it. Only the lamps of
+	 * faces whose state changes are repainted.
+	 */
+	public void streamChanged(TrafficStream stream, State state) {
+		int[] faces = streamFaces.get(stream);
+		if (faces == null)
+			return;
+		byte ordinal = (byte) state.ordinal();
+		for (int face : faces) {
+			if (states[face] != ordinal) {
+				states[face] = ordinal;
+				Rectangle cell = cellBounds(face);
+				repaint(cell.x, cell.y + LAMPS_TOP, cell.width, 3 * (LAMP_SIZE + LAMP_GAP));
+			}
+		}
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		if (isPreferredSizeSet())
+			return super.getPreferredSize();
+		int shownColumns = Math.max(1, Math.min(columns, faceCount));
+		int rows = Math.max(1, (faceCount + columns - 1) / columns);
+		return new Dimension(shownColumns * CELL_WIDTH, rows * CELL_HEIGHT);
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+		// Only the cells that overlap the area being painted
+		int firstRow = Math.max(0, clip.y / CELL_HEIGHT);
+		int lastRow = (clip.y + clip.height - 1) / CELL_HEIGHT;
+		int firstColumn = Math.max(0, clip.x / CELL_WIDTH);
+		int lastColumn = Math.min(columns - 1, (clip.x + clip.width - 1) / CELL_WIDTH);
+		FontMetrics metrics = g.getFontMetrics();
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				int face = row * columns + column;
+				if (face >= faceCount)
+					return;
+				paintFace(g, metrics, face, column * CELL_WIDTH, row * CELL_HEIGHT);
+			}
+		}
+	}
+
+	private void paintFace(Graphics g, FontMetrics metrics, int face, int x, int y) {
+		int width = CELL_WIDTH - 2 * GAP;
+		g.setColor(Color.LIGHT_GRAY);
+		g.drawRect(x + GAP, y + GAP, width - 1, CELL_HEIGHT - 2 * GAP - 1);
+
+		g.setColor(getForeground());
+		int line = y + GAP + metrics.getAscent();
+		g.drawString(locations[face], x + GAP + (width - metrics.stringWidth(locations[face])) / 2, line);
+		line += metrics.getHeight();
+		g.drawString(facings[face], x + GAP + (width - metrics.stringWidth(facings[face])) / 2, line);
+
+		// Red, yellow and green lamps, top to bottom
+		State state = STATES[states[face]];
+		int lampX = x + (CELL_WIDTH - LAMP_SIZE) / 2;
+		int lampY = y + LAMPS_TOP;
+		paintLamp(g, faceTypes[face], lampX, lampY, state == State.RED ? Color.RED : UNLIT);
+		lampY += LAMP_SIZE + LAMP_GAP;
+		paintLamp(g, faceTypes[face], lampX, lampY, state == State.YELLOW ? Color.YELLOW : UNLIT);
+		lampY += LAMP_SIZE + LAMP_GAP;
+		paintLamp(g, faceTypes[face], lampX, lampY, state == State.GREEN ? Color.GREEN : UNLIT);
+	}
+
+	private static void paintLamp(Graphics g, int faceType, int x, int y, Color colour) {
+		if (faceType == SignalFace.STANDARD || colour == UNLIT) {
+			g.setColor(colour);
+			g.fillOval(x, y, LAMP_SIZE, LAMP_SIZE);
+			return;
+		}
+		// A lit arrow on a black lamp
+		g.setColor(Color.BLACK);
+		g.fillOval(x, y, LAMP_SIZE, LAMP_SIZE);
+		g.setColor(colour);
+		int middle = y + LAMP_SIZE / 2;
+		int left = x + 3;
+		int right = x + LAMP_SIZE - 3;
+		int tip = faceType == SignalFace.LEFT_ARROW ? left : right;
+		int back = faceType == SignalFace.LEFT_ARROW ? left + 5 : right - 5;
+		g.fillRect(left, middle - 1, right - left, 3);
+		g.fillPolygon(new int[] { tip, back, back }, new int[] { middle, middle - 5, middle + 5 }, 3);
+	}
+
+	@Override
+	public String getToolTipText(MouseEvent event) {
+		int column = event.getX() / CELL_WIDTH;
+		int face = event.getY() / CELL_HEIGHT * columns + column;
+		if (column >= columns || face >= faceCount)
+			return null;
+		return tooltips[face];
+	}
+
+	/**
+	 * @return	Where a face's cell is in the component.
+	 */
+	private Rectangle cellBounds(int face) {
+		return new Rectangle(face % columns * CELL_WIDTH, face / columns * CELL_HEIGHT, CELL_WIDTH, CELL_HEIGHT);
+	}
+}
@@ -0,0 +1,254 @@
+package traffic.diy;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs any number of intersections in real time on a small shared pool of
+ * threads, instead of each intersection timing itself. Each intersection is a
+ * VirtualTimeSimulation, whose next phase transition is scheduled for the
+ * moment it is due, so the pool always runs the earliest deadline first.
+ *
+ * Records how late each transition runs (its jitter), so the number of
+ * intersections a machine can keep on time can be measured with main().
+ * An intersection that throws while stepping is stopped, counted and
+ * reported to the FailureListener; the others carry on.
+ *
+ * @author cijolly
+ */
+public class SimulationHost {
+
+	/**
+	 * Jitter is counted in buckets of this many microseconds, so a percentile
+	 * can be compared exactly with any multiple of 0.1 ms.
+	 */
+	private static final int BUCKET_MICROS = 100;
+	private static final int BUCKETS = 1000;
+
+	/**
+	 * Told when an intersection stops because stepping it threw.
+	 */
+	public interface FailureListener {
+		/**
+		 * Called on the thread that was stepping the intersection.
+		 *
+		 * @param simulation	The intersection, which won't be stepped again.
+		 * @param e				What it threw.
+		 */
+		void failed(VirtualTimeSimulation simulation, RuntimeException e);
+	}
+
+	/**
+	 * One intersection, stepping itself each time it is due.
+	 */
+	private class Run implements Runnable {
+		private final VirtualTimeSimulation simulation;
+		private final long startNanos;
+
+		Run(VirtualTimeSimulation simulation) {
+			this.simulation = simulation;
+			this.startNanos = System.nanoTime() - deadlineNanos(simulation.getTime());
+		}
+
+		@Override
+		public void run() {
+			if (stopped)
+				return;
+			long due = startNanos + deadlineNanos(simulation.getNextEventTime());
+			recordJitter(System.nanoTime() - due);
+			try {
+				simulation.step();
+			} catch (RuntimeException e) {
+				// The executor would swallow it, and the intersection would just stop
+				intersections.decrementAndGet();
+				failures.incrementAndGet();
+				failureListener.failed(simulation, e);
+				return;
+			}
+			schedule();
+		}
+
+		void schedule() {
+			long delay = startNanos + deadlineNanos(simulation.getNextEventTime()) - System.nanoTime();
+			executor.schedule(this, Math.max(0, delay), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final double speed;
+	private final AtomicInteger intersections = new AtomicInteger();
+	// The last bucket counts everything from BUCKETS * BUCKET_MICROS up
+	private final AtomicLongArray jitter = new AtomicLongArray(BUCKETS + 1);
+	private final AtomicLong transitions = new AtomicLong();
+	private final AtomicLong maxJitterNanos = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private volatile FailureListener failureListener = new FailureListener() {
+
+		@Override
+		public void failed(VirtualTimeSimulation simulation, RuntimeException e) {
+			e.printStackTrace();
+		}
+	};
+	private volatile boolean stopped = false;
+
+	/**
+	 * Constructor for class. Runs in real time.
+	 *
+	 * @param threads	Size of the shared pool.
+	 */
+	public SimulationHost(int threads) {
+		this(threads, 1);
+	}
+
+	/**
+	 * @param threads	Size of the shared pool.
+	 * @param speed		How many times faster than real time to run.
+	 */
+	public SimulationHost(int threads, double speed) {
+		if (speed <= 0)
+			throw new IllegalArgumentException("Speed must be more than 0");
+		this.speed = speed;
+		final AtomicInteger threadNumber = new AtomicInteger();
+		executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Simulation host " + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Start running an intersection from its current virtual time.
+	 *
+	 * @param simulation	The intersection. Not to be stepped by anything else.
+	 */
+	public void add(VirtualTimeSimulation simulation) {
+		intersections.incrementAndGet();
+		new Run(simulation).schedule();
+	}
+
+	/**
+	 * Stop running every intersection. Transitions already running finish.
+	 */
+	public void shutdown() {
+		stopped = true;
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @param failureListener	Told when an intersection stops because it
+	 *                          threw. By default the exception is printed.
+	 */
+	public void setFailureListener(FailureListener failureListener) {
+		this.failureListener = failureListener;
+	}
+
+	/**
+	 * @return	The number of intersections still running.
+	 */
+	public int getIntersections() {
+		return intersections.get();
+	}
+
+	/**
+	 * @return	The number of intersections stopped because they threw.
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public long getTransitions() {
+		return transitions.get();
+	}
+
+	/**
+	 * @return	The latest any transition has run, in milliseconds.
+	 */
+	public double getMaxJitterMillis() {
+		return maxJitterNanos.get() / 1e6;
+	}
+
+	/**
+	 * @param fraction	Between 0 and 1, e.g. 0.99 for the 99th percentile.
+	 * @return	The jitter of the transition at this fraction, rounded down
+	 *          to 0.1 ms, in milliseconds. So it is at least a multiple of
+	 *          0.1 ms exactly when the true percentile is. Above 100 ms, the
+	 *          maximum jitter.
+	 */
+	public double getJitterPercentileMillis(double fraction) {
+		long wanted = Math.max(1, (long) Math.ceil(transitions.get() * fraction));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += jitter.get(i);
+			if (seen >= wanted)
+				return i * BUCKET_MICROS / 1000.0;
+		}
+		return getMaxJitterMillis();
+	}
+
+	/**
+	 * Forget the jitter recorded so far, e.g. once the pool has warmed up.
+	 */
+	public void resetJitter() {
+		for (int i = 0; i <= BUCKETS; i++)
+			jitter.set(i, 0);
+		transitions.set(0);
+		maxJitterNanos.set(0);
+	}
+
+	private long deadlineNanos(long virtualMillis) {
+		return (long) (virtualMillis * 1e6 / speed);
+	}
+
+	/**
+	 * @param nanos	How late a transition ran, in nanoseconds.
+	 */
+	void recordJitter(long nanos) {
+		nanos = Math.max(0, nanos);
+		jitter.incrementAndGet((int) Math.min(BUCKETS, nanos / 1000 / BUCKET_MICROS));
+		transitions.incrementAndGet();
+		long max = maxJitterNanos.get();
+		while (nanos > max && !maxJitterNanos.compareAndSet(max, nanos))
+			max = maxJitterNanos.get();
+	}
+
+	/**
+	 * Find how many generated intersections the pool can run with a 99th
+	 * percentile jitter under 5 ms. Doubles the number of intersections until
+	 * the limit is passed.
+	 *
+	 * Arguments: [threads [seconds per trial [speed]]].
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+		double limitMillis = 5;
+
+		IntersectionGenerator generator = new IntersectionGenerator(1);
+		for (int count = 1000; count <= 1 << 20; count *= 2) {
+			SimulationHost host = new SimulationHost(threads, speed);
+			for (int i = 0; i < count; i++)
+				host.add(new VirtualTimeSimulation(generator.generate()));
+			// Leave out the first transitions, which all fall due together
+			Thread.sleep(1000);
+			host.resetJitter();
+			Thread.sleep(seconds * 1000L);
+			host.shutdown();
+
+			double p99 = host.getJitterPercentileMillis(0.99);
+			System.out.printf("%d intersections on %d threads: %d transitions, p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+					count, threads, host.getTransitions(), host.getJitterPercentileMillis(0.5), p99,
+					host.getMaxJitterMillis());
+			if (p99 >= limitMillis)
+				break;
+		}
+	}
+}
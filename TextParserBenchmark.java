@@ -0,0 +1,70 @@
+package traffic.diy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import traffic.diy.MyIntersectionLoader.IntersectionTextParser;
+import traffic.load.TrafficSyntaxException;
+
+/**
+ * JMH benchmarks of the conversions in IntersectionTextParser. Each
+ * invocation converts every value in a table, so the results can't be
+ * constant folded. Run with LoaderBenchmark.main to include the GC profiler.
+ *
+ * @author cijolly
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextParserBenchmark {
+
+	private static final int OPERATIONS = 8;
+
+	private String[] directions = { "N", "S", "E", "W", "NE", "NW", "SE", "SW" };
+	private String[] faceTypes = { "STANDARD", "LEFT_ARROW", "RIGHT_ARROW", "STANDARD", "STANDARD", "LEFT_ARROW",
+			"RIGHT_ARROW", "STANDARD" };
+	private char[] states = { 'G', 'Y', 'R', 'X', 'R', 'R', 'G', 'Y' };
+	private String[] times = { "1", "3", "8", "10", "25", "60", "120", "3600" };
+
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public void stringToDirection(Blackhole bh) throws TrafficSyntaxException {
+		for (String direction : directions)
+			bh.consume(IntersectionTextParser.StringToDirection(direction));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public void stringToFaceType(Blackhole bh) throws TrafficSyntaxException {
+		for (String faceType : faceTypes)
+			bh.consume(IntersectionTextParser.StringToFaceType(faceType));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public void charToState(Blackhole bh) throws TrafficSyntaxException {
+		for (char state : states)
+			bh.consume(IntersectionTextParser.CharToState(state));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public void stringToTime(Blackhole bh) throws TrafficSyntaxException {
+		for (String time : times)
+			bh.consume(IntersectionTextParser.StringToTime(time));
+	}
+}
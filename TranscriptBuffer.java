@@ -0,0 +1,149 @@
+package traffic.diy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import traffic.util.State;
+
+/**
+ * A fixed size ring of transcript events. Any number of threads can add
+ * events without locking; once the ring is full the oldest events are
+ * overwritten. Events keep the objects they are about, and are only turned
+ * into text when they are displayed or saved.
+ *
+ * Every event gets a sequence number. Readers ask for events by sequence
+ * number between getFirst() and getEnd(), and get null for one that has been
+ * overwritten or isn't written yet.
+ *
+ * @author cijolly
+ */
+public class TranscriptBuffer {
+
+	/**
+	 * Something that happened, as logged.
+	 */
+	public static class Event {
+		private final long sequence;
+		private final long time;
+		private final Object source;
+		private final Object detail;
+
+		Event(long sequence, long time, Object source, Object detail) {
+			this.sequence = sequence;
+			this.time = time;
+			this.source = source;
+			this.detail = detail;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return	When the event happened, in milliseconds since the epoch.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return	What the event happened to, or null for a plain message.
+		 */
+		public Object getSource() {
+			return source;
+		}
+
+		public Object getDetail() {
+			return detail;
+		}
+
+		/**
+		 * @return	The event as it appears in the transcript, without its time.
+		 */
+		public String getMessage() {
+			if (source == null)
+				return String.valueOf(detail);
+			if (detail instanceof State)
+				return source + " going " + detail;
+			return source + ": " + detail;
+		}
+	}
+
+	private final AtomicReferenceArray<Event> slots;
+	private final int mask;
+	private final AtomicLong next = new AtomicLong();
+	private volatile long cleared = 0;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param capacity	The most events kept. Rounded up to a power of two.
+	 */
+	public TranscriptBuffer(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30)
+			throw new IllegalArgumentException("Invalid transcript capacity " + capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		slots = new AtomicReferenceArray<Event>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Log a plain message.
+	 */
+	public void add(String message) {
+		add(null, message);
+	}
+
+	/**
+	 * Log something that happened to an object, such as a stream changing
+	 * state. Neither is formatted until the event is read.
+	 *
+	 * @param source	What the event happened to.
+	 * @param detail	What happened.
+	 */
+	public void add(Object source, Object detail) {
+		long sequence = next.getAndIncrement();
+		slots.set((int) sequence & mask, new Event(sequence, System.currentTimeMillis(), source, detail));
+	}
+
+	/**
+	 * @return	Sequence number of the oldest event still kept.
+	 */
+	public long getFirst() {
+		return Math.max(cleared, next.get() - slots.length());
+	}
+
+	/**
+	 * @return	Sequence number the next event will get.
+	 */
+	public long getEnd() {
+		return next.get();
+	}
+
+	/**
+	 * @param sequence	Sequence number of an event.
+	 * @return	The event, or null if it has been overwritten or isn't written yet.
+	 */
+	public Event get(long sequence) {
+		Event event = slots.get((int) sequence & mask);
+		if (event == null || event.sequence != sequence || sequence < cleared)
+			return null;
+		return event;
+	}
+
+	/**
+	 * @return	The most events kept.
+	 */
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	/**
+	 * Forget the events logged so far.
+	 */
+	public void clear() {
+		cleared = next.get();
+	}
+}
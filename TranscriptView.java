@@ -0,0 +1,197 @@
+package traffic.diy;
+
+import java.awt.BorderLayout;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JFileChooser;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * Shows the events in a TranscriptBuffer. The list only asks for the rows
+ * that are on screen, so only those events are ever formatted, however many
+ * the buffer holds.
+ *
+ * Apart from log(), which any thread may call, use this on the EDT.
+ *
+ * @author cijolly
+ */
+public class TranscriptView extends JPanel {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Default number of events kept.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private static final String TIME_FORMAT = "HH:mm:ss.SSS";
+
+	/**
+	 * The rows of the list, one per event kept when last refreshed.
+	 */
+	private class EventListModel extends AbstractListModel<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_FORMAT);
+		private long first = 0;
+		private int size = 0;
+
+		@Override
+		public int getSize() {
+			return size;
+		}
+
+		@Override
+		public String getElementAt(int index) {
+			TranscriptBuffer.Event event = buffer.get(first + index);
+			if (event == null)
+				return "";
+			return format(timeFormat, event);
+		}
+
+		/**
+		 * Catch up with the events logged since the last refresh.
+		 */
+		void refresh() {
+			long newFirst = buffer.getFirst();
+			int newSize = (int) (buffer.getEnd() - newFirst);
+			if (newFirst == first && newSize == size)
+				return;
+			int oldSize = size;
+			boolean shifted = newFirst != first;
+			first = newFirst;
+			size = newSize;
+			if (shifted) {
+				// Every row now shows a different event
+				if (oldSize > newSize)
+					fireIntervalRemoved(this, newSize, oldSize - 1);
+				if (newSize > 0)
+					fireContentsChanged(this, 0, newSize - 1);
+			} else {
+				fireIntervalAdded(this, oldSize, newSize - 1);
+			}
+		}
+	}
+
+	private final TranscriptBuffer buffer;
+	private final EventListModel model = new EventListModel();
+	private final JList<String> list = new JList<String>(model);
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param rows	Number of rows to show.
+	 */
+	public TranscriptView(int rows) {
+		this(rows, new TranscriptBuffer(DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * @param rows		Number of rows to show.
+	 * @param buffer	The events to show.
+	 */
+	public TranscriptView(int rows, TranscriptBuffer buffer) {
+		super(new BorderLayout());
+		this.buffer = buffer;
+		list.setVisibleRowCount(rows);
+		// Rows all the same height, so the list doesn't measure every event
+		list.setPrototypeCellValue(TIME_FORMAT + " A long enough transcript entry for most events");
+		add(new JScrollPane(list), BorderLayout.CENTER);
+	}
+
+	public TranscriptBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Add a message to the transcript. It appears at the next refresh().
+	 */
+	public void log(String message) {
+		buffer.add(message);
+	}
+
+	/**
+	 * Show the events logged since the last refresh, scrolled to the newest.
+	 */
+	public void refresh() {
+		model.refresh();
+		if (model.getSize() > 0)
+			list.ensureIndexIsVisible(model.getSize() - 1);
+	}
+
+	/**
+	 * Forget everything logged so far.
+	 */
+	public void clear() {
+		buffer.clear();
+		refresh();
+	}
+
+	/**
+	 * Ask for a file, then write the events kept in the buffer to it on a
+	 * background thread. Events logged after saving starts aren't included.
+	 */
+	public void saveToFile() {
+		JFileChooser jfc = new JFileChooser(System.getProperty("user.dir"));
+		if (jfc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		final File f = jfc.getSelectedFile();
+		final long first = buffer.getFirst();
+		final long end = buffer.getEnd();
+
+		Thread saver = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					write(f, first, end);
+				} catch (final IOException e) {
+					SwingUtilities.invokeLater(new Runnable() {
+
+						@Override
+						public void run() {
+							JOptionPane.showMessageDialog(TranscriptView.this, e.getMessage(), "Transcript Not Saved",
+									JOptionPane.ERROR_MESSAGE);
+						}
+					});
+				}
+			}
+		}, "Save transcript");
+		saver.setDaemon(true);
+		saver.start();
+	}
+
+	/**
+	 * Write events to a file, one per line. Events overwritten while writing
+	 * are left out.
+	 */
+	private void write(File f, long first, long end) throws IOException {
+		SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_FORMAT);
+		Writer out = new BufferedWriter(new FileWriter(f));
+		try {
+			for (long sequence = first; sequence < end; sequence++) {
+				TranscriptBuffer.Event event = buffer.get(sequence);
+				if (event != null)
+					out.write(format(timeFormat, event) + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String format(SimpleDateFormat timeFormat, TranscriptBuffer.Event event) {
+		return timeFormat.format(new Date(event.getTime())) + " " + event.getMessage();
+	}
+}
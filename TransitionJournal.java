@@ -0,0 +1,402 @@
+package traffic.diy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import traffic.core.Phase;
+import traffic.core.TrafficStream;
+import traffic.util.State;
+
+/**
+ * An append-only binary journal of stream and phase transitions, written to
+ * memory mapped segment files in a directory. Each transition is a 16 byte
+ * record:
+ *
+ * <pre>
+ * long  time           milliseconds, wall clock or virtual
+ * int   intersection   id given by the caller
+ * short index          stream index, or phase index for a phase record
+ * byte  state          State ordinal, 0 for a phase record
+ * byte  kind           STREAM or PHASE, written last; 0 means not written
+ * </pre>
+ *
+ * Each segment file starts with a 16 byte header (magic, version, record
+ * size, records per segment) and holds a fixed number of records. Files are
+ * named by the sequence number of their first record, so they sort in order.
+ *
+ * Any number of threads can write at once. Each claims a record number with
+ * one atomic increment and writes its own record, so writers never wait for
+ * each other. The next segment is mapped on a background thread while the
+ * current one is half full, so writers only wait for it if they get there
+ * first. A segment is kept until it is full and has been forced. Records are
+ * plain writes to the mapping, so read the journal once it has been forced
+ * or closed rather than while it is being written.
+ *
+ * @author cijolly
+ */
+public class TransitionJournal {
+
+	public static final int MAGIC = 0x5543494A; // "UCIJ"
+	public static final short VERSION = 1;
+	public static final int HEADER_SIZE = 16;
+	public static final int RECORD_SIZE = 16;
+
+	/**
+	 * Record kinds.
+	 */
+	public static final byte STREAM = 1;
+	public static final byte PHASE = 2;
+
+	/**
+	 * Offsets of the fields within a record.
+	 */
+	static final int TIME = 0;
+	static final int INTERSECTION = 8;
+	static final int INDEX = 12;
+	static final int STATE = 14;
+	static final int KIND = 15;
+
+	/**
+	 * Default records per segment, making 64MB segment files.
+	 */
+	public static final int DEFAULT_SEGMENT_RECORDS = 4 * 1024 * 1024;
+
+	static final String SUFFIX = ".ucij";
+
+	/**
+	 * A mapped segment file.
+	 */
+	private static class Segment {
+		final long number;
+		final MappedByteBuffer buffer;
+		/**
+		 * Records finished in this segment.
+		 */
+		final AtomicInteger written = new AtomicInteger();
+
+		Segment(long number, MappedByteBuffer buffer) {
+			this.number = number;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File directory;
+	private final int segmentRecords;
+	private final AtomicLong next = new AtomicLong();
+	private final ConcurrentHashMap<Long, Segment> segments = new ConcurrentHashMap<Long, Segment>();
+	private final AtomicReference<Segment> current = new AtomicReference<Segment>();
+	private final ExecutorService mapper = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Journal segment mapper");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Constructor for class. Uses 64MB segments.
+	 *
+	 * @param directory	Where to write the segment files. Created if it doesn't exist.
+	 * @throws IOException	if the first segment can't be created.
+	 */
+	public TransitionJournal(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_RECORDS);
+	}
+
+	/**
+	 * @param directory			Where to write the segment files. Created if it doesn't exist.
+	 * @param segmentRecords	Number of records in each segment file.
+	 * @throws IOException	if the first segment can't be created.
+	 */
+	public TransitionJournal(File directory, int segmentRecords) throws IOException {
+		if (segmentRecords < 1 || segmentRecords > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE)
+			throw new IllegalArgumentException("Invalid records per segment " + segmentRecords);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create journal directory " + directory);
+		this.directory = directory;
+		this.segmentRecords = segmentRecords;
+		// Carry on after any segments already in the directory
+		next.set(TransitionJournalReader.endOf(directory, segmentRecords));
+		Segment first = segment(next.get() / segmentRecords);
+		// Count the records already there, so the segment is let go once full
+		first.written.set((int) (next.get() % segmentRecords));
+		current.set(first);
+	}
+
+	/**
+	 * Record a stream changing state.
+	 *
+	 * @param time			When it changed, in milliseconds.
+	 * @param intersection	Which intersection it belongs to.
+	 * @param stream		Index of the stream, 0 to 65535.
+	 * @param state			The stream's new state.
+	 */
+	public void streamChanged(long time, int intersection, int stream, State state) {
+		append(time, intersection, stream, state.ordinal(), STREAM);
+	}
+
+	/**
+	 * Record a phase starting.
+	 *
+	 * @param time			When it started, in milliseconds.
+	 * @param intersection	Which intersection it belongs to.
+	 * @param phase			Index of the phase in its plan, 0 to 65535.
+	 */
+	public void phaseStarted(long time, int intersection, int phase) {
+		append(time, intersection, phase, 0, PHASE);
+	}
+
+	/**
+	 * @return	The number of records written, including any already in the directory.
+	 */
+	public long getRecords() {
+		return next.get();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int getSegmentRecords() {
+		return segmentRecords;
+	}
+
+	/**
+	 * @return	A listener that journals a simulation's transitions.
+	 */
+	public VirtualTimeSimulation.Listener listener(final int intersection) {
+		return new VirtualTimeSimulation.Listener() {
+
+			@Override
+			public void phaseStarted(long time, int phase) {
+				TransitionJournal.this.phaseStarted(time, intersection, phase);
+			}
+
+			@Override
+			public void streamChanged(long time, int stream, State state) {
+				TransitionJournal.this.streamChanged(time, intersection, stream, state);
+			}
+		};
+	}
+
+	/**
+	 * Journal the transitions of a running intersection, timed by the wall
+	 * clock and numbered as in the compiled plan.
+	 *
+	 * @param bus			The bus the intersection's streams and phases publish through.
+	 * @param intersection	Id to journal the intersection's transitions under.
+	 * @param plan			The intersection's plan.
+	 * @return	The subscriptions made, to stop journalling with unsubscribeAll().
+	 */
+	public IntersectionEventBus.Subscriptions attach(IntersectionEventBus bus, final int intersection,
+			final CompiledPhasePlan plan) {
+		IntersectionEventBus.Subscriptions subscriptions = bus.subscriptions();
+		for (int s = 0; s < plan.streamCount(); s++) {
+			final int stream = s;
+			subscriptions.subscribe(plan.getStream(s), new IntersectionEventBus.StreamListener() {
+
+				@Override
+				public void streamChanged(TrafficStream ts, State state) {
+					TransitionJournal.this.streamChanged(System.currentTimeMillis(), intersection, stream, state);
+				}
+			});
+		}
+		for (int p = 0; p < plan.phaseCount(); p++) {
+			final int phase = p;
+			subscriptions.subscribe(plan.getPhase(p), new IntersectionEventBus.PhaseListener() {
+
+				@Override
+				public void phaseStarted(Phase started, String message) {
+					TransitionJournal.this.phaseStarted(System.currentTimeMillis(), intersection, phase);
+				}
+			});
+		}
+		return subscriptions;
+	}
+
+	/**
+	 * Write everything to disk. Records written by other threads at the same
+	 * time may or may not be included. Segments that were full before being
+	 * forced are let go.
+	 */
+	public void force() {
+		for (Segment segment : segments.values()) {
+			// Read first: a segment full now has nothing left to write after the force
+			boolean full = segment.written.get() == segmentRecords;
+			segment.buffer.force();
+			if (full)
+				segments.remove(segment.number, segment);
+		}
+	}
+
+	/**
+	 * Write everything to disk, and let go of the mapped segments.
+	 */
+	public void close() {
+		// Let a segment being mapped finish, rather than leave a file without a header
+		mapper.shutdown();
+		try {
+			mapper.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		force();
+		segments.clear();
+	}
+
+	private void append(long time, int intersection, int index, int state, byte kind) {
+		if (index < 0 || index > 0xFFFF)
+			throw new IllegalArgumentException("Index " + index + " can't be journalled");
+		long record = next.getAndIncrement();
+		long number = record / segmentRecords;
+		Segment segment = current.get();
+		if (segment.number != number)
+			segment = segmentFor(number);
+		ByteBuffer buffer = segment.buffer;
+		int offset = HEADER_SIZE + (int) (record % segmentRecords) * RECORD_SIZE;
+		buffer.putLong(offset + TIME, time);
+		buffer.putInt(offset + INTERSECTION, intersection);
+		buffer.putShort(offset + INDEX, (short) index);
+		buffer.put(offset + STATE, (byte) state);
+		// Written last, so a record left unfinished in the file reads as not written
+		buffer.put(offset + KIND, kind);
+		segment.written.incrementAndGet();
+
+		// Halfway through a segment, get the next one ready so writers don't wait for it
+		if (record % segmentRecords == segmentRecords / 2)
+			prefetch(number + 1);
+	}
+
+	private void prefetch(final long number) {
+		try {
+			mapper.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						// Unless writers have already moved past it
+						if (number > current.get().number)
+							segment(number);
+					} catch (IllegalStateException e) {
+						// The writer that needs it will try again and report it
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Closed; a writer still going maps it itself
+		}
+	}
+
+	private Segment segmentFor(long number) {
+		Segment segment = segment(number);
+		while (true) {
+			Segment latest = current.get();
+			// A writer late to an older segment mustn't move current back
+			if (number <= latest.number)
+				return segment;
+			// Older segments stay in segments until force() finds them full
+			if (current.compareAndSet(latest, segment))
+				return segment;
+		}
+	}
+
+	/**
+	 * @return	The mapped segment, created if it doesn't exist.
+	 */
+	private Segment segment(long number) {
+		Segment segment = segments.get(number);
+		if (segment != null)
+			return segment;
+		synchronized (segments) {
+			segment = segments.get(number);
+			if (segment == null) {
+				try {
+					segment = map(number);
+				} catch (IOException e) {
+					throw new IllegalStateException("Can't create journal segment " + number, e);
+				}
+				segments.put(number, segment);
+			}
+			return segment;
+		}
+	}
+
+	private Segment map(long number) throws IOException {
+		File file = segmentFile(directory, number * segmentRecords);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long size = HEADER_SIZE + (long) segmentRecords * RECORD_SIZE;
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(0, MAGIC);
+			buffer.putShort(4, VERSION);
+			buffer.putShort(6, (short) RECORD_SIZE);
+			buffer.putInt(8, segmentRecords);
+			return new Segment(number, buffer);
+		} finally {
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return	The file holding the segment that starts with a record.
+	 */
+	static File segmentFile(File directory, long firstRecord) {
+		return new File(directory, String.format(Locale.ROOT, "%016d", firstRecord) + SUFFIX);
+	}
+
+	/**
+	 * Measure how many transitions a second the journal can take from several
+	 * threads at once.
+	 *
+	 * Arguments: directory [threads [records per thread]].
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.out.println("Arguments: directory [threads [records per thread]]");
+			return;
+		}
+		final TransitionJournal journal = new TransitionJournal(new File(args[0]));
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		final int records = args.length > 2 ? Integer.parseInt(args[2]) : 10000000;
+		final State[] states = State.values();
+
+		Thread[] writers = new Thread[threads];
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final int intersection = t;
+			writers[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i < records; i++)
+						journal.streamChanged(i, intersection, i & 0xFF, states[i % states.length]);
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers)
+			writer.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		journal.close();
+
+		System.out.printf("%d records from %d threads in %.2f seconds, %.1f million a second%n",
+				(long) threads * records, threads, seconds, threads * (double) records / seconds / 1e6);
+	}
+}
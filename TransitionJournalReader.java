@@ -0,0 +1,229 @@
+package traffic.diy;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import traffic.util.State;
+
+/**
+ * Reads the records written by a TransitionJournal, in the order they were
+ * numbered. Records that were claimed but never written are skipped.
+ *
+ * The segment last read stays mapped, so reading a journal a batch at a time
+ * only maps each segment once.
+ *
+ * @author cijolly
+ */
+public class TransitionJournalReader {
+
+	/**
+	 * Told about each record read.
+	 */
+	public interface Visitor {
+		void streamChanged(long record, long time, int intersection, int stream, State state);
+
+		void phaseStarted(long record, long time, int intersection, int phase);
+	}
+
+	private static final State[] STATES = State.values();
+
+	private final File directory;
+	private final long[] segmentStarts;
+	private final int segmentRecords;
+	private final long end;
+
+	// The segment last read
+	private long mappedStart = -1;
+	private MappedByteBuffer mapped;
+
+	/**
+	 * Constructor for class.
+	 *
+	 * @param directory	The journal's directory.
+	 * @throws IOException	if a segment file can't be read or isn't a journal segment.
+	 */
+	public TransitionJournalReader(File directory) throws IOException {
+		this.directory = directory;
+		segmentStarts = segmentStarts(directory);
+		if (segmentStarts.length == 0) {
+			segmentRecords = TransitionJournal.DEFAULT_SEGMENT_RECORDS;
+			end = 0;
+		} else {
+			segmentRecords = readHeader(TransitionJournal.segmentFile(directory, segmentStarts[0]));
+			end = endOf(directory, segmentRecords);
+		}
+	}
+
+	/**
+	 * @return	The number of the first record after the last one written.
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return	The number of the first record in the journal.
+	 */
+	public long getStart() {
+		return segmentStarts.length == 0 ? 0 : segmentStarts[0];
+	}
+
+	public int getSegmentRecords() {
+		return segmentRecords;
+	}
+
+	/**
+	 * Read records in order.
+	 *
+	 * @param from		Number of the first record to read.
+	 * @param to		Number of the record to stop before.
+	 * @param visitor	Told about each record.
+	 * @throws IOException	if a segment can't be read.
+	 */
+	public void read(long from, long to, Visitor visitor) throws IOException {
+		to = Math.min(to, end);
+		long record = Math.max(from, getStart());
+		while (record < to) {
+			long first = record - record % segmentRecords;
+			long segmentEnd = Math.min(to, first + segmentRecords);
+			MappedByteBuffer buffer = segment(first);
+			if (buffer == null) {
+				// Gaps are allowed; old segments may have been deleted
+				record = segmentEnd;
+				continue;
+			}
+			for (; record < segmentEnd; record++) {
+				int offset = offset(record);
+				byte kind = buffer.get(offset + TransitionJournal.KIND);
+				long time = buffer.getLong(offset + TransitionJournal.TIME);
+				int intersection = buffer.getInt(offset + TransitionJournal.INTERSECTION);
+				int index = buffer.getShort(offset + TransitionJournal.INDEX) & 0xFFFF;
+				if (kind == TransitionJournal.STREAM) {
+					int state = buffer.get(offset + TransitionJournal.STATE);
+					if (state < 0 || state >= STATES.length)
+						throw new IOException("Invalid state " + state + " in journal record " + record);
+					visitor.streamChanged(record, time, intersection, index, STATES[state]);
+				} else if (kind == TransitionJournal.PHASE) {
+					visitor.phaseStarted(record, time, intersection, index);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return	The time of a record, or -1 if it wasn't written.
+	 * @throws IOException	if its segment can't be read.
+	 */
+	public long timeOf(long record) throws IOException {
+		if (record < getStart() || record >= end)
+			return -1;
+		MappedByteBuffer buffer = segment(record - record % segmentRecords);
+		if (buffer == null)
+			return -1;
+		int offset = offset(record);
+		if (buffer.get(offset + TransitionJournal.KIND) == 0)
+			return -1;
+		return buffer.getLong(offset + TransitionJournal.TIME);
+	}
+
+	/**
+	 * @param first	Number of the segment's first record.
+	 * @return	The segment, mapped unless it was the last one read, or null
+	 *          if it doesn't exist.
+	 */
+	private synchronized MappedByteBuffer segment(long first) throws IOException {
+		if (first != mappedStart) {
+			File file = TransitionJournal.segmentFile(directory, first);
+			if (!file.exists())
+				return null;
+			mapped = map(file);
+			mappedStart = first;
+		}
+		return mapped;
+	}
+
+	private int offset(long record) {
+		return TransitionJournal.HEADER_SIZE + (int) (record % segmentRecords) * TransitionJournal.RECORD_SIZE;
+	}
+
+	/**
+	 * @return	The number of the first record after the last one written to
+	 *          the journal in a directory, or 0 if there isn't one.
+	 * @throws IOException	if the last segment can't be read.
+	 */
+	static long endOf(File directory, int segmentRecords) throws IOException {
+		long[] starts = segmentStarts(directory);
+		// The last segment may have been mapped ahead of time and be empty
+		for (int s = starts.length - 1; s >= 0; s--) {
+			File file = TransitionJournal.segmentFile(directory, starts[s]);
+			if (readHeader(file) != segmentRecords)
+				throw new IOException("Journal " + directory + " has a different segment size");
+			MappedByteBuffer buffer = map(file);
+			// Records are claimed in order but may finish out of order, so the
+			// end is after the last one written
+			for (int i = segmentRecords - 1; i >= 0; i--) {
+				if (buffer.get(TransitionJournal.HEADER_SIZE + i * TransitionJournal.RECORD_SIZE + TransitionJournal.KIND) != 0)
+					return starts[s] + i + 1;
+			}
+		}
+		return starts.length == 0 ? 0 : starts[0];
+	}
+
+	/**
+	 * @return	The first record numbers of the segments in a directory, in order.
+	 */
+	private static long[] segmentStarts(File directory) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(TransitionJournal.SUFFIX);
+			}
+		});
+		if (files == null)
+			return new long[0];
+		long[] starts = new long[files.length];
+		int count = 0;
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				starts[count] = Long.parseLong(name.substring(0, name.length() - TransitionJournal.SUFFIX.length()));
+				count++;
+			} catch (NumberFormatException e) {
+				// Not a segment
+			}
+		}
+		starts = Arrays.copyOf(starts, count);
+		Arrays.sort(starts);
+		return starts;
+	}
+
+	/**
+	 * @return	The number of records in the segment.
+	 */
+	private static int readHeader(File file) throws IOException {
+		MappedByteBuffer buffer = map(file);
+		if (buffer.capacity() < TransitionJournal.HEADER_SIZE || buffer.getInt(0) != TransitionJournal.MAGIC)
+			throw new IOException(file + " is not a journal segment");
+		if (buffer.getShort(4) != TransitionJournal.VERSION || buffer.getShort(6) != TransitionJournal.RECORD_SIZE)
+			throw new IOException("Unsupported journal version in " + file);
+		int records = buffer.getInt(8);
+		if (records < 1 || TransitionJournal.HEADER_SIZE + (long) records * TransitionJournal.RECORD_SIZE > buffer.capacity())
+			throw new IOException("Invalid segment size in " + file);
+		return records;
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package traffic.diy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import traffic.util.State;
+
+/**
+ * Play back one intersection's transitions from a TransitionJournal through
+ * an event bus, so the monitor and signal faces show what the signals did as
+ * if the intersection were running. Plays at 1 to 1000 times real speed, and
+ * can jump to any time.
+ *
+ * Opening a replay reads the journal once to build a sparse index: every
+ * INDEX_INTERVAL records it notes the time, the running phase and the state
+ * of every stream. Seeking starts from the nearest earlier entry, so it never
+ * reads more than INDEX_INTERVAL records however long the recording is.
+ * Seeking to a time shows the state just before it, so the records at that
+ * time are left for playback.
+ *
+ * @author cijolly
+ */
+public class TransitionReplay {
+
+	/**
+	 * Told when playback stops because the journal can't be read.
+	 */
+	public interface FailureListener {
+		/**
+		 * Called on the player thread.
+		 */
+		void playbackFailed(TransitionReplay replay, IOException e);
+	}
+
+	/**
+	 * Journal records between entries in the sparse index.
+	 */
+	public static final int INDEX_INTERVAL = 4096;
+
+	public static final double MIN_SPEED = 1;
+	public static final double MAX_SPEED = 1000;
+
+	/**
+	 * Records read at a time while playing.
+	 */
+	private static final int BATCH = 1024;
+
+	/**
+	 * Where the intersection was at one point in the journal.
+	 */
+	private static class Checkpoint {
+		final long record;
+		final long time;
+		final int phase;
+		final PackedPhaseStates states;
+
+		Checkpoint(long record, long time, int phase, PackedPhaseStates states) {
+			this.record = record;
+			this.time = time;
+			this.phase = phase;
+			this.states = states;
+		}
+	}
+
+	/**
+	 * Follows the intersection's records, keeping its state up to date and
+	 * optionally publishing each change.
+	 */
+	private class Follower implements TransitionJournalReader.Visitor {
+		boolean publish;
+		boolean waitForTime;
+		long stopTime = Long.MAX_VALUE;
+		boolean stopped;
+		long next;
+
+		@Override
+		public void streamChanged(long record, long time, int intersectionId, int stream, State state) {
+			if (!accept(record, time, intersectionId))
+				return;
+			if (stream < states.size()) {
+				states.set(stream, state);
+				if (publish)
+					bus.channel(plan.getStream(stream)).publish(state);
+			}
+		}
+
+		@Override
+		public void phaseStarted(long record, long time, int intersectionId, int phase) {
+			if (!accept(record, time, intersectionId))
+				return;
+			if (phase < plan.phaseCount()) {
+				currentPhase = phase;
+				if (publish)
+					publishPhase(phase);
+			}
+		}
+
+		/**
+		 * @return	true if the record is for this intersection and should be applied now.
+		 */
+		private boolean accept(long record, long time, int intersectionId) {
+			if (time >= stopTime)
+				stopped = true;
+			if (stopped || record < next || (waitForTime && !waitUntil(time)))
+				return false;
+			next = record + 1;
+			if (time > lastTime)
+				lastTime = time;
+			return intersectionId == intersection;
+		}
+	}
+
+	private final TransitionJournalReader reader;
+	private final int intersection;
+	private final CompiledPhasePlan plan;
+	private final IntersectionEventBus bus;
+	private final ArrayList<Checkpoint> index = new ArrayList<Checkpoint>();
+
+	// Changed by the player thread while playing
+	private volatile PackedPhaseStates states;
+	private volatile int currentPhase = -1;
+	private long position;
+	private volatile long lastTime;
+
+	private double speed = MIN_SPEED;
+	private long wallStart;
+	private long replayStart;
+	private volatile boolean playing = false;
+	private Thread player;
+	private volatile FailureListener failureListener = new FailureListener() {
+
+		@Override
+		public void playbackFailed(TransitionReplay replay, IOException e) {
+			e.printStackTrace();
+		}
+	};
+
+	/**
+	 * Constructor for class. Reads the whole journal to build the index.
+	 *
+	 * @param reader		The journal.
+	 * @param intersection	Id of the intersection to replay.
+	 * @param plan			The intersection's plan, numbered as it was journalled.
+	 * @param bus			The bus to publish the transitions through.
+	 * @throws IOException	if the journal can't be read.
+	 */
+	public TransitionReplay(TransitionJournalReader reader, int intersection, CompiledPhasePlan plan,
+			IntersectionEventBus bus) throws IOException {
+		this.reader = reader;
+		this.intersection = intersection;
+		this.plan = plan;
+		this.bus = bus;
+		buildIndex();
+		position = reader.getStart();
+		states = index.get(0).states.copy();
+		currentPhase = -1;
+		lastTime = index.get(0).time;
+	}
+
+	private void buildIndex() throws IOException {
+		states = new PackedPhaseStates(plan.streamCount());
+		for (int s = 0; s < states.size(); s++)
+			states.set(s, State.RED);
+		Follower follower = new Follower();
+		long start = reader.getStart();
+		long firstTime = start < reader.getEnd() ? Math.max(0, reader.timeOf(start)) : 0;
+		lastTime = firstTime;
+		index.add(new Checkpoint(start, firstTime, -1, states.copy()));
+		for (long record = start; record < reader.getEnd(); record += INDEX_INTERVAL) {
+			long to = Math.min(reader.getEnd(), record + INDEX_INTERVAL);
+			follower.next = record;
+			reader.read(record, to, follower);
+			index.add(new Checkpoint(to, lastTime, currentPhase, states.copy()));
+		}
+	}
+
+	/**
+	 * @param failureListener	Told if playback stops because the journal
+	 *                          can't be read. By default the exception is printed.
+	 */
+	public void setFailureListener(FailureListener failureListener) {
+		this.failureListener = failureListener;
+	}
+
+	/**
+	 * @return	Time of the first record, in the journal's milliseconds.
+	 */
+	public long getStartTime() {
+		return index.get(0).time;
+	}
+
+	/**
+	 * @return	Time of the last record, in the journal's milliseconds.
+	 */
+	public long getEndTime() {
+		return index.get(index.size() - 1).time;
+	}
+
+	/**
+	 * @return	Time of the last record played or sought to.
+	 */
+	public long getTime() {
+		return lastTime;
+	}
+
+	/**
+	 * @return	The state of every stream at the current time. Not to be
+	 *          changed, and changes as the replay plays.
+	 */
+	public PackedPhaseStates getStreamStates() {
+		return states;
+	}
+
+	public int getPhase() {
+		return currentPhase;
+	}
+
+	public synchronized double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * @param speed	How many times faster than real time to play, 1 to 1000.
+	 */
+	public synchronized void setSpeed(double speed) {
+		if (speed < MIN_SPEED || speed > MAX_SPEED)
+			throw new IllegalArgumentException("Replay speed must be from " + MIN_SPEED + " to " + MAX_SPEED);
+		// Carry on from where playback is now at the new speed
+		rebase();
+		this.speed = speed;
+	}
+
+	/**
+	 * Jump to a time, and publish the state of every stream and the running
+	 * phase just before it. Stops playing.
+	 *
+	 * @param time	Time in the journal's milliseconds.
+	 * @throws IOException	if the journal can't be read.
+	 */
+	public void seek(long time) throws IOException {
+		stop();
+		synchronized (this) {
+			// The last checkpoint before the time. A checkpoint includes the
+			// records at its own time, which the read below would leave out.
+			int low = 0;
+			int high = index.size() - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (index.get(mid).time < time)
+					low = mid;
+				else
+					high = mid - 1;
+			}
+			Checkpoint checkpoint = index.get(low);
+			states = checkpoint.states.copy();
+			currentPhase = checkpoint.phase;
+			lastTime = checkpoint.time;
+
+			Follower follower = new Follower();
+			follower.next = checkpoint.record;
+			follower.stopTime = time;
+			reader.read(checkpoint.record, Math.min(reader.getEnd(), checkpoint.record + INDEX_INTERVAL), follower);
+			position = follower.next;
+			lastTime = Math.max(lastTime, Math.min(time, getEndTime()));
+
+			for (int s = 0; s < states.size(); s++)
+				bus.channel(plan.getStream(s)).publish(states.get(s));
+			if (currentPhase >= 0)
+				publishPhase(currentPhase);
+		}
+	}
+
+	/**
+	 * Start playing from the current time on a background thread.
+	 */
+	public synchronized void play() {
+		if (playing)
+			return;
+		playing = true;
+		rebase();
+		player = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				playBack();
+			}
+		}, "Transition replay");
+		player.setDaemon(true);
+		player.start();
+	}
+
+	/**
+	 * Stop playing, and wait for the player to finish its current record.
+	 */
+	public void stop() {
+		Thread stopping;
+		synchronized (this) {
+			playing = false;
+			stopping = player;
+			player = null;
+		}
+		if (stopping != null && stopping != Thread.currentThread()) {
+			LockSupport.unpark(stopping);
+			try {
+				stopping.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public boolean isPlaying() {
+		return playing;
+	}
+
+	private void playBack() {
+		Follower follower = new Follower();
+		follower.publish = true;
+		follower.waitForTime = true;
+		try {
+			while (playing) {
+				long from;
+				synchronized (this) {
+					from = position;
+				}
+				if (from >= reader.getEnd())
+					break;
+				follower.next = from;
+				reader.read(from, Math.min(reader.getEnd(), from + BATCH), follower);
+				synchronized (this) {
+					position = follower.next;
+				}
+			}
+		} catch (IOException e) {
+			playing = false;
+			failureListener.playbackFailed(this, e);
+		}
+		playing = false;
+	}
+
+	/**
+	 * Wait until a record is due. Runs on the player thread.
+	 *
+	 * @return	false if playing stopped while waiting.
+	 */
+	private boolean waitUntil(long time) {
+		while (playing) {
+			long due;
+			synchronized (this) {
+				due = wallStart + (long) ((time - replayStart) * 1e6 / speed);
+			}
+			long wait = due - System.nanoTime();
+			if (wait <= 0)
+				return true;
+			LockSupport.parkNanos(this, wait);
+		}
+		return false;
+	}
+
+	/**
+	 * Make the current time the starting point for playback timing.
+	 */
+	private void rebase() {
+		wallStart = System.nanoTime();
+		replayStart = lastTime;
+	}
+
+	private void publishPhase(int phase) {
+		bus.channel(plan.getPhase(phase)).publish("Replay: " + plan.getPhase(phase).getName());
+	}
+}
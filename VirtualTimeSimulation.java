@@ -0,0 +1,339 @@
+package traffic.diy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import traffic.diy.IntersectionDescription.PhaseDescription;
+import traffic.util.State;
+
+/**
+ * Run an intersection's phase plan against a virtual clock instead of the
+ * wall clock, so a day of cycling takes a fraction of a second. Each phase
+ * lasts its min green interval, as in Intersection.start(), and on each
+ * change of phase the streams whose state differs are reported in stream
+ * order.
+ *
+ * Fully actuated plans extend a phase while a detector on one of its green
+ * streams has traffic waiting, up to a limit. Where the traffic comes from is
+ * up to the Demand; by default it is random, like RandomDetector.
+ *
+ * Several simulations can be run together in order of virtual time with
+ * runAll().
+ *
+ * @author cijolly
+ */
+public class VirtualTimeSimulation {
+
+	/**
+	 * Told about every transition, in virtual time order.
+	 */
+	public interface Listener {
+		/**
+		 * @param time	Virtual time of the change, in milliseconds from the start.
+		 * @param phase	Index of the phase in the plan.
+		 */
+		void phaseStarted(long time, int phase);
+
+		/**
+		 * @param time		Virtual time of the change, in milliseconds from the start.
+		 * @param stream	Index of the stream in the description.
+		 * @param state		The stream's new state.
+		 */
+		void streamChanged(long time, int stream, State state);
+
+		/**
+		 * Called once a change of phase has reported all its streams, so a
+		 * listener can apply the whole transition at once.
+		 *
+		 * @param time	Virtual time of the change, in milliseconds from the start.
+		 */
+		default void transitionEnded(long time) {
+		}
+	}
+
+	/**
+	 * Whether traffic is waiting on a stream, for fully actuated plans.
+	 */
+	public interface Demand {
+		/**
+		 * @param stream	Index of the stream in the description.
+		 * @param time		Virtual time, in milliseconds from the start.
+		 * @return	true if a vehicle is waiting or arriving.
+		 */
+		boolean isWaiting(int stream, long time);
+	}
+
+	/**
+	 * How long an actuated phase is extended each time its streams have
+	 * traffic, in milliseconds.
+	 */
+	public static final long EXTENSION_MILLIS = 3000;
+
+	/**
+	 * The most an actuated phase is extended by, in milliseconds.
+	 */
+	public static final long MAX_EXTENSION_MILLIS = 30000;
+
+	private final PackedPhaseStates[] phases;
+	private final long[] durations;
+	private final boolean actuated;
+	private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+	private Demand demand;
+
+	private PackedPhaseStates current;
+	private int phase = -1;
+	private long time = 0;
+	private long nextEvent = 0;
+	private long extended = 0;
+	private long transitions = 0;
+
+	/**
+	 * Constructor for class. Runs the first phase plan.
+	 *
+	 * @param description	The intersection to run.
+	 */
+	public VirtualTimeSimulation(IntersectionDescription description) {
+		this(description, 0);
+	}
+
+	/**
+	 * @param description	The intersection to run.
+	 * @param plan			Index of the phase plan to run.
+	 */
+	public VirtualTimeSimulation(IntersectionDescription description, int plan) {
+		this(description, plan, null);
+	}
+
+	/**
+	 * Run a plan with other min green intervals than it was described with.
+	 *
+	 * @param description		The intersection to run.
+	 * @param plan				Index of the phase plan to run.
+	 * @param minGreenIntervals	Min green interval of each phase in seconds,
+	 *                          or null for the described ones.
+	 */
+	public VirtualTimeSimulation(IntersectionDescription description, int plan, int[] minGreenIntervals) {
+		List<PhaseDescription> planPhases = description.getPlans().get(plan);
+		if (planPhases.isEmpty())
+			throw new IllegalArgumentException("Phase plan " + plan + " has no phases");
+		if (minGreenIntervals != null && minGreenIntervals.length != planPhases.size())
+			throw new IllegalArgumentException(minGreenIntervals.length + " min green intervals for "
+					+ planPhases.size() + " phases");
+		phases = new PackedPhaseStates[planPhases.size()];
+		durations = new long[phases.length];
+		for (int p = 0; p < phases.length; p++) {
+			phases[p] = planPhases.get(p).getStreamStates();
+			int minGreen = minGreenIntervals == null ? planPhases.get(p).getMinGreenInterval() : minGreenIntervals[p];
+			// A zero length phase would never let the clock move on
+			durations[p] = Math.max(1, minGreen * 1000L);
+		}
+		actuated = !description.isPreTimed();
+		if (actuated)
+			demand = randomDemand(0, 0.5);
+
+		// Streams are red until the first phase starts
+		current = new PackedPhaseStates(description.getStreams().size());
+		for (int s = 0; s < current.size(); s++)
+			current.set(s, State.RED);
+	}
+
+	/**
+	 * @param seed			Seed for the arrivals.
+	 * @param probability	Chance that a stream has traffic each time it is checked.
+	 * @return	Demand that comes and goes at random.
+	 */
+	public static Demand randomDemand(long seed, final double probability) {
+		final Random random = new Random(seed);
+		return new Demand() {
+
+			@Override
+			public boolean isWaiting(int stream, long time) {
+				return random.nextDouble() < probability;
+			}
+		};
+	}
+
+	/**
+	 * @param demand	Where traffic comes from. Only used by fully actuated plans.
+	 */
+	public void setDemand(Demand demand) {
+		this.demand = demand;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return	The virtual time, in milliseconds from the start.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return	Virtual time of the next change of phase or extension check.
+	 */
+	public long getNextEventTime() {
+		return nextEvent;
+	}
+
+	/**
+	 * @return	Index of the running phase, or -1 before the simulation has started.
+	 */
+	public int getPhase() {
+		return phase;
+	}
+
+	/**
+	 * @return	The state of every stream now. Not to be changed.
+	 */
+	public PackedPhaseStates getStreamStates() {
+		return current;
+	}
+
+	/**
+	 * @return	Number of stream state changes so far.
+	 */
+	public long getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * Handle everything that happens up to and including a virtual time.
+	 *
+	 * @param until	Virtual time to stop at, in milliseconds from the start.
+	 */
+	public void runUntil(long until) {
+		while (nextEvent <= until)
+			step();
+		time = Math.max(time, until);
+	}
+
+	/**
+	 * Handle the next event, and move the clock on to it.
+	 */
+	public void step() {
+		time = nextEvent;
+		if (phase >= 0 && actuated && extended < MAX_EXTENSION_MILLIS && hasDemand()) {
+			long extension = Math.min(EXTENSION_MILLIS, MAX_EXTENSION_MILLIS - extended);
+			extended += extension;
+			nextEvent = time + extension;
+			return;
+		}
+
+		phase = (phase + 1) % phases.length;
+		extended = 0;
+		nextEvent = time + durations[phase];
+		PackedPhaseStates next = phases[phase];
+		for (Listener listener : listeners)
+			listener.phaseStarted(time, phase);
+		for (int s = current.nextChange(next, 0); s >= 0; s = current.nextChange(next, s + 1)) {
+			transitions++;
+			for (Listener listener : listeners)
+				listener.streamChanged(time, s, next.get(s));
+		}
+		current = next;
+		for (Listener listener : listeners)
+			listener.transitionEnded(time);
+	}
+
+	/**
+	 * @return	true if traffic is waiting on a stream that is green in the running phase.
+	 */
+	private boolean hasDemand() {
+		for (int s = 0; s < current.size(); s++) {
+			if (current.get(s) == State.GREEN && demand.isWaiting(s, time))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Run simulations together, always handling the earliest event next, so
+	 * listeners shared between them hear about transitions in virtual time
+	 * order.
+	 *
+	 * @param simulations	The simulations to run.
+	 * @param until			Virtual time to stop at, in milliseconds from the start.
+	 */
+	public static void runAll(Collection<VirtualTimeSimulation> simulations, long until) {
+		PriorityQueue<VirtualTimeSimulation> queue = new PriorityQueue<VirtualTimeSimulation>(
+				Math.max(1, simulations.size()), new Comparator<VirtualTimeSimulation>() {
+
+					@Override
+					public int compare(VirtualTimeSimulation a, VirtualTimeSimulation b) {
+						return Long.compare(a.nextEvent, b.nextEvent);
+					}
+				});
+		for (VirtualTimeSimulation simulation : simulations) {
+			if (simulation.nextEvent <= until)
+				queue.add(simulation);
+			else
+				simulation.runUntil(until);
+		}
+		while (!queue.isEmpty()) {
+			VirtualTimeSimulation simulation = queue.poll();
+			simulation.step();
+			if (simulation.nextEvent <= until)
+				queue.add(simulation);
+			else
+				simulation.runUntil(until);
+		}
+	}
+
+	/**
+	 * Run an intersection file for a virtual day, and report how long it took.
+	 * A fully actuated intersection can take its traffic from a log of
+	 * detections, read by a DetectorFeed, instead of at random.
+	 *
+	 * Arguments: file [hours [detector log]].
+	 */
+	public static void main(String[] args) throws IOException, IntersectionLoadException {
+		if (args.length < 1) {
+			System.out.println("Arguments: file [hours [detector log]]");
+			return;
+		}
+		double hours = args.length > 1 ? Double.parseDouble(args[1]) : 24;
+		BufferedReader in = new BufferedReader(new FileReader(args[0]));
+		IntersectionDescription description;
+		try {
+			description = new MyIntersectionLoader(in).loadDescription();
+		} finally {
+			in.close();
+		}
+
+		VirtualTimeSimulation simulation = new VirtualTimeSimulation(description);
+		DetectorFeed feed = null;
+		if (args.length > 2) {
+			feed = DetectorFeed.open(new File(args[2]), description.getStreams().size());
+			simulation.setDemand(feed);
+		}
+		long virtualMillis = (long) (hours * 60 * 60 * 1000);
+		long start = System.nanoTime();
+		simulation.runUntil(virtualMillis);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(description.getName() + ": " + simulation.getTransitions() + " stream transitions in "
+				+ hours + " virtual hours");
+		System.out.printf("Took %.3f seconds, %.0f times faster than real time%n", seconds,
+				virtualMillis / 1000.0 / Math.max(seconds, 1e-9));
+		if (feed != null) {
+			feed.close();
+			if (feed.getError() != null)
+				System.out.println("Detector log stopped early: " + feed.getError().getMessage());
+		}
+	}
+}